@@ -0,0 +1,48 @@
+package com.ianrenton.planesailing.app;
+
+import com.ianrenton.planesailing.data.TrackType;
+import com.ianrenton.planesailing.utils.BenchmarkRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for checking whether positions are reasonable, which is done for
+ * every position received. Aircraft and ships are checked against their range
+ * from the base station; APRS tracks are not.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TrackTableBenchmark {
+
+    private TrackTable trackTable;
+    // Not constants, so the JIT compiler can't fold them into the calls
+    private double lat = 51.9;
+    private double lon = -0.6;
+
+    @Setup
+    public void setup() {
+        trackTable = BenchmarkRunner.trackTable();
+    }
+
+    @Benchmark
+    public boolean isReasonablePositionAircraft() {
+        return trackTable.isReasonablePosition(lat, lon, TrackType.AIRCRAFT);
+    }
+
+    @Benchmark
+    public boolean isReasonablePositionShip() {
+        return trackTable.isReasonablePosition(lat, lon, TrackType.SHIP);
+    }
+
+    @Benchmark
+    public boolean isReasonablePositionAPRS() {
+        return trackTable.isReasonablePosition(lat, lon, TrackType.APRS_MOBILE);
+    }
+}
@@ -0,0 +1,71 @@
+package com.ianrenton.planesailing.comms;
+
+import com.ianrenton.planesailing.utils.BenchmarkRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmark for receiving AIS data: handling datagrams of one NMEA sentence
+ * each, assembling multipart messages, decoding them and applying them to the
+ * track table. Uses position reports and two-part static data messages from
+ * ships near the default base station, made by the traffic generator.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AISBenchmark {
+
+    private static final String[] SENTENCES = {
+            "!AIVDM,1,1,,A,13M@:0@P3fOto>pMGfUab7g`0000,0*76",
+            "!AIVDM,2,1,0,A,53M@:0@00001?400001<Tn1HE=<Dj3400000001:<PD::40Ht<TkmE20CD53,0*4E",
+            "!AIVDM,2,2,0,A,kP000000000,2*1F",
+            "!AIVDM,1,1,,A,13M@:0PP3400np4M4ABkU2q`0000,0*69",
+            "!AIVDM,1,1,,A,13M@:00P2o04bMrM<c6dWb7b0000,0*67",
+            "!AIVDM,2,1,3,A,53M@:0h00001?<00001<Tn1HE=<Dj3<00000001G<PD::40Ht<TkmE20CD53,0*18",
+            "!AIVDM,2,2,3,A,kP000000000,2*1C",
+            "!AIVDM,1,1,,A,13M@:0hP2KOsDn4MdHbq`7eb0000,0*62"
+    };
+
+    private AISUDPReceiver receiver;
+    private byte[][] datagrams;
+
+    @Setup
+    public void setup() {
+        // Duplicate filtering is off so that the same sentences are decoded every
+        // time. Each sentence is still hashed.
+        receiver = new AISUDPReceiver("Benchmark", 0, BenchmarkRunner.trackTable(), new DuplicateFilter(0, 1024));
+        datagrams = new byte[SENTENCES.length][];
+        for (int i = 0; i < SENTENCES.length; i++) {
+            datagrams[i] = (SENTENCES[i] + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    @TearDown
+    public void checkDecoded() {
+        if (receiver.getDecodeErrors() > 0 || receiver.getMessagesDropped() > 0) {
+            throw new IllegalStateException(receiver.getDecodeErrors() + " sentences could not be decoded and "
+                    + receiver.getMessagesDropped() + " were dropped");
+        }
+    }
+
+    /**
+     * Handle one datagram for each sentence. Scored per sentence.
+     */
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public void handle() {
+        for (byte[] d : datagrams) {
+            receiver.replay(d, 0, d.length);
+        }
+    }
+}
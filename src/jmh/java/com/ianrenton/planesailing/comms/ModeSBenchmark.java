@@ -0,0 +1,134 @@
+package com.ianrenton.planesailing.comms;
+
+import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.data.PositionHistory;
+import com.ianrenton.planesailing.utils.BenchmarkRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensky.libadsb.ModeSDecoder;
+import org.opensky.libadsb.msgs.ModeSReply;
+import org.opensky.libadsb.tools;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Benchmarks for receiving Mode S data in BEAST binary format: splitting the
+ * stream into frames, then decoding each message and applying it to the track
+ * table, as the decode pool's workers do. A few real ADS-B messages are used
+ * over and over, including an even and odd pair of airborne positions, so
+ * that positions are decoded as they would be for a real aircraft.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ModeSBenchmark {
+
+    private static final String[] MESSAGES = {
+            "8D4840D6202CC371C32CE0576098", // Identification
+            "8D40621D58C382D690C8AC2863A7", // Airborne position, even
+            "8D40621D58C386435CC412692AD6", // Airborne position, odd
+            "8D485020994409940838175B284F", // Velocity over ground
+            "8DA05F219B06B6AF189400CBC33F"  // Airspeed and heading
+    };
+    private static final String POSITION_ICAO_HEX = "40621d";
+    private static final int FRAMES_PER_CHUNK = 100;
+    private static final int MAX_HISTORY_SIZE = 100;
+
+    private final BEASTFramer framer = new BEASTFramer(BEASTFramer.DEFAULT_BUFFER_SIZE);
+    private final BEASTFramer.FrameHandler frameHandler = this::frame;
+    private final ModeSDecoder decoder = new ModeSDecoder();
+    private TrackTable trackTable;
+    private BEASTBinaryTCPClient client;
+    private byte[][] messages;
+    private byte[] chunk;
+    private PositionHistory positionHistory;
+    private int next;
+    private long payloadBytes;
+
+    @Setup
+    public void setup() throws Exception {
+        trackTable = BenchmarkRunner.trackTable();
+        client = new BEASTBinaryTCPClient("Benchmark", "localhost", 0, trackTable, null, null, false);
+
+        messages = new byte[MESSAGES.length][];
+        for (int i = 0; i < MESSAGES.length; i++) {
+            messages[i] = tools.hexStringToByteArray(MESSAGES[i]);
+        }
+
+        // A chunk of stream as it might be read from the socket, with escaped
+        // 0x1a bytes in the timestamps
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES_PER_CHUNK; i++) {
+            out.write(0x1a);
+            out.write('3');
+            for (int b = 0; b < 7; b++) {
+                writeEscaped(out, i + b * 13);
+            }
+            for (byte b : messages[i % messages.length]) {
+                writeEscaped(out, b);
+            }
+        }
+        chunk = out.toByteArray();
+
+        for (int i = 0; i < messages.length; i++) {
+            decodeAndHandle();
+        }
+        positionHistory = trackTable.get(POSITION_ICAO_HEX).getPositionHistory();
+    }
+
+    @TearDown
+    public void checkDecoded() {
+        if (client.getDecodeErrors() > 0) {
+            throw new IllegalStateException(client.getDecodeErrors() + " messages could not be decoded");
+        }
+    }
+
+    /**
+     * Split a chunk of the stream into frames. Scored per frame.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES_PER_CHUNK)
+    public long framing() {
+        framer.getBuffer().put(chunk);
+        framer.process(frameHandler);
+        return payloadBytes;
+    }
+
+    /**
+     * Decode a message and apply it to its track.
+     */
+    @Benchmark
+    public void decodeAndHandle() throws Exception {
+        byte[] data = messages[next];
+        next = (next + 1) % messages.length;
+        long decodeStart = System.nanoTime();
+        ModeSReply msg = decoder.decode(BEASTBinaryTCPClient.fudgeMLATData(data));
+        client.countMessageDecoded(decodeStart);
+        BEASTBinaryTCPClient.handle(msg, decoder, trackTable, client);
+
+        // The even and odd positions decode a few metres apart, so the history
+        // grows with every position. Keep it short, as culling would.
+        if (positionHistory != null && positionHistory.size() > MAX_HISTORY_SIZE) {
+            positionHistory.keepOnlyLatest();
+        }
+    }
+
+    private void frame(byte[] data, int offset, int length) {
+        payloadBytes += length;
+    }
+
+    private static void writeEscaped(ByteArrayOutputStream out, int b) {
+        out.write(b);
+        if ((b & 0xff) == 0x1a) {
+            out.write(b);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.ianrenton.planesailing.comms;
+
+import com.ianrenton.planesailing.utils.BenchmarkRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmark for receiving SBS data: splitting a chunk of the stream into
+ * lines, parsing them and applying them to the track table.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SBSBenchmark {
+
+    private static final String[] LINES = {
+            "MSG,1,1,1,4CA2D1,1,2026/10/19,12:00:00.000,2026/10/19,12:00:00.000,RYR4PV,,,,,,,,0,0,0,0",
+            "MSG,3,1,1,4CA2D1,1,2026/10/19,12:00:00.050,2026/10/19,12:00:00.050,,37000,,,51.52345,-0.81234,,,0,0,0,0",
+            "MSG,4,1,1,4CA2D1,1,2026/10/19,12:00:00.100,2026/10/19,12:00:00.100,,,452,93.4,,,-64,,0,0,0,0",
+            "MSG,5,1,1,4CA2D1,1,2026/10/19,12:00:00.150,2026/10/19,12:00:00.150,,37000,,,,,,,0,,0,0",
+            "MSG,1,1,1,400F2B,1,2026/10/19,12:00:00.200,2026/10/19,12:00:00.200,BAW123,,,,,,,,0,0,0,0",
+            "MSG,3,1,1,400F2B,1,2026/10/19,12:00:00.250,2026/10/19,12:00:00.250,,4575,,,51.47012,-0.38765,,,0,0,0,0",
+            "MSG,4,1,1,400F2B,1,2026/10/19,12:00:00.300,2026/10/19,12:00:00.300,,,182,271.0,,,1472,,0,0,0,0",
+            "MSG,6,1,1,400F2B,1,2026/10/19,12:00:00.350,2026/10/19,12:00:00.350,,,,,,,,7421,0,0,0,0",
+            "MSG,3,1,1,3C6586,1,2026/10/19,12:00:00.400,2026/10/19,12:00:00.400,,28025,,,51.81734,0.52109,,,0,0,0,0",
+            "MSG,4,1,1,3C6586,1,2026/10/19,12:00:00.450,2026/10/19,12:00:00.450,,,398,312.7,,,-1088,,0,0,0,0",
+            "MSG,7,1,1,3C6586,1,2026/10/19,12:00:00.500,2026/10/19,12:00:00.500,,28000,,,,,,,,,,0",
+            "MSG,8,1,1,3C6586,1,2026/10/19,12:00:00.550,2026/10/19,12:00:00.550,,,,,,,,,,,,0"
+    };
+
+    private SBSTCPClient client;
+    private byte[] chunk;
+
+    @Setup
+    public void setup() {
+        client = new SBSTCPClient("Benchmark", "localhost", 0, BenchmarkRunner.trackTable(), null, false);
+        chunk = (String.join("\r\n", LINES) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @TearDown
+    public void checkDecoded() {
+        if (client.getDecodeErrors() > 0) {
+            throw new IllegalStateException(client.getDecodeErrors() + " lines could not be decoded");
+        }
+    }
+
+    /**
+     * Handle a chunk of lines, as read from the socket. Scored per line.
+     */
+    @Benchmark
+    @OperationsPerInvocation(12)
+    public void handle() {
+        client.replay(chunk, 0, chunk.length);
+    }
+}
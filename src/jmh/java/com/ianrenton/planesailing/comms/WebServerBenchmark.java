@@ -0,0 +1,77 @@
+package com.ianrenton.planesailing.comms;
+
+import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.data.Track;
+import com.ianrenton.planesailing.utils.BenchmarkRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark for the web server's "first" call with different numbers of
+ * tracks, one in five of which are aircraft and the rest ships. The JSON for
+ * each track is cached until it changes, so a given percentage of the tracks
+ * are changed before each call, as they would be by receivers between calls.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class WebServerBenchmark {
+
+    private static final int HISTORY_SIZE = 20;
+
+    @Param({"1000", "10000", "50000"})
+    public int tracks;
+
+    @Param({"0", "10"})
+    public int changedPercent;
+
+    private WebServer webServer;
+    private final List<Track> trackList = new ArrayList<>();
+    private int nextChanged;
+
+    @Setup
+    public void setup() throws IOException {
+        TrackTable trackTable = BenchmarkRunner.trackTable();
+        trackTable.values().removeIf(t -> !t.isCreatedByConfig());
+        for (int i = 0; i < tracks; i++) {
+            Track t = i % 5 == 0 ? BenchmarkRunner.aircraft(i, HISTORY_SIZE) : BenchmarkRunner.ship(i, HISTORY_SIZE);
+            trackTable.put(t.getID(), t);
+            trackList.add(t);
+        }
+        // Any free port, as the server is never started
+        webServer = new WebServer(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        webServer.stop();
+    }
+
+    @Setup(Level.Invocation)
+    public void changeTracks() {
+        int count = tracks * changedPercent / 100;
+        for (int i = 0; i < count; i++) {
+            Track t = trackList.get(nextChanged);
+            nextChanged = (nextChanged + 1) % trackList.size();
+            t.setSpeed(t.getSpeed() + 0.1);
+        }
+    }
+
+    @Benchmark
+    public String getFirstCallJSON() {
+        return webServer.getFirstCallJSON(TrackQuery.ALL, WebServer.HistoryMode.FULL);
+    }
+}
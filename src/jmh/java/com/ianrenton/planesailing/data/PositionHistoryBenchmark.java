@@ -0,0 +1,77 @@
+package com.ianrenton.planesailing.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for adding positions to a position history and culling old ones,
+ * for histories of different sizes. Every add makes the history longer, so
+ * adding is timed in batches, starting from a history of the given size each
+ * iteration. Culling is timed when nothing has expired, as is usually the
+ * case when the track table's maintenance task runs.
+ */
+@State(Scope.Thread)
+@Fork(1)
+public class PositionHistoryBenchmark {
+
+    private static final int ADD_BATCH_SIZE = 100;
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private PositionHistory history;
+    private long time;
+    private double lat;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        history = new PositionHistory();
+        history.setHistoryLength(24 * 60 * 60 * 1000);
+        time = System.currentTimeMillis() - size * 1000L;
+        lat = 51.0;
+        for (int i = 0; i < size; i++) {
+            history.add(nextPosition());
+        }
+    }
+
+    /**
+     * Add a position. Scored per batch of 100 adds.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 20, batchSize = ADD_BATCH_SIZE)
+    @Measurement(iterations = 50, batchSize = ADD_BATCH_SIZE)
+    public boolean add() {
+        return history.add(nextPosition());
+    }
+
+    /**
+     * Cull a history with nothing old enough to remove.
+     */
+    @Benchmark
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public PositionHistory cull() {
+        history.cull();
+        return history;
+    }
+
+    private TimestampedPosition nextPosition() {
+        time += 1000;
+        lat += 0.0001;
+        return new TimestampedPosition(lat, -1.0, time);
+    }
+}
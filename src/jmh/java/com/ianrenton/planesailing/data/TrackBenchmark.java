@@ -0,0 +1,49 @@
+package com.ianrenton.planesailing.data;
+
+import com.ianrenton.planesailing.utils.BenchmarkRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+
+/**
+ * Benchmarks for building the data sent to clients for a single track, which
+ * is done whenever a changed track is serialised for the web server's "first"
+ * and "update" calls.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TrackBenchmark {
+
+    @Param({"AIRCRAFT", "SHIP"})
+    public TrackType type;
+
+    @Param({"10", "100"})
+    public int historySize;
+
+    private Track track;
+
+    @Setup
+    public void setup() {
+        BenchmarkRunner.trackTable();
+        track = type == TrackType.AIRCRAFT ? BenchmarkRunner.aircraft(0, historySize) : BenchmarkRunner.ship(0, historySize);
+    }
+
+    @Benchmark
+    public Map<String, Object> getFirstCallData() {
+        return track.getFirstCallData();
+    }
+
+    @Benchmark
+    public Map<String, Object> getUpdateCallData() {
+        return track.getUpdateCallData();
+    }
+}
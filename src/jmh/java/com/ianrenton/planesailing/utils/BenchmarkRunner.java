@@ -0,0 +1,107 @@
+package com.ianrenton.planesailing.utils;
+
+import com.ianrenton.planesailing.app.Application;
+import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.data.AISTrack;
+import com.ianrenton.planesailing.data.Aircraft;
+import com.ianrenton.planesailing.data.Track;
+import dk.tbsalling.aismessages.ais.messages.types.NavigationStatus;
+import dk.tbsalling.aismessages.ais.messages.types.ShipType;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks in src/jmh/java, built into their own jar by the
+ * "benchmark" Maven profile. Takes the same command line options as JMH's own
+ * runner, e.g. "-f 1 -wi 3 ModeS" to run the Mode S benchmarks with one fork
+ * and three warmup iterations, but always adds the GC profiler so that
+ * allocation rates are reported alongside throughput.
+ * <p>
+ * Run from the output directory, with "-Dconfig.file=application.conf" as for
+ * the server itself, so that the config and data files are found. The forked
+ * benchmark JVMs inherit the system property.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp()) {
+            cmd.showHelp();
+            return;
+        }
+        Runner runner = new Runner(new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build());
+        if (cmd.shouldList()) {
+            runner.list();
+        } else {
+            runner.run();
+        }
+    }
+
+    /**
+     * Get a track table to benchmark against. It belongs to an application
+     * instance that is never set up or run, so it has the base station and
+     * other custom tracks from the config, and applies updates straight away
+     * rather than in the background, but nothing else is running.
+     */
+    public static synchronized TrackTable trackTable() {
+        if (Application.getInstance() == null) {
+            DataMaps.initialise();
+            Application.createInstance().getTrackTable().loadCustomTracksFromConfig();
+        }
+        return Application.getInstance().getTrackTable();
+    }
+
+    /**
+     * Create an aircraft with typical metadata and a position history, near
+     * the default base station. The track table must have been got first.
+     *
+     * @param n           Number of the aircraft, to make each one different.
+     * @param historySize Number of positions in its history, one a second up
+     *                    to now.
+     */
+    public static Aircraft aircraft(int n, int historySize) {
+        Aircraft a = new Aircraft(String.format("%06x", 0x400000 + n));
+        a.setCallsign("BAW" + n % 10000);
+        a.setCategory("A3");
+        a.setSquawk(1000 + n % 7000);
+        a.setAltitude(10000.0 + n % 300 * 100);
+        a.setVerticalRate(0.0);
+        a.setSpeed(450.0);
+        a.setCourse((double) (n % 360));
+        a.setHeading((double) (n % 360));
+        addHistory(a, n, historySize);
+        return a;
+    }
+
+    /**
+     * Create a ship with typical metadata and a position history, near the
+     * default base station. The track table must have been got first.
+     *
+     * @param n           Number of the ship, to make each one different.
+     * @param historySize Number of positions in its history, one a second up
+     *                    to now.
+     */
+    public static AISTrack ship(int n, int historySize) {
+        AISTrack s = new AISTrack(232000000 + n);
+        s.setName("SIM VESSEL " + n);
+        s.setShipType(ShipType.Cargo);
+        s.setNavStatus(NavigationStatus.UnderwayUsingEngine);
+        s.setDestination("SOUTHAMPTON");
+        s.setSpeed(12.0);
+        s.setCourse((double) (n % 360));
+        s.setHeading((double) (n % 360));
+        addHistory(s, n, historySize);
+        return s;
+    }
+
+    private static void addHistory(Track t, int n, int historySize) {
+        double lat = 51.478 + (n % 200 - 100) * 0.01;
+        double lon = (n / 200 % 200 - 100) * 0.01;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < historySize; i++) {
+            t.addPosition(lat + i * 0.0001, lon + i * 0.0001, now - (historySize - 1 - i) * 1000L);
+        }
+    }
+}
@@ -1,8 +1,13 @@
 package com.ianrenton.planesailing.app;
 
+import com.ianrenton.planesailing.comms.DuplicateFilter;
 import com.ianrenton.planesailing.comms.Feeder;
+import com.ianrenton.planesailing.comms.ModeSDecodePool;
+import com.ianrenton.planesailing.comms.ReceiverMetrics;
+import com.ianrenton.planesailing.comms.TCPConnectionManager;
 import com.ianrenton.planesailing.comms.WebServer;
 import com.ianrenton.planesailing.utils.DataMaps;
+import com.ianrenton.planesailing.utils.MetricsRegistry;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import org.apache.logging.log4j.LogManager;
@@ -26,8 +31,11 @@ public class Application {
     private static String softwareVersion = "Unknown";
 
     private final TrackTable trackTable = new TrackTable();
+    private final MetricsRegistry metrics = new MetricsRegistry(CONFIG.getLong("comms.web-server.metrics-cache-ms"));
 
     private WebServer webServer;
+    private TCPConnectionManager tcpConnectionManager;
+    private ModeSDecodePool modeSDecodePool;
     private final List<Feeder> feeders = new ArrayList<>();
 
     /**
@@ -36,11 +44,22 @@ public class Application {
      * @param args None used
      */
     public static void main(String[] args) {
-        instance = new Application();
+        createInstance();
         instance.setup();
         instance.run();
     }
 
+    /**
+     * Create the application instance singleton, without setting it up or
+     * running it. Tracks use the instance's track table, so this can be used
+     * on its own where tracks are needed but receivers and the web server
+     * aren't, e.g. in benchmarks.
+     */
+    public static Application createInstance() {
+        instance = new Application();
+        return instance;
+    }
+
     /**
      * Get the application instance singleton
      */
@@ -75,16 +94,39 @@ public class Application {
             // Set up web server
             webServer = new WebServer(CONFIG.getInt("comms.web-server.port"));
 
+            // Set up the connection manager for TCP receiver clients
+            tcpConnectionManager = new TCPConnectionManager(CONFIG.getInt("comms.tcp.event-loop-threads"),
+                    CONFIG.getLong("comms.tcp.reconnect-min-ms"), CONFIG.getLong("comms.tcp.reconnect-max-ms"),
+                    CONFIG.getLong("comms.tcp.connect-timeout-ms"));
+
+            // Set up the pool of workers to decode Mode S messages for ADS-B and MLAT receiver clients
+            modeSDecodePool = new ModeSDecodePool(trackTable, CONFIG.getInt("comms.mode-s-decoder.workers"),
+                    CONFIG.getInt("comms.mode-s-decoder.queue-size"), CONFIG.getLong("comms.duplicate-filter.window-ms"),
+                    CONFIG.getInt("comms.duplicate-filter.max-entries"),
+                    CONFIG.getDouble("comms.mode-s-decoder.shed-surveillance-above"),
+                    CONFIG.getDouble("comms.mode-s-decoder.shed-identification-above"));
+
+            // Set up the filter that AIS receiver clients share to throw away messages already received by another
+            DuplicateFilter aisDuplicateFilter = new DuplicateFilter(CONFIG.getLong("comms.duplicate-filter.window-ms"),
+                    CONFIG.getInt("comms.duplicate-filter.max-entries"));
+
             // Set up feeders, and clients within them
             List<? extends Config> feedersConfig = CONFIG.getConfigList("comms.feeders");
             if (!feedersConfig.isEmpty()) {
                 for (Config c : feedersConfig) {
-                    feeders.add(new Feeder(c, trackTable));
+                    feeders.add(new Feeder(c, trackTable, tcpConnectionManager, modeSDecodePool, aisDuplicateFilter));
                 }
             } else {
                 LOGGER.error("No feeders are defined, Plane/Sailing Server will not receive any data.");
             }
 
+            // Set up metrics
+            metrics.register(webServer);
+            metrics.register(new ReceiverMetrics(feeders));
+            metrics.register(trackTable);
+            metrics.register(trackTable.getUpdatePipeline());
+            metrics.register(modeSDecodePool);
+
         } catch (Exception ex) {
             LOGGER.error("Exception when setting up Plane/Sailing Server", ex);
             System.exit(1);
@@ -97,6 +139,8 @@ public class Application {
             webServer.run();
 
             // Run data receiver client threads
+            modeSDecodePool.run();
+            tcpConnectionManager.run();
             for (Feeder f : feeders) {
                 f.runAll();
             }
@@ -107,6 +151,8 @@ public class Application {
                 for (Feeder f : feeders) {
                     f.stopAll();
                 }
+                tcpConnectionManager.stop();
+                modeSDecodePool.stop();
                 trackTable.shutdown();
             }));
 
@@ -128,4 +174,8 @@ public class Application {
     public List<Feeder> getFeeders() {
         return feeders;
     }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
 }
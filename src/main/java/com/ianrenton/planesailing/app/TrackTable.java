@@ -1,6 +1,8 @@
 package com.ianrenton.planesailing.app;
 
 import com.ianrenton.planesailing.data.*;
+import com.ianrenton.planesailing.utils.MetricsSource;
+import com.ianrenton.planesailing.utils.PrometheusMetricGenerator;
 import com.typesafe.config.ConfigList;
 import com.typesafe.config.ConfigValue;
 import org.apache.commons.lang3.SerializationException;
@@ -18,7 +20,7 @@ import java.util.concurrent.*;
 /**
  * Track table
  */
-public class TrackTable extends ConcurrentHashMap<String, Track> {
+public class TrackTable extends ConcurrentHashMap<String, Track> implements MetricsSource {
 
     public static final double METRES_TO_NMI = 0.000539957;
 
@@ -40,6 +42,12 @@ public class TrackTable extends ConcurrentHashMap<String, Track> {
 
     private final transient boolean printTrackTableToStdOut = Application.CONFIG.getBoolean("print-track-table-to-stdout");
 
+    private transient final TrackUpdatePipeline updatePipeline = new TrackUpdatePipeline(this,
+            Application.CONFIG.getInt("track-updates.queue-size"),
+            Application.CONFIG.getInt("track-updates.batch-size"),
+            Application.CONFIG.getLong("track-updates.coalesce-ms"),
+            Application.CONFIG.getLong("track-updates.coalesce-position-interval-ms"));
+
     /**
      * Set up the track table, using data found on disk if present. Spawns internal
      * threads to run scheduled tasks such as culling old positions, printing status
@@ -58,6 +66,24 @@ public class TrackTable extends ConcurrentHashMap<String, Track> {
         // Set up tasks to run in the background
         maintenanceTask = scheduledExecutorService.scheduleWithFixedDelay(new MaintenanceTask(), 10, 10, TimeUnit.SECONDS);
         backupTask = scheduledExecutorService.scheduleWithFixedDelay(new BackupTask(), 10, 600, TimeUnit.SECONDS);
+
+        // Start applying track updates from receivers in the background
+        updatePipeline.run();
+    }
+
+    /**
+     * Submit an update from a receiver. It will be applied in the background,
+     * or straight away if the track table hasn't been initialised.
+     *
+     * @return true if the update was accepted, false if it was dropped because
+     * too many updates were waiting to be applied.
+     */
+    public boolean submit(TrackUpdate<?> update) {
+        return updatePipeline.submit(update);
+    }
+
+    public TrackUpdatePipeline getUpdatePipeline() {
+        return updatePipeline;
     }
 
     private long countTracksOfType(TrackType t) {
@@ -337,10 +363,61 @@ public class TrackTable extends ConcurrentHashMap<String, Track> {
         }
     }
 
+    /**
+     * Write track counts and furthest distances for each track type to the
+     * Prometheus metrics. These are all worked out in a single pass over the
+     * track table.
+     */
+    @Override
+    public void writeMetrics(PrometheusMetricGenerator out) {
+        long[] counts = new long[TrackType.values().length];
+        double[] furthest = new double[TrackType.values().length];
+        int total = 0;
+        for (Track t : values()) {
+            total++;
+            if (t.getTrackType() != null) {
+                int i = t.getTrackType().ordinal();
+                counts[i]++;
+                furthest[i] = Math.max(furthest[i], getDistanceFromBaseStationOrZero(t) * METRES_TO_NMI);
+            }
+        }
+
+        out.gauge("plane_sailing_track_count", "Number of tracks of all kinds in the system",
+                total);
+        out.gauge("plane_sailing_aircraft_count", "Number of aircraft tracks in the system",
+                counts[TrackType.AIRCRAFT.ordinal()]);
+        out.gauge("plane_sailing_ship_count", "Number of ship tracks in the system",
+                counts[TrackType.SHIP.ordinal()]);
+        out.gauge("plane_sailing_ais_shore_station_count", "Number of AIS shore station tracks in the system",
+                counts[TrackType.AIS_SHORE_STATION.ordinal()]);
+        out.gauge("plane_sailing_aton_count", "Number of AtoN tracks in the system",
+                counts[TrackType.AIS_ATON.ordinal()]);
+        out.gauge("plane_sailing_aprs_mobile_count", "Number of mobile APRS tracks in the system",
+                counts[TrackType.APRS_MOBILE.ordinal()]);
+        out.gauge("plane_sailing_aprs_base_count", "Number of APRS base station tracks in the system",
+                counts[TrackType.APRS_BASE_STATION.ordinal()]);
+        out.gauge("plane_sailing_radiosonde_count", "Number of radiosondes in the system",
+                counts[TrackType.RADIOSONDE.ordinal()]);
+        out.gauge("plane_sailing_aircraft_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked aircraft",
+                furthest[TrackType.AIRCRAFT.ordinal()]);
+        out.gauge("plane_sailing_ship_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked ship",
+                furthest[TrackType.SHIP.ordinal()]);
+        out.gauge("plane_sailing_ais_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked AIS contact",
+                Math.max(furthest[TrackType.SHIP.ordinal()],
+                        Math.max(furthest[TrackType.AIS_SHORE_STATION.ordinal()], furthest[TrackType.AIS_ATON.ordinal()])));
+        out.gauge("plane_sailing_aprs_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked APRS contact",
+                Math.max(furthest[TrackType.APRS_MOBILE.ordinal()], furthest[TrackType.APRS_BASE_STATION.ordinal()]));
+        out.gauge("plane_sailing_radiosonde_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked radiosonde",
+                furthest[TrackType.RADIOSONDE.ordinal()]);
+        out.gauge("plane_sailing_meshtastic_node_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked Meshtastic node",
+                furthest[TrackType.MESHTASTIC_NODE.ordinal()]);
+    }
+
     /**
      * Stop internal threads and prepare for shutdown.
      */
     public void shutdown() {
+        updatePipeline.stop();
         maintenanceTask.cancel(true);
         backupTask.cancel(true);
         saveToFile();
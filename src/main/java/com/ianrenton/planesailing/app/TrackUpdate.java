@@ -0,0 +1,314 @@
+package com.ianrenton.planesailing.app;
+
+import com.ianrenton.planesailing.data.TimestampedPosition;
+import com.ianrenton.planesailing.data.Track;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A decoded update to a single track, produced by a receiver and applied to
+ * the track table later by the track update pipeline. This means receivers
+ * only have to decode data, and never wait on the track table.
+ * <p>
+ * Updates are immutable once built. When applied, the track is created if it
+ * doesn't exist, then the field changes are applied in the order they were
+ * added, then any positions are added, then the track's metadata time is
+ * updated if requested. Field changes come before positions so that changes
+ * of track type happen before the position reasonableness check.
+ * <p>
+ * The pipeline may merge several updates for the same track into one before
+ * applying them, so that a busy track is only looked up and written once per
+ * tick. Merged updates are created and changed only by the pipeline, so
+ * receivers still only ever see immutable updates.
+ *
+ * @param <T> The type of track being updated.
+ */
+public final class TrackUpdate<T extends Track> {
+
+    /**
+     * Receives notifications about an update when it is applied, so the
+     * receiver that produced it can keep statistics.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a position in the update was rejected as unreasonable.
+         */
+        void positionRejected();
+
+        /**
+         * Called when the update has been applied to the track table.
+         *
+         * @param createdNanos System.nanoTime() when the update was created.
+         */
+        void updateApplied(long createdNanos);
+    }
+
+    private final String trackId;
+    private final Class<T> trackClass;
+    private final Function<String, T> factory;
+    private final Map<String, Consumer<T>> changes;
+    private final List<TimestampedPosition> positions;
+    private boolean updateMetadataTime;
+    private long metadataTime;
+    private final Listener listener;
+    private final long createdNanos;
+    // Only set for merged updates: the updates merged into this one, oldest
+    // first, and the listener for the update that each position came from
+    private final List<TrackUpdate<T>> parts;
+    private final List<Listener> positionListeners;
+
+    private TrackUpdate(Builder<T> b) {
+        this.trackId = b.trackId;
+        this.trackClass = b.trackClass;
+        this.factory = b.factory;
+        this.changes = Collections.unmodifiableMap(new LinkedHashMap<>(b.changes));
+        this.positions = List.copyOf(b.positions);
+        this.updateMetadataTime = b.updateMetadataTime;
+        this.metadataTime = b.metadataTime;
+        this.listener = b.listener;
+        this.createdNanos = System.nanoTime();
+        this.parts = null;
+        this.positionListeners = null;
+    }
+
+    /**
+     * Create a merged update, starting with the contents of an existing update.
+     */
+    private TrackUpdate(TrackUpdate<T> first) {
+        this.trackId = first.trackId;
+        this.trackClass = first.trackClass;
+        this.factory = first.factory;
+        this.changes = new LinkedHashMap<>(first.changes);
+        this.positions = new ArrayList<>(first.positions);
+        this.updateMetadataTime = first.updateMetadataTime;
+        this.metadataTime = first.metadataTime;
+        this.listener = null;
+        this.createdNanos = first.createdNanos;
+        this.parts = new ArrayList<>(4);
+        this.parts.add(first);
+        this.positionListeners = new ArrayList<>(Collections.nCopies(first.positions.size(), first.listener));
+    }
+
+    /**
+     * Start building an update for a track.
+     *
+     * @param trackId    ID of the track in the track table.
+     * @param trackClass Type of track that should have this ID.
+     * @param factory    Function to create the track, given its ID, if it
+     *                   doesn't exist yet.
+     * @param listener   Listener to notify when the update is applied, or null.
+     */
+    public static <T extends Track> Builder<T> builder(String trackId, Class<T> trackClass,
+                                                       Function<String, T> factory, Listener listener) {
+        return new Builder<>(trackId, trackClass, factory, listener);
+    }
+
+    /**
+     * Apply this update to the track table. Only the track update pipeline
+     * should call this.
+     */
+    void apply(TrackTable trackTable) {
+        Track existing = trackTable.computeIfAbsent(trackId, factory);
+        if (!trackClass.isInstance(existing)) {
+            throw new IllegalStateException("Track " + trackId + " is a " + existing.getClass().getSimpleName()
+                    + ", can't update it as a " + trackClass.getSimpleName());
+        }
+        T track = trackClass.cast(existing);
+        for (Consumer<T> change : changes.values()) {
+            change.accept(track);
+        }
+        for (int i = 0; i < positions.size(); i++) {
+            TimestampedPosition p = positions.get(i);
+            Listener l = (positionListeners != null) ? positionListeners.get(i) : listener;
+            if (!track.addPosition(p.latitude(), p.longitude(), p.time()) && l != null) {
+                l.positionRejected();
+            }
+        }
+        if (updateMetadataTime) {
+            track.updateMetadataTime(metadataTime);
+        }
+        if (parts == null) {
+            if (listener != null) {
+                listener.updateApplied(createdNanos);
+            }
+        } else {
+            for (TrackUpdate<T> part : parts) {
+                if (part.listener != null) {
+                    part.listener.updateApplied(part.createdNanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge a newer update for the same track into this one, so they can be
+     * applied together. Each field keeps the change from the newest update that
+     * made one, and the metadata time is the newest one requested. Of all the
+     * positions, only the newest is kept, plus any older ones spaced at least
+     * the given interval before the next one kept. Only the track update
+     * pipeline should call this.
+     *
+     * @param newer                     The update to merge in.
+     * @param minPositionIntervalMillis Minimum time between positions to keep,
+     *                                  or zero to keep only the newest.
+     * @return The merged update, which may be this one if it was already the
+     * result of a merge, or null if the updates can't be merged because they
+     * are for different tracks or types of track.
+     */
+    TrackUpdate<T> merge(TrackUpdate<?> newer, long minPositionIntervalMillis) {
+        if (newer.trackClass != trackClass || !newer.trackId.equals(trackId)) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        TrackUpdate<T> n = (TrackUpdate<T>) newer;
+        TrackUpdate<T> m = (parts != null) ? this : new TrackUpdate<>(this);
+
+        for (Map.Entry<String, Consumer<T>> e : n.changes.entrySet()) {
+            // Move a replaced change to the end, so changes are still applied in
+            // the order they were made
+            m.changes.remove(e.getKey());
+            m.changes.put(e.getKey(), e.getValue());
+        }
+        if (n.updateMetadataTime) {
+            m.updateMetadataTime = true;
+            m.metadataTime = n.metadataTime;
+        }
+        for (TimestampedPosition p : n.positions) {
+            m.positions.add(p);
+            m.positionListeners.add(n.listener);
+        }
+        m.thinPositions(minPositionIntervalMillis);
+        m.parts.add(n);
+        return m;
+    }
+
+    /**
+     * Thin out the positions in a merged update, as described in merge().
+     * There are normally only a few, so a simple sort is fine.
+     */
+    private void thinPositions(long minIntervalMillis) {
+        if (positions.size() < 2) {
+            return;
+        }
+        Integer[] order = new Integer[positions.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // Newest first, and the later one first if two have the same time
+        Arrays.sort(order, (a, b) -> {
+            int c = Long.compare(positions.get(b).time(), positions.get(a).time());
+            return (c != 0) ? c : Integer.compare(b, a);
+        });
+        List<TimestampedPosition> keptPositions = new ArrayList<>(2);
+        List<Listener> keptListeners = new ArrayList<>(2);
+        long lastKeptTime = 0;
+        for (int i : order) {
+            TimestampedPosition p = positions.get(i);
+            if (keptPositions.isEmpty() || (minIntervalMillis > 0 && p.time() <= lastKeptTime - minIntervalMillis)) {
+                keptPositions.add(0, p);
+                keptListeners.add(0, positionListeners.get(i));
+                lastKeptTime = p.time();
+            }
+        }
+        positions.clear();
+        positions.addAll(keptPositions);
+        positionListeners.clear();
+        positionListeners.addAll(keptListeners);
+    }
+
+    public String getTrackId() {
+        return trackId;
+    }
+
+    /**
+     * Get System.nanoTime() when the update was created.
+     */
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * Builder for track updates. Not thread-safe, each receiver should build
+     * its own updates.
+     */
+    public static final class Builder<T extends Track> {
+        private final String trackId;
+        private final Class<T> trackClass;
+        private final Function<String, T> factory;
+        private final Listener listener;
+        private final Map<String, Consumer<T>> changes = new LinkedHashMap<>();
+        private final List<TimestampedPosition> positions = new ArrayList<>(1);
+        private boolean updateMetadataTime;
+        private long metadataTime;
+
+        private Builder(String trackId, Class<T> trackClass, Function<String, T> factory, Listener listener) {
+            this.trackId = trackId;
+            this.trackClass = trackClass;
+            this.factory = factory;
+            this.listener = listener;
+        }
+
+        /**
+         * Add a change to the track. The key identifies which field(s) the change
+         * affects, so that a later change with the same key replaces this one.
+         *
+         * @param key    Name of the field being changed.
+         * @param change Function to make the change.
+         */
+        public Builder<T> set(String key, Consumer<T> change) {
+            changes.put(key, change);
+            return this;
+        }
+
+        /**
+         * Add a position to the track, timestamped now.
+         */
+        public Builder<T> position(double latitude, double longitude) {
+            return position(latitude, longitude, System.currentTimeMillis());
+        }
+
+        /**
+         * Add a timestamped position to the track.
+         *
+         * @param time Timestamp of position report, UTC UNIX millis
+         */
+        public Builder<T> position(double latitude, double longitude, long time) {
+            positions.add(new TimestampedPosition(latitude, longitude, time));
+            return this;
+        }
+
+        /**
+         * Update the track's metadata time to now once the update is applied.
+         */
+        public Builder<T> updateMetadataTime() {
+            return updateMetadataTime(System.currentTimeMillis());
+        }
+
+        /**
+         * Update the track's metadata time to the given time once the update is
+         * applied.
+         *
+         * @param time UTC UNIX millis
+         */
+        public Builder<T> updateMetadataTime(long time) {
+            updateMetadataTime = true;
+            metadataTime = time;
+            return this;
+        }
+
+        /**
+         * Build the update.
+         */
+        public TrackUpdate<T> build() {
+            return new TrackUpdate<>(this);
+        }
+    }
+}
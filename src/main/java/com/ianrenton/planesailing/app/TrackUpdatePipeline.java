@@ -0,0 +1,234 @@
+package com.ianrenton.planesailing.app;
+
+import com.ianrenton.planesailing.utils.Histogram;
+import com.ianrenton.planesailing.utils.MetricsSource;
+import com.ianrenton.planesailing.utils.MpscRingBuffer;
+import com.ianrenton.planesailing.utils.PrometheusMetricGenerator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pipeline stage between the receivers and the track table. Receivers submit
+ * decoded track updates to a bounded lock-free queue, and a single dedicated
+ * thread drains it in batches and applies the updates to the track table. This
+ * means a slow track table update never holds up reading from a socket. If the
+ * apply thread falls so far behind that the queue fills up, new updates are
+ * dropped and counted rather than making receivers wait.
+ * <p>
+ * A busy aircraft can produce several updates a second, from several
+ * receivers. Rather than looking up and writing to the track for each one,
+ * the apply thread can collect updates for a short tick, merging all the
+ * updates for each track into one, then apply the merged updates together
+ * at the end of the tick.
+ * <p>
+ * Until the pipeline is started, updates are applied straight away on the
+ * calling thread, so tools that use a track table without initialising it
+ * still work.
+ */
+public class TrackUpdatePipeline implements MetricsSource {
+
+    private static final Logger LOGGER = LogManager.getLogger(TrackUpdatePipeline.class);
+    // How long the apply thread sleeps for if it's not woken by a new update
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final TrackTable trackTable;
+    private final MpscRingBuffer<TrackUpdate<?>> queue;
+    private final int batchSize;
+    private final long coalesceNanos;
+    private final long minPositionIntervalMillis;
+    // Merged updates waiting for the end of the tick, only touched by the apply thread
+    private final Map<String, TrackUpdate<?>> pending = new LinkedHashMap<>();
+    private long tickStart;
+    private volatile boolean run;
+    private volatile boolean applyThreadWaiting;
+    private Thread applyThread;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Histogram queueLatency = new Histogram(Histogram.LATENCY_BUCKETS_SEC);
+    private final Histogram batchApplyTime = new Histogram(Histogram.LATENCY_BUCKETS_SEC);
+
+    /**
+     * Create the pipeline
+     *
+     * @param trackTable The track table to apply updates to.
+     * @param queueSize  Maximum number of updates waiting to be applied.
+     * @param batchSize  Maximum number of updates to apply in one go.
+     * @param coalesceMillis Length of the tick over which updates for the
+     *                       same track are merged. Zero applies every update
+     *                       as soon as it is taken from the queue.
+     * @param minPositionIntervalMillis Minimum time between positions kept
+     *                                  when merging updates. Zero keeps only
+     *                                  the newest position.
+     */
+    public TrackUpdatePipeline(TrackTable trackTable, int queueSize, int batchSize,
+                               long coalesceMillis, long minPositionIntervalMillis) {
+        this.trackTable = trackTable;
+        this.queue = new MpscRingBuffer<>(queueSize);
+        this.batchSize = batchSize;
+        this.coalesceNanos = TimeUnit.MILLISECONDS.toNanos(coalesceMillis);
+        this.minPositionIntervalMillis = minPositionIntervalMillis;
+    }
+
+    /**
+     * Start the apply thread.
+     */
+    public void run() {
+        run = true;
+        applyThread = new Thread(this::applyLoop, "Track Update Apply Thread");
+        applyThread.setDaemon(true);
+        applyThread.start();
+    }
+
+    /**
+     * Stop the apply thread, once it has applied everything already queued.
+     */
+    public void stop() {
+        run = false;
+        if (applyThread != null) {
+            LockSupport.unpark(applyThread);
+            try {
+                applyThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Submit an update to be applied to the track table. Never blocks.
+     *
+     * @return true if the update was accepted, false if it was dropped because
+     * the queue was full.
+     */
+    public boolean submit(TrackUpdate<?> update) {
+        submitted.increment();
+        if (!run) {
+            apply(update);
+            return true;
+        }
+        if (!queue.offer(update)) {
+            dropped.increment();
+            return false;
+        }
+        if (applyThreadWaiting) {
+            LockSupport.unpark(applyThread);
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of updates waiting to be applied.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Main loop of the apply thread.
+     */
+    private void applyLoop() {
+        LOGGER.info("Track update pipeline started, queue size {}, batch size {}, coalescing over {} ms.",
+                queue.capacity(), batchSize, TimeUnit.NANOSECONDS.toMillis(coalesceNanos));
+        while (run || queue.size() > 0 || !pending.isEmpty()) {
+            long start = System.nanoTime();
+            int n = queue.drain(this::applyQueued, batchSize);
+            boolean tickEnded = !pending.isEmpty() && (start - tickStart >= coalesceNanos || !run);
+            if (tickEnded) {
+                applyPending();
+            }
+            if (n > 0 || tickEnded) {
+                batchApplyTime.observeSince(start);
+            } else if (run) {
+                // Nothing to do. Let producers know they need to wake us, check
+                // again in case something arrived in the meantime, then sleep,
+                // but not past the end of the tick.
+                long sleep = IDLE_PARK_NANOS;
+                if (!pending.isEmpty()) {
+                    sleep = Math.min(sleep, tickStart + coalesceNanos - start);
+                }
+                applyThreadWaiting = true;
+                if (queue.size() == 0) {
+                    LockSupport.parkNanos(sleep);
+                }
+                applyThreadWaiting = false;
+            }
+        }
+    }
+
+    private void applyQueued(TrackUpdate<?> update) {
+        queueLatency.observeSince(update.getCreatedNanos());
+        if (coalesceNanos <= 0) {
+            apply(update);
+            return;
+        }
+        if (pending.isEmpty()) {
+            tickStart = System.nanoTime();
+        }
+        TrackUpdate<?> existing = pending.get(update.getTrackId());
+        if (existing == null) {
+            pending.put(update.getTrackId(), update);
+            return;
+        }
+        TrackUpdate<?> merged = existing.merge(update, minPositionIntervalMillis);
+        if (merged != null) {
+            pending.put(update.getTrackId(), merged);
+            coalesced.increment();
+        } else {
+            // Can't merge, e.g. the track has changed type, so keep the updates in order
+            apply(existing);
+            pending.put(update.getTrackId(), update);
+        }
+    }
+
+    /**
+     * Apply all the merged updates collected during the tick.
+     */
+    private void applyPending() {
+        for (TrackUpdate<?> update : pending.values()) {
+            apply(update);
+        }
+        pending.clear();
+    }
+
+    private void apply(TrackUpdate<?> update) {
+        try {
+            update.apply(trackTable);
+            applied.increment();
+        } catch (Exception ex) {
+            failed.increment();
+            LOGGER.warn("Exception applying update to track {}", update.getTrackId(), ex);
+        }
+    }
+
+    @Override
+    public void writeMetrics(PrometheusMetricGenerator out) {
+        out.gauge("plane_sailing_update_queue_depth", "Number of track updates waiting to be applied",
+                getQueueDepth());
+        out.gauge("plane_sailing_update_queue_capacity", "Maximum number of track updates that can wait to be applied",
+                queue.capacity());
+        out.counter("plane_sailing_updates_submitted_total", "Number of track updates submitted by receivers since start",
+                submitted.sum());
+        out.counter("plane_sailing_updates_applied_total", "Number of track updates applied to the track table since start",
+                applied.sum());
+        out.counter("plane_sailing_updates_dropped_total", "Number of track updates dropped because the queue was full since start",
+                dropped.sum());
+        out.counter("plane_sailing_updates_coalesced_total", "Number of track updates merged into another update for the same track before being applied since start",
+                coalesced.sum());
+        out.counter("plane_sailing_updates_failed_total", "Number of track updates that could not be applied since start",
+                failed.sum());
+        out.header("plane_sailing_update_queue_latency_seconds", "Time track updates spent waiting to be applied", "histogram");
+        out.histogram("plane_sailing_update_queue_latency_seconds", new String[0], queueLatency);
+        out.header("plane_sailing_update_batch_apply_seconds", "Time taken to apply each batch of track updates", "histogram");
+        out.histogram("plane_sailing_update_batch_apply_seconds", new String[0], batchApplyTime);
+    }
+}
@@ -0,0 +1,118 @@
+package com.ianrenton.planesailing.comms;
+
+import dk.tbsalling.aismessages.ais.messages.AISMessage;
+import dk.tbsalling.aismessages.nmea.messages.NMEAMessage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reassembles AIS messages that are split over several NMEA sentences. Parts
+ * of different messages may arrive interleaved, e.g. from an aggregator
+ * merging several receivers, so incomplete messages are tracked separately by
+ * their radio channel and sequence ID. If the rest of a message doesn't arrive
+ * within a few seconds, the parts received so far are thrown away. Not
+ * thread-safe.
+ */
+public class AISFragmentAssembler {
+
+    // How long to wait for the rest of a multipart message
+    private static final long MAX_AGE_MILLIS = 5000;
+    // Maximum number of incomplete messages to track at once
+    private static final int MAX_PENDING = 64;
+
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    // Only written by the receiving thread, volatile so it can be read for metrics
+    private volatile long dropped;
+
+    /**
+     * Add a sentence.
+     *
+     * @return The complete AIS message if this sentence completed one, or null
+     * if more sentences are needed.
+     * @throws RuntimeException if the sentence or the reassembled message is
+     *                          invalid.
+     */
+    public AISMessage add(NMEAMessage sentence) {
+        int count = sentence.getNumberOfFragments();
+        if (count <= 1) {
+            return AISMessage.create(sentence);
+        }
+
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        int number = sentence.getFragmentNumber();
+        if (number < 1 || number > count) {
+            throw new IllegalArgumentException("Invalid fragment number " + number + " of " + count);
+        }
+        String key = sentence.getRadioChannelCode() + "/" + sentence.getSequenceNumber();
+        Pending p = pending.get(key);
+        if (p != null && p.fragments.length != count) {
+            // Sequence ID reused for a different message before the old one completed
+            dropped += p.received;
+            pending.remove(key);
+            p = null;
+        }
+        if (p == null) {
+            if (pending.size() >= MAX_PENDING) {
+                Iterator<Pending> it = pending.values().iterator();
+                dropped += it.next().received;
+                it.remove();
+            }
+            p = new Pending(count, now);
+            pending.put(key, p);
+        }
+        if (p.fragments[number - 1] == null) {
+            p.received++;
+        } else {
+            dropped++;
+        }
+        p.fragments[number - 1] = sentence;
+
+        if (p.received == count) {
+            pending.remove(key);
+            return AISMessage.create(p.fragments);
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of sentences thrown away since the assembler was created,
+     * because the rest of their message never arrived or they were duplicates.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Throw away incomplete messages that are too old.
+     */
+    private void expire(long now) {
+        Iterator<Pending> it = pending.values().iterator();
+        while (it.hasNext()) {
+            Pending p = it.next();
+            if (now - p.created <= MAX_AGE_MILLIS) {
+                // Insertion order, so everything after this is newer
+                break;
+            }
+            dropped += p.received;
+            it.remove();
+        }
+    }
+
+    /**
+     * The parts received so far of an incomplete message.
+     */
+    private static class Pending {
+        final NMEAMessage[] fragments;
+        final long created;
+        int received;
+
+        Pending(int count, long created) {
+            this.fragments = new NMEAMessage[count];
+            this.created = created;
+        }
+    }
+}
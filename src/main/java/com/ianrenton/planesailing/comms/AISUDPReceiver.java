@@ -1,34 +1,30 @@
 package com.ianrenton.planesailing.comms;
 
 import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.app.TrackUpdate;
 import com.ianrenton.planesailing.data.AISTrack;
 import com.ianrenton.planesailing.data.TrackType;
-import dk.tbsalling.aismessages.AISInputStreamReader;
 import dk.tbsalling.aismessages.ais.messages.*;
+import dk.tbsalling.aismessages.ais.messages.types.NavigationStatus;
+import dk.tbsalling.aismessages.ais.messages.types.ShipType;
+import dk.tbsalling.aismessages.nmea.messages.NMEAMessage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.nio.charset.StandardCharsets;
 
 /**
  * Receiver for AIS NMEA-0183 messages from a UDP socket.
  */
-public class AISUDPReceiver extends Client {
+public class AISUDPReceiver extends UDPReceiver {
     private static final Logger LOGGER = LogManager.getLogger(AISUDPReceiver.class);
     // Expected milliseconds between receiving packets
     private static final int PACKET_RX_RATE_MILLIS = 120000;
-    private final int localPort;
-    private final UDPReceiver udpReceiverThread = new UDPReceiver();
-    private final AISReceiver aisReceiverThread = new AISReceiver();
-    private AISInputStreamReader aisReader;
-    private final PipedOutputStream pipeOS = new PipedOutputStream();
-    private boolean run = true;
+    // Largest datagram we expect, enough for a batch of sentences from an aggregator
+    private static final int MAX_DATAGRAM_SIZE = 8192;
+    private final AISFragmentAssembler assembler = new AISFragmentAssembler();
+    // Shared by all AIS receivers, so must be locked while in use
+    private final DuplicateFilter duplicateFilter;
 
     /**
      * Create the receiver
@@ -36,264 +32,283 @@ public class AISUDPReceiver extends Client {
      * @param name       The name of the connection.
      * @param localPort  Port to listen on.
      * @param trackTable The track table to use.
+     * @param duplicateFilter Filter shared by all AIS receivers, to throw away
+     *                        messages that another feeder has just received.
      */
-    public AISUDPReceiver(String name, int localPort, TrackTable trackTable) {
-        super(name, trackTable);
-        this.localPort = localPort;
+    public AISUDPReceiver(String name, int localPort, TrackTable trackTable, DuplicateFilter duplicateFilter) {
+        super(name, localPort, trackTable, MAX_DATAGRAM_SIZE);
+        this.duplicateFilter = duplicateFilter;
+    }
+
+    @Override
+    public long getMessagesDropped() {
+        return super.getMessagesDropped() + assembler.getDropped();
+    }
 
+    /**
+     * Split a datagram into NMEA sentences, one per line, and handle them.
+     */
+    @Override
+    protected void handleDatagram(byte[] data, int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        for (int i = offset; i <= end; i++) {
+            if (i == end || data[i] == '\n' || data[i] == '\r') {
+                if (i > start) {
+                    handleSentence(data, start, i - start);
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Handle one NMEA sentence, passing it to the decoder once all the parts of
+     * its AIS message have arrived. Duplicates of a message just received by
+     * any AIS receiver are thrown away. Single-sentence messages, which are
+     * most of them, are checked before the sentence is parsed. Multipart
+     * messages are checked once they are complete, as different receivers
+     * number their parts differently.
+     */
+    private void handleSentence(byte[] data, int offset, int length) {
+        updatePacketReceivedTime();
+        if (isDuplicateSingleSentence(data, offset, length)) {
+            countDuplicateSuppressed();
+            return;
+        }
+        String line = new String(data, offset, length, StandardCharsets.US_ASCII);
         try {
-            InputStream pipeIS = new PipedInputStream(pipeOS);
-            aisReader = new AISInputStreamReader(pipeIS, this::handle);
-        } catch (IOException ex) {
-            LOGGER.error("Could not set up internal pipe for AIS Receiver", ex);
+            NMEAMessage sentence = NMEAMessage.fromString(line.trim());
+            if (!sentence.isValid()) {
+                countDecodeError();
+                return;
+            }
+            AISMessage m = assembler.add(sentence);
+            if (m != null) {
+                if (sentence.getNumberOfFragments() > 1 && isDuplicateMultipart(m)) {
+                    countDuplicateSuppressed();
+                    return;
+                }
+                handle(m);
+            }
+        } catch (RuntimeException ex) {
+            countDecodeError();
+            LOGGER.debug("Invalid AIS sentence skipped: {}", line);
         }
     }
 
     /**
-     * Run the receiver.
+     * Check whether a sentence is a complete AIS message on its own, and if so
+     * whether it is a duplicate. Only the payload is compared, as the rest of
+     * the sentence, e.g. talker ID and radio channel, may differ between
+     * receivers for the same message. Works on the raw bytes by finding the
+     * fragment count (second field) and payload (sixth field), after any tag
+     * block.
      */
-    public void run() {
-        run = true;
-        online = true;
-        new Thread(udpReceiverThread, "AIS UDP receiver thread").start();
-        new Thread(aisReceiverThread, "AIS handler thread").start();
+    private boolean isDuplicateSingleSentence(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end && data[i] != '!' && data[i] != '$') {
+            i++;
+        }
+        int field = 0;
+        int fieldStart = i;
+        for (; i <= end; i++) {
+            if (i == end || data[i] == ',' || data[i] == '*') {
+                if (field == 1 && (i - fieldStart != 1 || data[fieldStart] != '1')) {
+                    return false;
+                }
+                if (field == 5) {
+                    synchronized (duplicateFilter) {
+                        return duplicateFilter.isDuplicate(data, fieldStart, i - fieldStart);
+                    }
+                }
+                field++;
+                fieldStart = i + 1;
+            }
+        }
+        return false;
     }
 
     /**
-     * Stop the receiver.
+     * Check whether a reassembled multipart AIS message is a duplicate, by
+     * comparing the payloads of all its parts.
      */
-    public void stop() {
-        run = false;
-        online = false;
-        aisReader.requestStop();
+    private boolean isDuplicateMultipart(AISMessage m) {
+        StringBuilder payload = new StringBuilder();
+        for (NMEAMessage part : m.getNmeaMessages()) {
+            payload.append(part.getEncodedPayload());
+        }
+        synchronized (duplicateFilter) {
+            return duplicateFilter.isDuplicate(payload);
+        }
     }
 
     /**
      * Handle an incoming message.
      */
     private void handle(AISMessage m) {
+        countMessageDecoded();
         try {
             int mmsi = m.getSourceMmsi().intValue();
             String mmsiString = String.valueOf(mmsi);
 
-            // If this is a new track, add it to the track table
-            if (!trackTable.containsKey(mmsiString)) {
+            // Build an update for the track. If this is a new track, it will be added
+            // to the track table when the update is applied, and if we have a name
+            // for this ship in our cache of past data, the name is set immediately.
+            TrackUpdate.Builder<AISTrack> u = TrackUpdate.builder(mmsiString, AISTrack.class, id -> {
                 AISTrack newS = new AISTrack(mmsi);
-
-                // If we have a name for this ship in our cache of past data,
-                // set the name immediately.
                 if (newS.getName() == null && trackTable.getAISNameCache().containsKey(mmsi)) {
                     newS.setName(trackTable.getAISNameCache().get(mmsi));
                 }
+                return newS;
+            }, this);
 
-                trackTable.put(mmsiString, newS);
-            }
-
-            // Extract the data and update the track
-            AISTrack s = (AISTrack) trackTable.get(mmsiString);
+            // Extract the data
             switch (m.getMessageType()) {
                 case AidToNavigationReport:
                     AidToNavigationReport m2 = (AidToNavigationReport) m;
-                    s.setAtoN(true);
+                    u.set("atoN", s -> s.setAtoN(true));
                     if (m2.getName() != null) {
                         String name = m2.getName().replaceAll("_", " ").replaceAll("@", " ").trim();
-                        s.setName(name);
+                        u.set("name", s -> s.setName(name));
                         trackTable.getAISNameCache().put(mmsi, name);
                     }
-                    s.setTrackType(TrackType.AIS_ATON);
-                    s.addPosition(m2.getLatitude(), m2.getLongitude());
-                    s.setFixed(true);
-                    s.updateMetadataTime();
+                    u.set("trackType", s -> s.setTrackType(TrackType.AIS_ATON));
+                    u.position(m2.getLatitude(), m2.getLongitude());
+                    u.set("fixed", s -> s.setFixed(true));
+                    u.updateMetadataTime();
                     break;
 
                 case BaseStationReport:
                     BaseStationReport m3 = (BaseStationReport) m;
-                    s.setShoreStation(true);
-                    s.setTrackType(TrackType.AIS_SHORE_STATION);
-                    s.addPosition(m3.getLatitude(), m3.getLongitude());
-                    s.setFixed(true);
-                    s.updateMetadataTime();
+                    u.set("shoreStation", s -> s.setShoreStation(true));
+                    u.set("trackType", s -> s.setTrackType(TrackType.AIS_SHORE_STATION));
+                    u.position(m3.getLatitude(), m3.getLongitude());
+                    u.set("fixed", s -> s.setFixed(true));
+                    u.updateMetadataTime();
                     break;
 
                 case ClassBCSStaticDataReport:
                     ClassBCSStaticDataReport m4 = (ClassBCSStaticDataReport) m;
                     if (m4.getShipName() != null) {
                         String name = m4.getShipName().replaceAll("_", " ").replaceAll("@", " ").trim();
-                        s.setName(name);
+                        u.set("name", s -> s.setName(name));
                         trackTable.getAISNameCache().put(mmsi, name);
                     }
                     if (m4.getCallsign() != null) {
-                        s.setCallsign(m4.getCallsign().trim());
+                        String callsign = m4.getCallsign().trim();
+                        u.set("callsign", s -> s.setCallsign(callsign));
                     }
-                    s.setShipType(m4.getShipType());
-                    s.setTrackType(TrackType.SHIP);
-                    s.updateMetadataTime();
+                    ShipType shipType4 = m4.getShipType();
+                    u.set("shipType", s -> s.setShipType(shipType4));
+                    u.set("trackType", s -> s.setTrackType(TrackType.SHIP));
+                    u.updateMetadataTime();
                     break;
 
                 case ExtendedClassBEquipmentPositionReport:
                     ExtendedClassBEquipmentPositionReport m5 = (ExtendedClassBEquipmentPositionReport) m;
                     if (m5.getShipName() != null) {
                         String name = m5.getShipName().replaceAll("_", " ").replaceAll("@", " ").trim();
-                        s.setName(name);
+                        u.set("name", s -> s.setName(name));
                         trackTable.getAISNameCache().put(mmsi, name);
                     }
 
-                    s.addPosition(m5.getLatitude(), m5.getLongitude());
-                    if (m5.getCourseOverGround() != 511) {
-                        s.setCourse(m5.getCourseOverGround().doubleValue());
-                    }
-                    if (m5.getTrueHeading() != 0 && m5.getTrueHeading() != 511) {
-                        s.setHeading(m5.getTrueHeading().doubleValue());
-                    }
-                    s.setSpeed(m5.getSpeedOverGround().doubleValue());
-                    s.setTrackType(TrackType.SHIP);
-                    s.updateMetadataTime();
+                    u.position(m5.getLatitude(), m5.getLongitude());
+                    addCourseHeadingSpeed(u, m5.getCourseOverGround(), m5.getTrueHeading(), m5.getSpeedOverGround());
+                    u.set("trackType", s -> s.setTrackType(TrackType.SHIP));
+                    u.updateMetadataTime();
                     break;
 
                 case LongRangeBroadcastMessage:
                     LongRangeBroadcastMessage m6 = (LongRangeBroadcastMessage) m;
-                    s.setTrackType(TrackType.SHIP);
-                    s.addPosition(m6.getLatitude(), m6.getLongitude());
+                    u.set("trackType", s -> s.setTrackType(TrackType.SHIP));
+                    u.position(m6.getLatitude(), m6.getLongitude());
                     if (m6.getCourseOverGround() != 511) {
-                        s.setCourse(m6.getCourseOverGround().doubleValue());
+                        double course = m6.getCourseOverGround().doubleValue();
+                        u.set("course", s -> s.setCourse(course));
                     }
-                    s.setSpeed(m6.getSpeedOverGround().doubleValue());
-                    s.setNavStatus(m6.getNavigationalStatus());
-                    s.updateMetadataTime();
+                    double speed6 = m6.getSpeedOverGround().doubleValue();
+                    u.set("speed", s -> s.setSpeed(speed6));
+                    NavigationStatus navStatus6 = m6.getNavigationalStatus();
+                    u.set("navStatus", s -> s.setNavStatus(navStatus6));
+                    u.updateMetadataTime();
                     break;
 
                 case PositionReportClassAAssignedSchedule:
-                    PositionReportClassAAssignedSchedule m7 = (PositionReportClassAAssignedSchedule) m;
-                    s.setTrackType(TrackType.SHIP);
-                    s.addPosition(m7.getLatitude(), m7.getLongitude());
-                    if (m7.getCourseOverGround() != 511) {
-                        s.setCourse(m7.getCourseOverGround().doubleValue());
-                    }
-                    if (m7.getTrueHeading() != 0 && m7.getTrueHeading() != 511) {
-                        s.setHeading(m7.getTrueHeading().doubleValue());
-                    }
-                    s.setSpeed(m7.getSpeedOverGround().doubleValue());
-                    s.setNavStatus(m7.getNavigationStatus());
-                    s.updateMetadataTime();
-                    break;
-
                 case PositionReportClassAResponseToInterrogation:
-                    PositionReportClassAResponseToInterrogation m8 = (PositionReportClassAResponseToInterrogation) m;
-                    s.setTrackType(TrackType.SHIP);
-                    s.addPosition(m8.getLatitude(), m8.getLongitude());
-                    if (m8.getCourseOverGround() != 511) {
-                        s.setCourse(m8.getCourseOverGround().doubleValue());
-                    }
-                    if (m8.getTrueHeading() != 0 && m8.getTrueHeading() != 511) {
-                        s.setHeading(m8.getTrueHeading().doubleValue());
-                    }
-                    s.setSpeed(m8.getSpeedOverGround().doubleValue());
-                    s.setNavStatus(m8.getNavigationStatus());
-                    s.updateMetadataTime();
-                    break;
-
                 case PositionReportClassAScheduled:
-                    PositionReportClassAScheduled m9 = (PositionReportClassAScheduled) m;
-                    s.setTrackType(TrackType.SHIP);
-                    s.addPosition(m9.getLatitude(), m9.getLongitude());
-                    if (m9.getCourseOverGround() != 511) {
-                        s.setCourse(m9.getCourseOverGround().doubleValue());
-                    }
-                    if (m9.getTrueHeading() != 0 && m9.getTrueHeading() != 511) {
-                        s.setHeading(m9.getTrueHeading().doubleValue());
-                    }
-                    s.setSpeed(m9.getSpeedOverGround().doubleValue());
-                    s.setNavStatus(m9.getNavigationStatus());
-                    s.updateMetadataTime();
+                    PositionReport m7 = (PositionReport) m;
+                    u.set("trackType", s -> s.setTrackType(TrackType.SHIP));
+                    u.position(m7.getLatitude(), m7.getLongitude());
+                    addCourseHeadingSpeed(u, m7.getCourseOverGround(), m7.getTrueHeading(), m7.getSpeedOverGround());
+                    NavigationStatus navStatus7 = m7.getNavigationStatus();
+                    u.set("navStatus", s -> s.setNavStatus(navStatus7));
+                    u.updateMetadataTime();
                     break;
 
                 case ShipAndVoyageRelatedData:
                     ShipAndVoyageData m10 = (ShipAndVoyageData) m;
                     if (m10.getShipName() != null) {
                         String name10 = m10.getShipName().replaceAll("_", " ").replaceAll("@", " ").trim();
-                        s.setName(name10);
+                        u.set("name", s -> s.setName(name10));
                         trackTable.getAISNameCache().put(mmsi, name10);
                     }
                     if (m10.getCallsign() != null) {
-                        s.setCallsign(m10.getCallsign().trim());
+                        String callsign = m10.getCallsign().trim();
+                        u.set("callsign", s -> s.setCallsign(callsign));
                     }
-                    s.setShipType(m10.getShipType());
-                    s.setDestination(m10.getDestination());
-                    s.setTrackType(TrackType.SHIP);
-                    s.updateMetadataTime();
+                    ShipType shipType10 = m10.getShipType();
+                    String destination = m10.getDestination();
+                    u.set("shipType", s -> s.setShipType(shipType10));
+                    u.set("destination", s -> s.setDestination(destination));
+                    u.set("trackType", s -> s.setTrackType(TrackType.SHIP));
+                    u.updateMetadataTime();
                     break;
 
                 case StandardClassBCSPositionReport:
                     StandardClassBCSPositionReport m11 = (StandardClassBCSPositionReport) m;
-                    s.setTrackType(TrackType.SHIP);
-                    s.addPosition(m11.getLatitude(), m11.getLongitude());
-                    if (m11.getCourseOverGround() != 511) {
-                        s.setCourse(m11.getCourseOverGround().doubleValue());
-                    }
-                    if (m11.getTrueHeading() != 0 && m11.getTrueHeading() != 511) {
-                        s.setHeading(m11.getTrueHeading().doubleValue());
-                    }
-                    s.setSpeed(m11.getSpeedOverGround().doubleValue());
-                    s.updateMetadataTime();
+                    u.set("trackType", s -> s.setTrackType(TrackType.SHIP));
+                    u.position(m11.getLatitude(), m11.getLongitude());
+                    addCourseHeadingSpeed(u, m11.getCourseOverGround(), m11.getTrueHeading(), m11.getSpeedOverGround());
+                    u.updateMetadataTime();
                     break;
 
                 case UTCAndDateResponse:
                     UTCAndDateResponse m12 = (UTCAndDateResponse) m;
-                    s.addPosition(m12.getLatitude(), m12.getLongitude());
+                    u.position(m12.getLatitude(), m12.getLongitude());
                     break;
 
                 case StandardSARAircraftPositionReport:
                     // This aircraft will have ADS-B as well, so don't worry about its AIS track
-                    break;
+                    return;
 
                 default:
                     // Nothing useful we can do with this type
-                    break;
+                    return;
             }
+            trackTable.submit(u.build());
         } catch (Exception ex) {
             LOGGER.error("Exception handling AIS data, catching exception so handling can continue.", ex);
         }
     }
 
     /**
-     * Inner receiver thread. Reads datagrams from the UDP socket, pipes them
-     * over to the third-party AISInputStreamReader.
+     * Add course, heading and speed from a position report to a track update,
+     * ignoring course and heading if they are "not available".
      */
-    private class UDPReceiver implements Runnable {
-
-        public void run() {
-            try {
-                DatagramSocket socket = new DatagramSocket(localPort);
-                LOGGER.info("Opened local UDP port {} to receive AIS data.", localPort);
-
-                while (run) {
-                    // Read packet from the UDP port and write to the internal pipe
-                    byte[] buffer = new byte[256];
-                    DatagramPacket p = new DatagramPacket(buffer, buffer.length);
-                    socket.receive(p);
-                    String line = new String(p.getData(), StandardCharsets.US_ASCII).trim() + "\r\n";
-                    pipeOS.write(line.getBytes());
-                    lastReceivedTime = System.currentTimeMillis();
-
-                    Thread.sleep(10);
-                }
-
-                socket.close();
-
-            } catch (Exception ex) {
-                LOGGER.error("Exception in AIS Receiver", ex);
-            }
+    private static void addCourseHeadingSpeed(TrackUpdate.Builder<AISTrack> u, Float courseOverGround,
+                                              Integer trueHeading, Float speedOverGround) {
+        if (courseOverGround != 511) {
+            double course = courseOverGround.doubleValue();
+            u.set("course", s -> s.setCourse(course));
         }
-    }
-
-    /**
-     * Thread to kick off the AIS Receiver, which otherwise would block.
-     */
-    private class AISReceiver implements Runnable {
-
-        public void run() {
-            aisReader.run();
+        if (trueHeading != 0 && trueHeading != 511) {
+            double heading = trueHeading.doubleValue();
+            u.set("heading", s -> s.setHeading(heading));
         }
+        double speed = speedOverGround.doubleValue();
+        u.set("speed", s -> s.setSpeed(speed));
     }
 
     @Override
@@ -1,13 +1,16 @@
 package com.ianrenton.planesailing.comms;
 
+import com.ianrenton.planesailing.app.Application;
 import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.app.TrackUpdate;
 import com.ianrenton.planesailing.data.APRSTrack;
 import net.ab0oo.aprs.parser.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Receiver for messages from an APRS KISS server, e.g. Direwolf.
@@ -27,87 +30,99 @@ import java.io.InputStream;
 public class APRSTCPClient extends TCPClient {
 
     private static final Logger LOGGER = LogManager.getLogger(APRSTCPClient.class);
-    private static final byte FEND = (byte) 0xC0;
-    private static final byte FESC = (byte) 0xDB;
-    private static final byte TFEND = (byte) 0xDC;
-    private static final byte TFESC = (byte) 0xDD;
+    // javAPRSlib parses a comment from each part of an APRS packet, but has no
+    // getter for it, so read the field directly. Null if that isn't possible, in
+    // which case the comment is found in the part's text description instead.
+    private static final Field APRS_DATA_COMMENT = findCommentField();
+
+    private final KISSFramer framer = new KISSFramer(KISSFramer.DEFAULT_BUFFER_SIZE);
+    private final KISSFramer.FrameHandler frameHandler = this::handleFrame;
+    // Packets are often heard several times via different digipeaters, so only the first copy is decoded
+    private final DuplicateFilter duplicateFilter = new DuplicateFilter(
+            Application.CONFIG.getLong("comms.duplicate-filter.aprs-window-ms"),
+            Application.CONFIG.getInt("comms.duplicate-filter.max-entries"));
+    private byte[] duplicateKey = new byte[256];
 
     /**
      * Create the client
      *
-     * @param name       The name of the connection.
-     * @param remoteHost Host to connect to.
-     * @param remotePort Port to connect to.
-     * @param trackTable The track table to use.
+     * @param name              The name of the connection.
+     * @param remoteHost        Host to connect to.
+     * @param remotePort        Port to connect to.
+     * @param trackTable        The track table to use.
+     * @param connectionManager The connection manager that will handle the
+     *                          connection.
      */
-    public APRSTCPClient(String name, String remoteHost, int remotePort, TrackTable trackTable) {
-        super(name, remoteHost, remotePort, trackTable);
+    public APRSTCPClient(String name, String remoteHost, int remotePort, TrackTable trackTable,
+                         TCPConnectionManager connectionManager) {
+        super(name, remoteHost, remotePort, trackTable, connectionManager);
+    }
+
+    @Override
+    protected ByteBuffer getReadBuffer() {
+        return framer.getBuffer();
     }
 
     @Override
-    protected boolean read(InputStream in) {
+    protected void dataReceived(ByteBuffer buffer) {
+        framer.process(frameHandler);
+    }
+
+    /**
+     * Handle one KISS data frame from the framer, containing an AX.25 packet.
+     */
+    private void handleFrame(int port, byte[] data, int offset, int length) {
+        updatePacketReceivedTime();
+        if (isDuplicate(data, offset, length)) {
+            countDuplicateSuppressed();
+            return;
+        }
         try {
-            byte[] buffer = new byte[1000];
-            int bytesReceived = 0;
-            int i;
-            while ((i = in.read()) != -1) {
-                byte b = (byte) i;
-                if (b == FEND) {
-                    // Delimiter found, process contents of byte buffer.
-                    if (bytesReceived > 0) {
-                        updatePacketReceivedTime();
-                        byte[] aprsMessage = new byte[bytesReceived];
-                        System.arraycopy(buffer, 0, aprsMessage, 0, bytesReceived);
-                        try {
-                            aprsMessage = processEscapedBytes(aprsMessage);
-                            extractAPRSData(aprsMessage);
-                        } catch (Exception ex) {
-                            LOGGER.error("Encountered an exception when handling an APRS packet.", ex);
-                        }
-                    }
-
-                    // Reset the buffer
-                    buffer = new byte[1000];
-                    bytesReceived = 0;
-                } else {
-                    // New non-delimiter byte found, add to the buffer
-                    buffer[bytesReceived++] = b;
-                }
-            }
-            return false;
-        } catch (IOException ex) {
-            getLogger().warn("Exception encountered in Receiver {}.", getType(), ex);
-            return false;
+            // The parser needs the packet in an array of its own
+            extractAPRSData(Arrays.copyOfRange(data, offset, offset + length));
+        } catch (Exception ex) {
+            countDecodeError();
+            LOGGER.error("Encountered an exception when handling an APRS packet from TNC port {}.", port, ex);
         }
     }
 
     /**
-     * Process the escaped bytes in a KISS frame. Code from
-     * <a href="https://github.com/amishHammer/libkisstnc-java">...</a>
+     * Check whether an AX.25 packet is a copy of one heard recently, e.g. one
+     * repeated by a different digipeater. Packets are compared by their
+     * destination, source and information field, but not the digipeater path,
+     * which differs between copies. The destination is included because Mic-E
+     * packets encode part of their position in it. The first copy heard is the
+     * one decoded, so the track keeps the route of the first copy rather than
+     * changing with each repeat.
+     * <p>
+     * This works on the raw packet, so duplicates don't have to be parsed. Each
+     * address is seven bytes, and the last one is marked by the lowest bit of
+     * its final byte. Then come a control byte and a protocol ID byte, then the
+     * information field.
      */
-    private static byte[] processEscapedBytes(byte[] data) {
-        byte[] tmp = new byte[data.length - 1];
-        boolean handlingEscape = false;
-        int wPos = 0;
-        for (int rPos = 1; rPos < data.length; rPos++) {
-            if (handlingEscape) {
-                if (data[rPos] == TFEND) {
-                    tmp[wPos++] = FEND;
-                } else if (data[rPos] == TFESC) {
-                    tmp[wPos++] = FESC;
-                } else {
-                    LOGGER.warn("Bad Escaped byte: " + data[rPos]);
-                }
-                handlingEscape = false;
-            } else if (data[rPos] == FESC) {
-                handlingEscape = true;
-            } else {
-                tmp[wPos++] = data[rPos];
-            }
+    private boolean isDuplicate(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int addressEnd = offset;
+        do {
+            addressEnd += 7;
+        } while (addressEnd <= end && (data[addressEnd - 1] & 0x01) == 0);
+        int infoStart = addressEnd + 2;
+        if (addressEnd < offset + 14 || infoStart > end) {
+            // Not a valid packet, let the parser deal with it
+            return false;
+        }
+
+        // Destination and source, with only the SSID bits of their last bytes, which
+        // also hold flags that change when the packet is digipeated
+        int keyLength = 14 + end - infoStart;
+        if (duplicateKey.length < keyLength) {
+            duplicateKey = new byte[keyLength];
         }
-        byte[] procData = new byte[wPos];
-        System.arraycopy(tmp, 0, procData, 0, wPos);
-        return procData;
+        System.arraycopy(data, offset, duplicateKey, 0, 14);
+        duplicateKey[6] &= 0x1E;
+        duplicateKey[13] &= 0x1E;
+        System.arraycopy(data, infoStart, duplicateKey, 14, end - infoStart);
+        return duplicateFilter.isDuplicate(duplicateKey, 0, keyLength);
     }
 
     /**
@@ -115,10 +130,14 @@ public class APRSTCPClient extends TCPClient {
      * <a href="https://github.com/ab0oo/javAPRSlib">...</a>
      */
     public void extractAPRSData(byte[] bytes) throws Exception {
+        long decodeStart = System.nanoTime();
         APRSPacket packet = Parser.parseAX25(bytes);
         InformationField data = packet.getAprsInformation();
         if (packet.isAprs() && !packet.hasFault() && data != null) {
+            countMessageDecoded(decodeStart);
             addDataToTrack(packet);
+        } else {
+            countDecodeError();
         }
     }
 
@@ -129,25 +148,16 @@ public class APRSTCPClient extends TCPClient {
         String destCall = packet.getDestinationCall();
         String route = packet.getDigiString();
 
-        // If this is a new track, add it to the track table
-        if (!trackTable.containsKey(callsign)) {
-            trackTable.put(callsign, new APRSTrack(callsign));
-        }
-        APRSTrack a = (APRSTrack) trackTable.get(callsign);
-
         // Extract APRS data
         InformationField data = packet.getAprsInformation();
 
-        // Find comment by one of two methods. javAPRSlib has some weirdness here in that InformationField.comment does
-        // not always get populated, although a comment may exist in the embedded APRSData block. However, the latter
-        // comment isn't exposed anywhere, so the best we can do is toString() it and parse that, e.g. see
-        // PositionField.toString().
+        // Find comment. javAPRSlib has some weirdness here in that InformationField.comment does not always get
+        // populated, although a comment may exist in the embedded APRSData blocks, so use theirs if they have one.
         String comment = data.getComment();
         for (APRSData d : data.getAprsData().values()) {
-            for (String line : d.toString().split("\\r?\\n")) {
-                if (line.startsWith("Comment:  ")) {
-                    comment = line.substring(10);
-                }
+            String dataComment = getComment(d);
+            if (dataComment != null) {
+                comment = dataComment;
             }
         }
 
@@ -155,24 +165,31 @@ public class APRSTCPClient extends TCPClient {
         // if it contains human-entered data, approximated here
         // by being more than five characters long
         if (route.startsWith(",")) {
-            route = route.replaceFirst(",", "");
+            route = route.substring(1);
         }
-        if (comment.length() < 5) {
+        if (comment != null && comment.length() < 5) {
             comment = null;
         }
 
         // Extract position data if available
         Position p = null;
+        PositionField positionField = null;
         if (data.containsType(APRSTypes.T_POSITION)) {
-            p = ((PositionField) data.getAprsData(APRSTypes.T_POSITION)).getPosition();
+            positionField = (PositionField) data.getAprsData(APRSTypes.T_POSITION);
+            p = positionField.getPosition();
         }
 
-        // Extract course/speed data if available
+        // Extract course/speed data if available. For position reports the parser
+        // attaches this to the position, rather than the information field.
         Double course = null;
         Double speed = null;
-        if (data.getExtension() instanceof CourseAndSpeedExtension) {
-            course = (double) ((CourseAndSpeedExtension) data.getExtension()).getCourse();
-            speed = (double) ((CourseAndSpeedExtension) data.getExtension()).getSpeed();
+        DataExtension extension = data.getExtension();
+        if (extension == null && positionField != null) {
+            extension = positionField.getExtension();
+        }
+        if (extension instanceof CourseAndSpeedExtension courseAndSpeed) {
+            course = (double) courseAndSpeed.getCourse();
+            speed = (double) courseAndSpeed.getSpeed();
         }
         // Don't trust course = 0 and speed = 0 as valid data
         if (course != null && course == 0.0 && speed == 0.0) {
@@ -180,31 +197,71 @@ public class APRSTCPClient extends TCPClient {
             speed = null;
         }
 
-        // Update the track.
-        a.setSSID(ssid);
+        // Build an update for the track. If this is a new track, it will be added
+        // to the track table when the update is applied.
+        TrackUpdate.Builder<APRSTrack> u = TrackUpdate.builder(callsign, APRSTrack.class, APRSTrack::new, this);
+        u.set("ssid", a -> a.setSSID(ssid));
         if (destCall != null && !destCall.isEmpty()) {
-            a.setPacketDestCall(destCall);
+            u.set("packetDestCall", a -> a.setPacketDestCall(destCall));
         }
         if (!route.isEmpty()) {
-            a.setPacketRoute(route);
+            String finalRoute = route;
+            u.set("packetRoute", a -> a.setPacketRoute(finalRoute));
         }
         if (comment != null) {
-            a.setComment(comment);
+            String finalComment = comment;
+            u.set("comment", a -> a.setComment(finalComment));
         }
         if (p != null) {
-            a.addPosition(p.getLatitude(), p.getLongitude());
+            u.position(p.getLatitude(), p.getLongitude());
             if (p.getAltitude() > 0) {
-                a.setAltitude((double) p.getAltitude());
+                double altitude = p.getAltitude();
+                u.set("altitude", a -> a.setAltitude(altitude));
             }
         }
         if (course != null) {
-            a.setCourse(course);
-            a.setHeading(course);
+            Double finalCourse = course;
+            u.set("course", a -> a.setCourse(finalCourse));
+            u.set("heading", a -> a.setHeading(finalCourse));
         }
         if (speed != null) {
-            a.setSpeed(speed);
+            Double finalSpeed = speed;
+            u.set("speed", a -> a.setSpeed(finalSpeed));
+        }
+        u.updateMetadataTime();
+        trackTable.submit(u.build());
+    }
+
+    /**
+     * Get the comment parsed from one part of an APRS packet, or null if it
+     * has none.
+     */
+    private static String getComment(APRSData d) {
+        if (APRS_DATA_COMMENT != null) {
+            try {
+                return (String) APRS_DATA_COMMENT.get(d);
+            } catch (IllegalAccessException ex) {
+                // Fall back to the text description
+            }
+        }
+        // The comment is on its own line, e.g. see PositionField.toString()
+        for (String line : d.toString().split("\\r?\\n")) {
+            if (line.startsWith("Comment:  ")) {
+                return line.substring(10);
+            }
+        }
+        return null;
+    }
+
+    private static Field findCommentField() {
+        try {
+            Field f = APRSData.class.getDeclaredField("comment");
+            f.setAccessible(true);
+            return f;
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            LOGGER.warn("Could not access APRS comments directly, falling back to parsing them from text.");
+            return null;
         }
-        a.updateMetadataTime();
     }
 
     @Override
@@ -0,0 +1,109 @@
+package com.ianrenton.planesailing.comms;
+
+/**
+ * Parser for lines of BEAST AVR format data, working directly on the bytes in
+ * a read buffer. Two framings are supported:
+ * <ul>
+ * <li><code>*8D4840D6202CC371C32CE0576098;</code> - hex Mode S message only</li>
+ * <li><code>@0123456789AB8D4840D6202CC371C32CE0576098;</code> - 48-bit
+ * receiver timestamp (12 hex characters), then the hex Mode S message</li>
+ * </ul>
+ * The hex is decoded straight into one of two reused arrays, one for short
+ * (56-bit) and one for long (112-bit) messages, so parsing a line doesn't
+ * allocate anything. The Mode S decoder copies what it needs out of the array,
+ * so it can safely be reused for the next line. One parser should be used per
+ * connection, and it is not thread-safe.
+ */
+public class AVRParser {
+
+    private static final int TIMESTAMP_HEX_LENGTH = 12;
+
+    private final byte[] shortMessage = new byte[7];
+    private final byte[] longMessage = new byte[14];
+    private byte[] message;
+    private long timestamp;
+
+    /**
+     * Parse a line.
+     *
+     * @param data   Buffer containing the line.
+     * @param offset Offset of the line in the buffer.
+     * @param length Length of the line, without its line ending.
+     * @return true if the line contained a Mode S message, false if it was
+     * something else, e.g. a Mode A/C message.
+     * @throws IllegalArgumentException if the line is not valid AVR format.
+     */
+    public boolean parse(byte[] data, int offset, int length) {
+        message = null;
+        timestamp = -1;
+        if (length == 0) {
+            throw new IllegalArgumentException("Empty line");
+        }
+        int end = offset + length;
+        if (data[end - 1] == ';') {
+            end--;
+        }
+
+        int i = offset + 1;
+        switch (data[offset]) {
+            case '*' -> {
+                // No timestamp
+            }
+            case '@' -> {
+                if (end - i < TIMESTAMP_HEX_LENGTH) {
+                    throw new IllegalArgumentException("Line too short for timestamp");
+                }
+                timestamp = 0;
+                for (int j = 0; j < TIMESTAMP_HEX_LENGTH; j++) {
+                    timestamp = (timestamp << 4) | hexValue(data[i++]);
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown AVR line start " + (char) data[offset]);
+        }
+
+        int hexLength = end - i;
+        if (hexLength == 14) {
+            message = shortMessage;
+        } else if (hexLength == 28) {
+            message = longMessage;
+        } else if (hexLength == 4) {
+            // Mode A/C, which the Mode S decoder can't handle
+            return false;
+        } else {
+            throw new IllegalArgumentException("Invalid message length of " + hexLength + " hex characters");
+        }
+        for (int j = 0; j < message.length; j++) {
+            message[j] = (byte) ((hexValue(data[i]) << 4) | hexValue(data[i + 1]));
+            i += 2;
+        }
+        return true;
+    }
+
+    /**
+     * Get the Mode S message from the last line parsed. The array is reused by
+     * the next call to parse().
+     */
+    public byte[] getMessage() {
+        return message;
+    }
+
+    /**
+     * Get the receiver timestamp from the last line parsed, or -1 if it had
+     * none. This is a counter from the receiver's 12 MHz clock, not a time of
+     * day.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        } else if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        } else if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        throw new IllegalArgumentException("Invalid hex character " + (char) b);
+    }
+}
@@ -3,66 +3,65 @@ package com.ianrenton.planesailing.comms;
 import com.ianrenton.planesailing.app.TrackTable;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.opensky.libadsb.ModeSDecoder;
-import org.opensky.libadsb.exceptions.BadFormatException;
-import org.opensky.libadsb.exceptions.UnspecifiedFormatError;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Receiver for ADS-B & other Mode S messages, in BEAST AVR format: hexadecimal
  * encoding, asterisk and semicolon delimiters, and line breaks. (This is output
- * by Dump1090 on port 30002.)
+ * by Dump1090 on port 30002.) AVR with timestamps, where each line starts with
+ * "@" instead of an asterisk, is also supported.
  */
 public class BEASTAVRTCPClient extends TCPClient {
 
     private static final Logger LOGGER = LogManager.getLogger(BEASTAVRTCPClient.class);
-    private final ModeSDecoder decoder = new ModeSDecoder();
+    private final ModeSDecodePool decodePool;
+    private final LineFramer framer = new LineFramer(LineFramer.DEFAULT_BUFFER_SIZE);
+    private final LineFramer.LineHandler lineHandler = this::handleLine;
+    private final AVRParser parser = new AVRParser();
 
     /**
      * Create the client
      *
-     * @param name       The name of the connection.
-     * @param remoteHost Host to connect to.
-     * @param remotePort Port to connect to.
-     * @param trackTable The track table to use.
+     * @param name              The name of the connection.
+     * @param remoteHost        Host to connect to.
+     * @param remotePort        Port to connect to.
+     * @param trackTable        The track table to use.
+     * @param connectionManager The connection manager that will handle the
+     *                          connection.
+     * @param decodePool        The pool that will decode messages.
      */
-    public BEASTAVRTCPClient(String name, String remoteHost, int remotePort, TrackTable trackTable) {
-        super(name, remoteHost, remotePort, trackTable);
+    public BEASTAVRTCPClient(String name, String remoteHost, int remotePort, TrackTable trackTable,
+                             TCPConnectionManager connectionManager, ModeSDecodePool decodePool) {
+        super(name, remoteHost, remotePort, trackTable, connectionManager);
+        this.decodePool = decodePool;
     }
 
     @Override
-    protected boolean read(InputStream in) {
-        try {
-            String line = new BufferedReader(new InputStreamReader(in)).readLine();
-            if (line != null && line.length() > 2) {
-                updatePacketReceivedTime();
-                // Remove asterisk and semicolon
-                String hex = line.substring(1, line.length() - 1);
-                handle(hex);
-            }
-            return true;
-        } catch (IOException ex) {
-            getLogger().warn("Exception encountered in Receiver {}.", getType(), ex);
-            return false;
-        }
+    protected ByteBuffer getReadBuffer() {
+        return framer.getBuffer();
+    }
+
+    @Override
+    protected void dataReceived(ByteBuffer buffer) {
+        framer.process(lineHandler);
     }
 
     /**
-     * Handle a new line of ADS-B Mode S data.
-     *
-     * @param hex The Mode S packet, in hexadecimal form.
+     * Handle a new line of ADS-B Mode S data from the framer.
      */
-    private void handle(String hex) {
+    private void handleLine(byte[] data, int offset, int length) {
+        updatePacketReceivedTime();
         try {
-            BEASTBinaryTCPClient.handle(decoder.decode(hex), trackTable, name);
-        } catch (BadFormatException e) {
-            LOGGER.debug("Malformed message skipped. Message: {}", e.getMessage());
-        } catch (UnspecifiedFormatError e) {
-            LOGGER.debug("Unspecified message skipped.");
+            if (parser.parse(data, offset, length)) {
+                // The message is decoded on another thread, so it needs its own copy
+                byte[] message = parser.getMessage();
+                decodePool.submit(Arrays.copyOf(message, message.length), this);
+            }
+        } catch (IllegalArgumentException e) {
+            countDecodeError();
+            LOGGER.debug("Invalid line skipped: {}", e.getMessage());
         }
     }
 
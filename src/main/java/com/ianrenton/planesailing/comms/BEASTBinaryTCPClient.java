@@ -1,18 +1,17 @@
 package com.ianrenton.planesailing.comms;
 
 import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.app.TrackUpdate;
 import com.ianrenton.planesailing.data.Aircraft;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.opensky.libadsb.ModeSDecoder;
 import org.opensky.libadsb.Position;
-import org.opensky.libadsb.exceptions.BadFormatException;
-import org.opensky.libadsb.exceptions.UnspecifiedFormatError;
 import org.opensky.libadsb.msgs.*;
 import org.opensky.libadsb.tools;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Receiver for ADS-B & other Mode S/A/C messages, in BEAST binary format:
@@ -24,121 +23,66 @@ import java.io.InputStream;
 public class BEASTBinaryTCPClient extends TCPClient {
 
     private static final Logger LOGGER = LogManager.getLogger(BEASTBinaryTCPClient.class);
-    private static final byte ESC = (byte) 0x1a;
     private static final String COMMB_CALLSIGN_BASE64 = "@ABCDEFGHIJKLMNOPQRSTUVWXYZ[\\]^_ !\"#$%&'()*+,-./0123456789:;<=>?";
-    private static final ModeSDecoder DECODER = new ModeSDecoder();
 
     private final boolean mlat;
     private final int socketTimeoutMillis;
+    private final ModeSDecodePool decodePool;
+    private final BEASTFramer framer = new BEASTFramer(BEASTFramer.DEFAULT_BUFFER_SIZE);
+    private final BEASTFramer.FrameHandler frameHandler = this::handleFrame;
 
     /**
      * Create the client
      *
-     * @param name       The name of the connection.
-     * @param remoteHost Host to connect to.
-     * @param remotePort Port to connect to.
-     * @param trackTable The track table to use.
-     * @param mlat       true if this connection will be receiving MLAT data, false
-     *                   if it will be receiving Mode-S/ADS-B data from a local
-     *                   radio.
+     * @param name              The name of the connection.
+     * @param remoteHost        Host to connect to.
+     * @param remotePort        Port to connect to.
+     * @param trackTable        The track table to use.
+     * @param connectionManager The connection manager that will handle the
+     *                          connection.
+     * @param decodePool        The pool that will decode messages.
+     * @param mlat              true if this connection will be receiving MLAT data,
+     *                          false if it will be receiving Mode-S/ADS-B data from
+     *                          a local radio.
      */
-    public BEASTBinaryTCPClient(String name, String remoteHost, int remotePort, TrackTable trackTable, boolean mlat) {
-        super(name, remoteHost, remotePort, trackTable);
+    public BEASTBinaryTCPClient(String name, String remoteHost, int remotePort, TrackTable trackTable,
+                                TCPConnectionManager connectionManager, ModeSDecodePool decodePool, boolean mlat) {
+        super(name, remoteHost, remotePort, trackTable, connectionManager);
+        this.decodePool = decodePool;
         this.mlat = mlat;
         socketTimeoutMillis = mlat ? 600000 : 60000; // 1 min for local data, 10 min for MLAT from server
     }
 
     @Override
-    protected boolean read(InputStream in) {
-        try {
-            byte[] buffer = new byte[1000];
-            int bytesReceived = 0;
-            int i;
-            while ((i = in.read()) != -1) {
-                byte b = (byte) i;
-                if (b == ESC) {
-                    // We found an 0x1a escape character, now we need to read the next
-                    // byte to determine if it's on its own (thus a message
-                    // delimiter) or if it's followed by another, in which case it's
-                    // an escaped real 0x1a byte.
-                    byte b2 = (byte) in.read();
-                    if (b2 == ESC) {
-                        // Two 0x1a in a row isn't a delimiter, just an escaped
-                        // 0x1a, so add a single one to the buffer and keep reading
-                        buffer[bytesReceived++] = b;
-                    } else {
-                        // This was a delimiter, so extract a message, and reset
-                        // the buffer, making sure this extra character we read
-                        // goes in there. Minimum message size is Mode A/C at
-                        // 10 bytes so if it's shorter than that, skip it
-                        if (bytesReceived >= 10) {
-                            updatePacketReceivedTime();
-                            byte[] beastBytes = new byte[bytesReceived];
-                            System.arraycopy(buffer, 0, beastBytes, 0, bytesReceived);
-                            try {
-                                handle(stripHeader(beastBytes));
-                            } catch (Exception ex) {
-                                LOGGER.error("Encountered an exception when handling a BEAST binary packet.", ex);
-                            }
-                        } else {
-                            LOGGER.error("Received message too small, skipping...");
-                        }
-
-                        // Reset the buffer, and add the extra character to it
-                        buffer = new byte[1000];
-                        buffer[0] = b2;
-                        bytesReceived = 1;
-                    }
-
-                } else {
-                    // New non-delimiter byte found, add to the buffer
-                    buffer[bytesReceived++] = b;
-                }
-            }
-            return false;
-        } catch (IOException ex) {
-            getLogger().warn("Exception encountered in Receiver {}.", getType(), ex);
-            return false;
-        }
+    protected ByteBuffer getReadBuffer() {
+        return framer.getBuffer();
     }
 
-    /**
-     * <p>
-     * Remove the header data from BEAST binary format, leaving just the raw
-     * Mode-S/A/C bytes. We remove:
-     * </p>
-     * <ul>
-     * <li>Byte 0, which gives the message type (the Mode S parser will handle the
-     * message based on its length regardless)</li>
-     * <li>Bytes 1-6, which contain the timestamp (a server doing MLAT would need
-     * this but we don't care, we know the packet is "live enough")</li>
-     * <li>Byte 7, which contains the signal strength (Plane/Sailing doesn't use
-     * this)</li>
-     * </ul>
-     */
-    private static byte[] stripHeader(byte[] data) {
-        byte[] ret = new byte[data.length - 8];
-        System.arraycopy(data, 8, ret, 0, data.length - 8);
-        return ret;
+    @Override
+    protected void dataReceived(ByteBuffer buffer) {
+        framer.process(frameHandler);
     }
 
     /**
-     * Handle a new packet of ADS-B, Mode S/A/C or MLAT data.
+     * Handle a new frame of ADS-B, Mode S/A/C or MLAT data. The BEAST header
+     * (message type, timestamp and signal level) has already been removed by
+     * the framer, leaving just the raw Mode S/A/C bytes. The header isn't
+     * needed: the Mode S parser handles the message based on its length, a
+     * server doing MLAT would need the timestamp but we know the packet is
+     * "live enough", and Plane/Sailing doesn't use the signal level.
      *
-     * @param data The packet, in binary form.
+     * @param buffer The framer's buffer containing the payload.
+     * @param offset Offset of the payload in the buffer.
+     * @param length Length of the payload.
      */
-    private void handle(byte[] data) {
-        try {
-            // Modify MLAT data to look like "real" ADS-B data
-            byte[] fudgedData = fudgeMLATData(data);
-            // Handle the message
-            handle(DECODER.decode(fudgedData), trackTable, name);
-
-        } catch (BadFormatException e) {
-            LOGGER.debug("Malformed message skipped. Message: {}", e.getMessage());
-        } catch (UnspecifiedFormatError e) {
-            LOGGER.debug("Unspecified message skipped.");
+    private void handleFrame(byte[] buffer, int offset, int length) {
+        updatePacketReceivedTime();
+        if (length < 7) {
+            // Mode A/C, which the Mode S decoder can't handle
+            return;
         }
+        // The frame is decoded on another thread, so it needs its own copy
+        decodePool.submit(Arrays.copyOfRange(buffer, offset, offset + length), this);
     }
 
     /**
@@ -148,8 +92,10 @@ public class BEASTBinaryTCPClient extends TCPClient {
      * format 18, first field 2 is decodable. Before we decode the message, we check
      * for this case and set the first field to zero, making MLAT look just like a
      * "real" directly received ADS-B message.
+     * <p>
+     * Package-private and static so that the decode pool can use it.
      */
-    private byte[] fudgeMLATData(byte[] data) {
+    static byte[] fudgeMLATData(byte[] data) {
         byte tmp = data[0];
         byte firstField = (byte) (tmp & 0x7);
         byte downlinkFormat = (byte) (tmp >>> 3 & 0x1F);
@@ -164,24 +110,27 @@ public class BEASTBinaryTCPClient extends TCPClient {
      * Handle a new line of ADS-B Mode S data. Based on
      * <a href="https://github.com/openskynetwork/java-adsb/blob/master/src/main/java/org/opensky/example/ExampleDecoder.java">...</a>
      * <p>
-     * Package-private and static so that BEASTAVRTCPClient can use it as well.
+     * The data is extracted into a track update, which is submitted to the
+     * track table to be applied in the background.
+     * <p>
+     * Package-private and static so that the decode pool can use it for all
+     * Mode S receivers.
      *
      * @param msg        The Mode S packet
+     * @param decoder    The decoder that decoded the packet, which holds the
+     *                   previous position messages for CPR decoding
      * @param trackTable The track table to use
-     * @param name       The name of this connection. Used only for logging.
+     * @param client     The client that received the packet. Used for logging
+     *                   and statistics.
      */
-    static void handle(ModeSReply msg, TrackTable trackTable, String name) {
+    static void handle(ModeSReply msg, ModeSDecoder decoder, TrackTable trackTable, Client client) {
         try {
             // Get the ICAO 24-bit hex code
             String icao24 = tools.toHexString(msg.getIcao24());
 
-            // If this is a new track, add it to the track table
-            if (!trackTable.containsKey(icao24)) {
-                trackTable.put(icao24, new Aircraft(icao24));
-            }
-
-            // Extract the data and update the track
-            Aircraft a = (Aircraft) trackTable.get(icao24);
+            // Start an update for the track. If this is a new track, it will be added
+            // to the track table when the update is applied.
+            TrackUpdate.Builder<Aircraft> u = TrackUpdate.builder(icao24, Aircraft.class, Aircraft::new, client);
 
             // now check the message type / downlink format, and unpack data as necessary.
             switch (msg.getType()) {
@@ -196,23 +145,24 @@ public class BEASTBinaryTCPClient extends TCPClient {
                     // accurate and will only work for planes within 180 nmi of the base station,
                     // but should be good enough to get us some kind of position rather than having
                     // it blank in the track table and no icon shown.
-                    Position airPos = DECODER.decodePosition(System.currentTimeMillis(), ap0,
+                    Position airPos = decoder.decodePosition(System.currentTimeMillis(), ap0,
                             trackTable.getBaseStationPosition());
                     Position localPos = ap0.getLocalPosition(trackTable.getBaseStationPosition());
                     if (airPos != null) {
-                        a.addPosition(airPos.getLatitude(), airPos.getLongitude());
+                        u.position(airPos.getLatitude(), airPos.getLongitude());
                     } else if (localPos != null) {
-                        a.addPosition(localPos.getLatitude(), localPos.getLongitude());
+                        u.position(localPos.getLatitude(), localPos.getLongitude());
                     }
 
                     // Get an altitude, this could be barometric or geometric but Plane/Sailing
                     // doesn't really care
                     if (ap0.hasAltitude()) {
-                        a.setAltitude(ap0.getAltitude().doubleValue());
+                        double altitude = ap0.getAltitude().doubleValue();
+                        u.set("altitude", a -> a.setAltitude(altitude));
                     }
 
                     // Got this message so we know this is airborne
-                    a.setOnGround(false);
+                    u.set("onGround", a -> a.setOnGround(false));
                     break;
 
                 case ADSB_SURFACE_POSITION_V0:
@@ -226,47 +176,52 @@ public class BEASTBinaryTCPClient extends TCPClient {
                     // accurate and will only work for planes within 180 nmi of the base station,
                     // but should be good enough to get us some kind of position rather than having
                     // it blank in the track table and no icon shown.
-                    Position surPos = DECODER.decodePosition(System.currentTimeMillis(), sp0,
+                    Position surPos = decoder.decodePosition(System.currentTimeMillis(), sp0,
                             trackTable.getBaseStationPosition());
                     Position localPos2 = sp0.getLocalPosition(trackTable.getBaseStationPosition());
                     if (surPos != null) {
-                        a.addPosition(surPos.getLatitude(), surPos.getLongitude());
+                        u.position(surPos.getLatitude(), surPos.getLongitude());
                     } else if (localPos2 != null) {
-                        a.addPosition(localPos2.getLatitude(), localPos2.getLongitude());
+                        u.position(localPos2.getLatitude(), localPos2.getLongitude());
                     }
 
                     if (sp0.hasGroundSpeed()) {
-                        a.setSpeed(sp0.getGroundSpeed());
+                        double speed = sp0.getGroundSpeed();
+                        u.set("speed", a -> a.setSpeed(speed));
                     }
 
                     // We can approximate heading as course here, I suppose unless the aircraft
                     // is being pushed?
                     if (sp0.hasValidHeading()) {
-                        a.setHeading(sp0.getHeading());
-                        a.setCourse(sp0.getHeading());
+                        double heading = sp0.getHeading();
+                        u.set("heading", a -> a.setHeading(heading));
+                        u.set("course", a -> a.setCourse(heading));
                     }
 
                     // Got this message so we know this is on the ground
-                    a.setOnGround(true);
-                    a.setAltitude(0.0);
+                    u.set("onGround", a -> a.setOnGround(true));
+                    u.set("altitude", a -> a.setAltitude(0.0));
                     break;
 
                 case ADSB_AIRSPEED:
                     AirspeedHeadingMsg airspeed = (AirspeedHeadingMsg) msg;
 
                     if (airspeed.hasAirspeedInfo()) {
-                        a.setSpeed(airspeed.getAirspeed().doubleValue());
+                        double speed = airspeed.getAirspeed().doubleValue();
+                        u.set("speed", a -> a.setSpeed(speed));
                     }
 
                     // Might as well approximate heading as course here,
                     // in lieu of any other source
                     if (airspeed.hasHeadingStatusFlag()) {
-                        a.setHeading(airspeed.getHeading());
-                        a.setCourse(airspeed.getHeading());
+                        double heading = airspeed.getHeading();
+                        u.set("heading", a -> a.setHeading(heading));
+                        u.set("course", a -> a.setCourse(heading));
                     }
 
                     if (airspeed.hasVerticalRateInfo()) {
-                        a.setVerticalRate(Double.valueOf(airspeed.getVerticalRate()));
+                        Double verticalRate = Double.valueOf(airspeed.getVerticalRate());
+                        u.set("verticalRate", a -> a.setVerticalRate(verticalRate));
                     }
                     break;
 
@@ -274,76 +229,91 @@ public class BEASTBinaryTCPClient extends TCPClient {
                     VelocityOverGroundMsg veloc = (VelocityOverGroundMsg) msg;
 
                     if (veloc.hasVelocityInfo()) {
-                        a.setSpeed(veloc.getVelocity());
+                        double speed = veloc.getVelocity();
+                        u.set("speed", a -> a.setSpeed(speed));
                     }
 
                     // Might as well approximate heading as course here,
                     // in lieu of any other source
                     if (veloc.hasVelocityInfo()) {
-                        a.setHeading(veloc.getHeading());
-                        a.setCourse(veloc.getHeading());
+                        double heading = veloc.getHeading();
+                        u.set("heading", a -> a.setHeading(heading));
+                        u.set("course", a -> a.setCourse(heading));
                     }
 
                     if (veloc.hasVerticalRateInfo()) {
-                        a.setVerticalRate(Double.valueOf(veloc.getVerticalRate()));
+                        Double verticalRate = Double.valueOf(veloc.getVerticalRate());
+                        u.set("verticalRate", a -> a.setVerticalRate(verticalRate));
                     }
                     break;
 
                 case ADSB_IDENTIFICATION:
                     IdentificationMsg ident = (IdentificationMsg) msg;
 
-                    a.setCallsign(new String(ident.getIdentity()));
-                    a.setCategory(getICAOCategoryFromIdentMsg(ident));
+                    String callsign = new String(ident.getIdentity());
+                    String category = getICAOCategoryFromIdentMsg(ident);
+                    u.set("callsign", a -> a.setCallsign(callsign));
+                    u.set("category", a -> a.setCategory(category));
                     break;
 
                 case SHORT_ACAS:
                     ShortACAS acas = (ShortACAS) msg;
                     if (acas.getAltitude() != null) {
-                        a.setAltitude(acas.getAltitude().doubleValue());
-                        a.setOnGround(!acas.isAirborne());
+                        double altitude = acas.getAltitude().doubleValue();
+                        boolean onGround = !acas.isAirborne();
+                        u.set("altitude", a -> a.setAltitude(altitude));
+                        u.set("onGround", a -> a.setOnGround(onGround));
                     }
                     break;
 
                 case ALTITUDE_REPLY:
                     AltitudeReply alti = (AltitudeReply) msg;
                     if (alti.getAltitude() != null) {
-                        a.setAltitude(alti.getAltitude().doubleValue());
-                        a.setOnGround(alti.isOnGround());
+                        double altitude = alti.getAltitude().doubleValue();
+                        boolean onGround = alti.isOnGround();
+                        u.set("altitude", a -> a.setAltitude(altitude));
+                        u.set("onGround", a -> a.setOnGround(onGround));
                     }
                     break;
 
                 case IDENTIFY_REPLY:
                     IdentifyReply identify = (IdentifyReply) msg;
-                    a.setSquawk(Integer.parseInt(identify.getIdentity()));
+                    int squawk = Integer.parseInt(identify.getIdentity());
+                    u.set("squawk", a -> a.setSquawk(squawk));
                     break;
 
                 case LONG_ACAS:
                     LongACAS long_acas = (LongACAS) msg;
                     if (long_acas.getAltitude() != null) {
-                        a.setAltitude(long_acas.getAltitude().doubleValue());
-                        a.setOnGround(!long_acas.isAirborne());
+                        double altitude = long_acas.getAltitude().doubleValue();
+                        boolean onGround = !long_acas.isAirborne();
+                        u.set("altitude", a -> a.setAltitude(altitude));
+                        u.set("onGround", a -> a.setOnGround(onGround));
                     }
                     break;
 
                 case COMM_B_ALTITUDE_REPLY:
                     CommBAltitudeReply commBaltitude = (CommBAltitudeReply) msg;
                     if (commBaltitude.getAltitude() != null) {
-                        a.setAltitude(commBaltitude.getAltitude().doubleValue());
-                        a.setOnGround(commBaltitude.isOnGround());
+                        double altitude = commBaltitude.getAltitude().doubleValue();
+                        boolean onGround = commBaltitude.isOnGround();
+                        u.set("altitude", a -> a.setAltitude(altitude));
+                        u.set("onGround", a -> a.setOnGround(onGround));
                     }
                     // libadsb doesn't handle the Comm-B message contents yet apart from
                     // the header value covered above, so we must implement our own
                     // handling for this.
-                    handleCommBMessage(msg, a);
+                    handleCommBMessage(msg, u);
                     break;
 
                 case COMM_B_IDENTIFY_REPLY:
                     CommBIdentifyReply commBidentify = (CommBIdentifyReply) msg;
-                    a.setSquawk(Integer.parseInt(commBidentify.getIdentity()));
+                    int commBSquawk = Integer.parseInt(commBidentify.getIdentity());
+                    u.set("squawk", a -> a.setSquawk(commBSquawk));
                     // libadsb doesn't handle the Comm-B message contents yet apart from
                     // the header value covered above, so we must implement our own
                     // handling for this.
-                    handleCommBMessage(msg, a);
+                    handleCommBMessage(msg, u);
                     break;
 
                 case MODES_REPLY:
@@ -377,10 +347,11 @@ public class BEASTBinaryTCPClient extends TCPClient {
                 default:
                     // Type not applicable for this downlink format
             }
-            a.updateMetadataTime();
+            u.updateMetadataTime();
+            trackTable.submit(u.build());
 
         } catch (Exception ex) {
-            LOGGER.warn("Receiver {} encountered an exception handling a Mode S packet", name, ex);
+            LOGGER.warn("Receiver {} encountered an exception handling a Mode S packet", client.getName(), ex);
         }
     }
 
@@ -390,9 +361,9 @@ public class BEASTBinaryTCPClient extends TCPClient {
      * Currently only very basic decoding is supported, e.g. aircraft callsign.
      *
      * @param msg The message
-     * @param a   The aircraft to update
+     * @param u   The update to the aircraft
      */
-    private static void handleCommBMessage(ModeSReply msg, Aircraft a) {
+    private static void handleCommBMessage(ModeSReply msg, TrackUpdate.Builder<Aircraft> u) {
         byte[] commBMessage = new byte[0];
         if (msg instanceof CommBIdentifyReply) {
             commBMessage = ((CommBIdentifyReply) msg).getMessage();
@@ -418,8 +389,12 @@ public class BEASTBinaryTCPClient extends TCPClient {
                 // only handle it if it looks valid, and only use it if the
                 // track doesn't already have a callsign set by ADS-B which is
                 // more reliable.
-                if (!callsign.isEmpty() && callsign.matches("[a-zA-z0-9]*") && a.getCallsign() == null) {
-                    a.setCallsign(callsign);
+                if (!callsign.isEmpty() && callsign.matches("[a-zA-z0-9]*")) {
+                    u.set("commBCallsign", a -> {
+                        if (a.getCallsign() == null) {
+                            a.setCallsign(callsign);
+                        }
+                    });
                 }
             } else {
                 // Another type of Comm-B message, not handled currently
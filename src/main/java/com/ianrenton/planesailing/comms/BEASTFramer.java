@@ -0,0 +1,153 @@
+package com.ianrenton.planesailing.comms;
+
+/**
+ * Splits a stream of BEAST binary data into frames. Any escaped 0x1a bytes in
+ * each frame are unescaped in place before it is passed on.
+ * <p>
+ * Each BEAST frame is a 0x1a delimiter, a type byte, a six byte timestamp, a
+ * signal level byte, then the Mode A/C or Mode S payload, whose length depends
+ * on the type. Any 0x1a byte after the delimiter is sent twice.
+ */
+public class BEASTFramer extends Framer {
+
+    /**
+     * Receives frames found by the framer.
+     */
+    public interface FrameHandler {
+
+        /**
+         * Handle one frame. The data is only valid for the duration of the call,
+         * as the framer reuses its buffer.
+         *
+         * @param data   Buffer containing the unescaped payload.
+         * @param offset Offset of the payload in the buffer.
+         * @param length Length of the payload: 2 for Mode A/C, 7 for short Mode S
+         *               or 14 for long Mode S.
+         */
+        void frame(byte[] data, int offset, int length);
+    }
+
+    private static final byte ESC = (byte) 0x1a;
+    // Type byte, six timestamp bytes and one signal level byte
+    private static final int HEADER_LENGTH = 8;
+
+    private long framesFound;
+    private long bytesDiscarded;
+
+    /**
+     * Create the framer
+     *
+     * @param bufferSize Size of the read buffer in bytes.
+     */
+    public BEASTFramer(int bufferSize) {
+        super(bufferSize);
+    }
+
+    /**
+     * Pass every complete frame in the buffer to the handler, then keep any
+     * leftover data ready for the next read.
+     */
+    public void process(FrameHandler handler) {
+        byte[] a = buffer.array();
+        int p = dataStart();
+        int limit = dataEnd();
+
+        while (p < limit) {
+            // Find the start of a frame
+            if (a[p] != ESC) {
+                int start = p;
+                while (p < limit && a[p] != ESC) {
+                    p++;
+                }
+                bytesDiscarded += p - start;
+                continue;
+            }
+            if (limit - p < 2) {
+                break;
+            }
+            int payloadLength = payloadLength(a[p + 1]);
+            if (payloadLength < 0) {
+                // Either an escaped 0x1a from the middle of a frame we joined
+                // part way through, or a frame type we don't use. Skip it and
+                // look for the next delimiter.
+                bytesDiscarded += 2;
+                p += 2;
+                continue;
+            }
+
+            // First pass, check the whole frame has arrived
+            int frameLength = HEADER_LENGTH + payloadLength;
+            int r = p + 2;
+            int n = 1;
+            boolean truncated = false;
+            while (n < frameLength && r < limit) {
+                if (a[r] == ESC) {
+                    if (r + 1 >= limit) {
+                        break;
+                    }
+                    if (a[r + 1] != ESC) {
+                        // A lone 0x1a is the start of the next frame, so this one
+                        // was cut short
+                        truncated = true;
+                        break;
+                    }
+                    r += 2;
+                } else {
+                    r++;
+                }
+                n++;
+            }
+            if (truncated) {
+                bytesDiscarded += r - p;
+                p = r;
+                continue;
+            }
+            if (n < frameLength) {
+                // Wait for the rest of the frame
+                break;
+            }
+
+            // Second pass, unescape in place. The write position never overtakes
+            // the read position, so this is safe.
+            int w = p + 2;
+            r = p + 2;
+            for (int i = 1; i < frameLength; i++) {
+                a[w++] = a[r];
+                r += (a[r] == ESC) ? 2 : 1;
+            }
+            framesFound++;
+            handler.frame(a, p + 1 + HEADER_LENGTH, payloadLength);
+            p = r;
+        }
+
+        keepFrom(p);
+    }
+
+    /**
+     * Get the number of frames found since the framer was created.
+     */
+    public long getFramesFound() {
+        return framesFound;
+    }
+
+    /**
+     * Get the number of bytes thrown away since the framer was created, because
+     * they were not part of a complete frame of a known type.
+     */
+    public long getBytesDiscarded() {
+        return bytesDiscarded;
+    }
+
+    /**
+     * Get the payload length for a frame type, or -1 if the type is not one we
+     * handle.
+     */
+    private static int payloadLength(byte type) {
+        return switch (type) {
+            case '1' -> 2;
+            case '2' -> 7;
+            case '3' -> 14;
+            default -> -1;
+        };
+    }
+}
@@ -1,14 +1,30 @@
 package com.ianrenton.planesailing.comms;
 
 import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.app.TrackUpdate;
+import com.ianrenton.planesailing.utils.Histogram;
 import org.apache.logging.log4j.Logger;
 
-public abstract class Client {
+import java.util.concurrent.atomic.LongAdder;
+
+public abstract class Client implements TrackUpdate.Listener {
 
     protected final String name;
     protected final TrackTable trackTable;
     protected boolean online;
     protected long lastReceivedTime;
+    private volatile FeedRecorder recorder;
+
+    // Statistics, exported as metrics so we can see which receivers are busy or failing
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder messagesDecoded = new LongAdder();
+    private final LongAdder decodeErrors = new LongAdder();
+    private final LongAdder messagesDropped = new LongAdder();
+    private final LongAdder duplicatesSuppressed = new LongAdder();
+    private final LongAdder positionsRejected = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final Histogram decodeLatency = new Histogram(Histogram.LATENCY_BUCKETS_SEC);
+    private final Histogram trackUpdateLatency = new Histogram(Histogram.LATENCY_BUCKETS_SEC);
 
     public Client(String name, TrackTable trackTable) {
         this.name = name;
@@ -53,10 +69,153 @@ public abstract class Client {
 
     /**
      * Means for implementations to update the "last received time" so
-     * we know packets are arriving.
+     * we know packets are arriving. Also counts the received message.
      */
     protected void updatePacketReceivedTime() {
         lastReceivedTime = System.currentTimeMillis();
+        messagesReceived.increment();
+    }
+
+    /**
+     * Set a recorder to capture the raw data this client receives, or null to
+     * stop recording.
+     */
+    public void setRecorder(FeedRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Get the recorder capturing this client's raw data, or null if it isn't
+     * being recorded.
+     */
+    public FeedRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Pass raw data received by this client to its recorder, if it has one.
+     * Implementations should call this with data exactly as it is received,
+     * in the same chunks that {@link #replay(byte[], int, int)} expects.
+     */
+    protected void record(byte[] data, int offset, int length) {
+        FeedRecorder r = recorder;
+        if (r != null) {
+            r.record(data, offset, length);
+        }
+    }
+
+    /**
+     * Handle a chunk of raw data recorded earlier, as if it had just been
+     * received. Called by a {@link ReplayClient} instead of running this
+     * client, so this client is never connected to anything.
+     *
+     * @throws UnsupportedOperationException if this type of client can't be
+     *                                       replayed.
+     */
+    protected void replay(byte[] data, int offset, int length) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support replay");
+    }
+
+    /**
+     * Count bytes read from the network or file.
+     */
+    protected void countBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * Count a message that was successfully decoded, where the time taken to
+     * decode it wasn't measured.
+     */
+    protected void countMessageDecoded() {
+        messagesDecoded.increment();
+    }
+
+    /**
+     * Count a message that was successfully decoded, and record the time taken.
+     *
+     * @param startNanos System.nanoTime() when decoding started.
+     */
+    protected void countMessageDecoded(long startNanos) {
+        decodeLatency.observeSince(startNanos);
+        messagesDecoded.increment();
+    }
+
+    /**
+     * Count a message that could not be decoded.
+     */
+    protected void countDecodeError() {
+        decodeErrors.increment();
+    }
+
+    /**
+     * Count messages that were received but thrown away without being decoded,
+     * e.g. parts of a multipart message whose other parts never arrived.
+     */
+    protected void countMessagesDropped(long count) {
+        messagesDropped.add(count);
+    }
+
+    /**
+     * Count a message that was thrown away without being decoded because an
+     * identical one had just been received, usually from another feeder.
+     */
+    protected void countDuplicateSuppressed() {
+        duplicatesSuppressed.increment();
+    }
+
+    /**
+     * Count a position from this client's track updates that was rejected as
+     * unreasonable.
+     */
+    @Override
+    public void positionRejected() {
+        positionsRejected.increment();
+    }
+
+    /**
+     * Record the time taken from this client creating a track update to it
+     * being applied to the track table.
+     */
+    @Override
+    public void updateApplied(long createdNanos) {
+        trackUpdateLatency.observeSince(createdNanos);
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    public long getMessagesDecoded() {
+        return messagesDecoded.sum();
+    }
+
+    public long getDecodeErrors() {
+        return decodeErrors.sum();
+    }
+
+    public long getMessagesDropped() {
+        return messagesDropped.sum();
+    }
+
+    public long getDuplicatesSuppressed() {
+        return duplicatesSuppressed.sum();
+    }
+
+    public long getPositionsRejected() {
+        return positionsRejected.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public Histogram getDecodeLatency() {
+        return decodeLatency;
+    }
+
+    public Histogram getTrackUpdateLatency() {
+        return trackUpdateLatency;
     }
 
     /**
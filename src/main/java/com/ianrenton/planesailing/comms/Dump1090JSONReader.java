@@ -1,51 +1,100 @@
 package com.ianrenton.planesailing.comms;
 
 import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.app.TrackUpdate;
+import com.ianrenton.planesailing.comms.JSONTokenizer.Token;
 import com.ianrenton.planesailing.data.Aircraft;
 import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.json.JSONArray;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Reader for the aircraft.json file produced by dump1090 and readsb, from a web
+ * server or a local file. The file is polled regularly, but only read if it has
+ * changed, using conditional HTTP requests or the file's modification time.
+ * It is read with a streaming tokenizer rather than parsed into a tree, and
+ * aircraft that haven't been heard from since the last poll are skipped.
+ * <p>
+ * All readers share one scheduling thread and one asynchronous HTTP client, so
+ * polling several servers doesn't need a thread each and they are polled at the
+ * same time rather than one after another.
+ */
 public class Dump1090JSONReader extends Client {
     private static final Logger LOGGER = LogManager.getLogger(Dump1090JSONReader.class);
     private static final int QUERY_INTERVAL_MS = 5000;
-    private URL url;
-    private transient final ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1,
-            new BasicThreadFactory.Builder().namingPattern(name + " client").build());
-    @SuppressWarnings("rawtypes")
-    private transient ScheduledFuture readerTask;
+    // Marks an aircraft whose changes can't be tracked, because it has no message count or last seen time
+    private static final long UNKNOWN_CHANGE = Long.MIN_VALUE;
+    private URI uri;
+    private Path path;
+    private transient ScheduledFuture<?> readerTask;
+    // Set while a poll is in progress, so a slow server doesn't build up a backlog of requests
+    private final AtomicBoolean polling = new AtomicBoolean();
+
+    // State used by polls. Only one poll runs at a time, and the polling flag
+    // makes each one's changes visible to the next, whichever thread it is on.
+    private final JSONTokenizer tokenizer = new JSONTokenizer();
+    private final AircraftFields ac = new AircraftFields();
+    private Map<String, Long> lastChanges = new HashMap<>();
+    private String etag;
+    private String lastModified;
+    private long fileLastModified;
 
     public Dump1090JSONReader(String name, String url, TrackTable trackTable) {
         super(name, trackTable);
         try {
-            this.url = new URL(url);
-        } catch (MalformedURLException e) {
+            this.uri = new URI(url);
+            if ("file".equalsIgnoreCase(uri.getScheme())) {
+                path = Path.of(uri);
+            }
+        } catch (URISyntaxException | IllegalArgumentException e) {
             LOGGER.error("{} is an invalid URL, {} client could not be created!", url, name);
         }
     }
 
     @Override
     public void run() {
+        if (uri == null) {
+            return;
+        }
         online = true;
-        readerTask = scheduledExecutorService.scheduleWithFixedDelay(new ReaderTask(), 0,
-                QUERY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        readerTask = Shared.SCHEDULER.scheduleWithFixedDelay(this::poll, 0, QUERY_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void stop() {
         online = false;
-        readerTask.cancel(true);
+        if (readerTask != null) {
+            readerTask.cancel(false);
+        }
+    }
+
+    /**
+     * Handle a recorded aircraft.json document as if it had just been polled.
+     */
+    @Override
+    protected void replay(byte[] data, int offset, int length) {
+        handleDocument(Arrays.copyOfRange(data, offset, offset + length));
     }
 
     @Override
@@ -64,135 +113,386 @@ public class Dump1090JSONReader extends Client {
     }
 
     /**
-     * Inner reader task. Queries the JSON file and updates the internal data store.
+     * Start a poll of the file, unless the last one is still going. This runs
+     * on the shared scheduling thread, so it only starts the work, which is
+     * done on another thread.
      */
-    private class ReaderTask implements Runnable {
-
-        public void run() {
-            try {
-                // Read in complete JSON file
-                BufferedReader in = new BufferedReader(new InputStreamReader(url.openStream()));
-                StringBuilder json = new StringBuilder();
-                String inputLine;
-                while ((inputLine = in.readLine()) != null) {
-                    json.append(inputLine);
-                }
-                in.close();
-                JSONObject o = new JSONObject(json.toString());
-                updatePacketReceivedTime();
-
-                // Extract data
-                JSONArray acList = o.getJSONArray("aircraft");
-                if (acList != null) {
-                    for (int i = 0; i < acList.length(); i++) {
-                        try {
-                            JSONObject ac = acList.getJSONObject(i);
-
-                            // Get the ICAO 24-bit hex code
-                            String icao24 = ac.getString("hex");
-
-                            // If this is a new track, add it to the track table
-                            if (!trackTable.containsKey(icao24)) {
-                                trackTable.put(icao24, new Aircraft(icao24));
-                            }
-
-                            // Extract the data and update the track
-                            Aircraft a = (Aircraft) trackTable.get(icao24);
-                            if (ac.has("flight") && !ac.getString("flight").isEmpty()) {
-                                a.setCallsign(ac.getString("flight").trim());
-                            }
-                            if (ac.has("squawk") && !ac.getString("squawk").isEmpty()) {
-                                a.setSquawk(Integer.parseInt(ac.getString("squawk")));
-                            }
-                            if (ac.has("category") && !ac.getString("category").isEmpty()) {
-                                a.setCategory(ac.getString("category").trim());
-                            }
-                            if (ac.has("lat") && ac.has("lon")) {
-                                if (ac.has("pos_seen")) {
-                                    long time = System.currentTimeMillis() - Math.round(ac.getDouble("pos_seen") * 1000);
-                                    a.addPosition(ac.getDouble("lat"), ac.getDouble("lon"), time);
-                                } else if (ac.has("seen")) {
-                                    long time = System.currentTimeMillis() - Math.round(ac.getDouble("seen") * 1000);
-                                    a.addPosition(ac.getDouble("lat"), ac.getDouble("lon"), time);
-                                } else {
-                                    a.addPosition(ac.getDouble("lat"), ac.getDouble("lon"));
-                                }
-                            }
-                            if (ac.has("alt_baro")) {
-                                if (ac.get("alt_baro") instanceof String && ac.getString("alt_baro").equals("ground")) {
-                                    a.setAltitude(0.0);
-                                    a.setOnGround(true);
-                                } else {
-                                    a.setAltitude(ac.getDouble("alt_baro"));
-                                    a.setOnGround(false);
-                                }
-                            } else if (ac.has("alt_geom")) {
-                                if (ac.get("alt_geom") instanceof String && ac.getString("alt_geom").equals("ground")) {
-                                    a.setAltitude(0.0);
-                                    a.setOnGround(true);
-                                } else {
-                                    a.setAltitude(ac.getDouble("alt_geom"));
-                                    a.setOnGround(false);
-                                }
-                            } else if (ac.has("nav_altitude_mcp")) {
-                                if (ac.get("nav_altitude_mcp") instanceof String && ac.getString("nav_altitude_mcp").equals("ground")) {
-                                    a.setAltitude(0.0);
-                                    a.setOnGround(true);
-                                } else {
-                                    a.setAltitude(ac.getDouble("nav_altitude_mcp"));
-                                    a.setOnGround(false);
-                                }
-                            }
-                            if (ac.has("baro_rate")) {
-                                a.setVerticalRate(ac.getDouble("baro_rate") / 60.0);
-                            } else if (ac.has("geom_rate")) {
-                                a.setVerticalRate(ac.getDouble("geom_rate") / 60.0);
-                            }
-                            if (ac.has("track")) {
-                                a.setCourse(ac.getDouble("track"));
-                            } else if (ac.has("true_heading")) {
-                                a.setCourse(ac.getDouble("true_heading"));
-                            } else if (ac.has("mag_heading")) {
-                                a.setCourse(ac.getDouble("mag_heading"));
-                            } else if (ac.has("nav_heading")) {
-                                a.setCourse(ac.getDouble("nav_heading"));
-                            }
-                            if (ac.has("true_heading")) {
-                                a.setHeading(ac.getDouble("true_heading"));
-                            } else if (ac.has("mag_heading")) {
-                                a.setHeading(ac.getDouble("mag_heading"));
-                            } else if (ac.has("nav_heading")) {
-                                a.setHeading(ac.getDouble("nav_heading"));
-                            } else if (ac.has("track")) {
-                                a.setHeading(ac.getDouble("track"));
-                            }
-                            if (ac.has("gs")) {
-                                a.setSpeed(ac.getDouble("gs"));
-                            } else if (ac.has("tas")) {
-                                a.setSpeed(ac.getDouble("tas"));
-                            } else if (ac.has("ias")) {
-                                a.setSpeed(ac.getDouble("ias"));
-                            } else if (ac.has("mach")) {
-                                a.setSpeed(ac.getDouble("mach") * 666.739);
-                            }
-                            if (ac.has("pos_seen")) {
-                                long time = System.currentTimeMillis() - Math.round(ac.getDouble("pos_seen") * 1000);
-                                a.updateMetadataTime(time);
-                            } else if (ac.has("seen")) {
-                                long time = System.currentTimeMillis() - Math.round(ac.getDouble("seen") * 1000);
-                                a.updateMetadataTime(time);
-                            } else {
-                                a.updateMetadataTime();
-                            }
-                        } catch (Exception e) {
-                            LOGGER.error("Exception reading data for an aircraft", e);
+    private void poll() {
+        if (!polling.compareAndSet(false, true)) {
+            LOGGER.debug("Previous poll of {} still in progress, skipping", uri);
+            return;
+        }
+        CompletableFuture<Void> f;
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase();
+        if (path != null) {
+            f = CompletableFuture.runAsync(this::pollFile);
+        } else if (scheme.equals("http") || scheme.equals("https")) {
+            f = pollHTTP();
+        } else {
+            f = CompletableFuture.runAsync(this::pollOther);
+        }
+        f.whenComplete((v, ex) -> {
+            if (ex != null) {
+                LOGGER.error("Exception reading Dump1090 JSON data on connection {}", name, ex);
+            }
+            polling.set(false);
+        });
+    }
+
+    /**
+     * Request the file from a web server, only receiving it if it has changed
+     * since last time.
+     */
+    private CompletableFuture<Void> pollHTTP() {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(Duration.ofMillis(QUERY_INTERVAL_MS)).GET();
+        if (etag != null) {
+            request.header("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            request.header("If-Modified-Since", lastModified);
+        }
+        return Shared.HTTP_CLIENT.sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray())
+                .thenAccept(response -> {
+                    if (response.statusCode() == 304) {
+                        // Not modified, but the server is still there
+                        lastReceivedTime = System.currentTimeMillis();
+                        return;
+                    }
+                    if (response.statusCode() != 200) {
+                        LOGGER.warn("{} returned HTTP status {}", uri, response.statusCode());
+                        return;
+                    }
+                    // Only remember the version if it was read successfully, otherwise the server
+                    // might keep saying it hasn't changed
+                    if (handleDocument(response.body())) {
+                        etag = response.headers().firstValue("ETag").orElse(null);
+                        lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+                    } else {
+                        etag = null;
+                        lastModified = null;
+                    }
+                });
+    }
+
+    /**
+     * Read a local file, if it has been modified since last time.
+     */
+    private void pollFile() {
+        try {
+            long modified = Files.getLastModifiedTime(path).toMillis();
+            if (modified == fileLastModified) {
+                lastReceivedTime = System.currentTimeMillis();
+                return;
+            }
+            byte[] data = Files.readAllBytes(path);
+            fileLastModified = handleDocument(data) ? modified : 0;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Read the file from a URL type that doesn't support checking for changes.
+     */
+    private void pollOther() {
+        try (InputStream in = uri.toURL().openStream()) {
+            handleDocument(in.readAllBytes());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Read a complete aircraft.json document, and submit track updates for
+     * each aircraft that has changed.
+     *
+     * @return false if the document was invalid.
+     */
+    private boolean handleDocument(byte[] data) {
+        // Recorded here so that documents are captured however they were polled
+        record(data, 0, data.length);
+        countBytesRead(data.length);
+        updatePacketReceivedTime();
+        long decodeStart = System.nanoTime();
+        Map<String, Long> changes = new HashMap<>(Math.max(16, lastChanges.size() * 2));
+        int total = 0;
+        int unchanged = 0;
+        try {
+            tokenizer.reset(data, 0, data.length);
+            if (tokenizer.next() != Token.START_OBJECT) {
+                throw new IllegalArgumentException("Document is not a JSON object");
+            }
+            // Time the file was written, in seconds since the epoch
+            double now = Double.NaN;
+            while (tokenizer.next() == Token.NAME) {
+                if (tokenizer.textEquals("now")) {
+                    now = readNumber();
+                } else if (tokenizer.textEquals("aircraft") && tokenizer.next() == Token.START_ARRAY) {
+                    while (tokenizer.next() == Token.START_OBJECT) {
+                        readAircraft();
+                        total++;
+                        if (!handleAircraft(now, changes)) {
+                            unchanged++;
                         }
                     }
+                } else {
+                    tokenizer.skipValue();
+                }
+            }
+            countMessageDecoded(decodeStart);
+        } catch (IllegalArgumentException ex) {
+            countDecodeError();
+            LOGGER.error("Invalid Dump1090 JSON data on connection {}", name, ex);
+            return false;
+        }
+        lastChanges = changes;
+        LOGGER.debug("Read {} aircraft from {}, {} unchanged", total, uri, unchanged);
+        return true;
+    }
+
+    /**
+     * Read the fields we use from one aircraft object, skipping the rest.
+     */
+    private void readAircraft() {
+        ac.reset();
+        Token t;
+        while ((t = tokenizer.next()) == Token.NAME) {
+            if (tokenizer.textEquals("hex")) {
+                ac.hex = readString();
+            } else if (tokenizer.textEquals("flight")) {
+                ac.flight = readString();
+            } else if (tokenizer.textEquals("squawk")) {
+                ac.squawk = readString();
+            } else if (tokenizer.textEquals("category")) {
+                ac.category = readString();
+            } else if (tokenizer.textEquals("lat")) {
+                ac.lat = readNumber();
+            } else if (tokenizer.textEquals("lon")) {
+                ac.lon = readNumber();
+            } else if (tokenizer.textEquals("seen")) {
+                ac.seen = readNumber();
+            } else if (tokenizer.textEquals("seen_pos") || tokenizer.textEquals("pos_seen")) {
+                ac.posSeen = readNumber();
+            } else if (tokenizer.textEquals("messages")) {
+                ac.messages = readNumber();
+            } else if (tokenizer.textEquals("alt_baro")) {
+                // Either a number, or "ground"
+                if (tokenizer.next() == Token.STRING) {
+                    ac.altBaroGround = tokenizer.textEquals("ground");
+                } else if (tokenizer.getToken() == Token.NUMBER) {
+                    ac.altBaro = tokenizer.getDouble();
+                } else {
+                    tokenizer.skipValue();
                 }
-            } catch (Throwable e) {
-                LOGGER.error("Exception reading Dump1090 JSON data on connection {}", name, e);
+            } else if (tokenizer.textEquals("alt_geom")) {
+                ac.altGeom = readNumber();
+            } else if (tokenizer.textEquals("nav_altitude_mcp")) {
+                ac.navAltitudeMcp = readNumber();
+            } else if (tokenizer.textEquals("baro_rate")) {
+                ac.baroRate = readNumber();
+            } else if (tokenizer.textEquals("geom_rate")) {
+                ac.geomRate = readNumber();
+            } else if (tokenizer.textEquals("track")) {
+                ac.track = readNumber();
+            } else if (tokenizer.textEquals("true_heading")) {
+                ac.trueHeading = readNumber();
+            } else if (tokenizer.textEquals("mag_heading")) {
+                ac.magHeading = readNumber();
+            } else if (tokenizer.textEquals("nav_heading")) {
+                ac.navHeading = readNumber();
+            } else if (tokenizer.textEquals("gs")) {
+                ac.gs = readNumber();
+            } else if (tokenizer.textEquals("tas")) {
+                ac.tas = readNumber();
+            } else if (tokenizer.textEquals("ias")) {
+                ac.ias = readNumber();
+            } else if (tokenizer.textEquals("mach")) {
+                ac.mach = readNumber();
+            } else {
+                tokenizer.skipValue();
             }
         }
+        if (t != Token.END_OBJECT) {
+            throw new IllegalArgumentException("Unexpected " + t + " in aircraft object");
+        }
     }
 
+    /**
+     * Submit a track update for the aircraft just read, unless it hasn't been
+     * heard from since the last poll.
+     *
+     * @param now     Time the file was written, in seconds since the epoch, or
+     *                NaN if unknown.
+     * @param changes Map to record the aircraft's message count or last seen
+     *                time in, to compare against on the next poll.
+     * @return false if the aircraft was skipped because it hasn't changed.
+     */
+    private boolean handleAircraft(double now, Map<String, Long> changes) {
+        if (ac.hex == null) {
+            return true;
+        }
+        try {
+            // Use the message count if available, otherwise the time the aircraft was last heard from, to 0.1 sec
+            long change = UNKNOWN_CHANGE;
+            if (!Double.isNaN(ac.messages)) {
+                change = (long) ac.messages;
+            } else if (!Double.isNaN(ac.seen) && !Double.isNaN(now)) {
+                change = Math.round((now - ac.seen) * 10);
+            }
+            changes.put(ac.hex, change);
+            Long lastChange = lastChanges.get(ac.hex);
+            if (change != UNKNOWN_CHANGE && lastChange != null && lastChange == change) {
+                return false;
+            }
+
+            // Extract the data into an update for the track. If this is a new
+            // track, it will be added to the track table when the update is applied.
+            TrackUpdate.Builder<Aircraft> u = TrackUpdate.builder(ac.hex, Aircraft.class, Aircraft::new, this);
+            if (ac.flight != null && !ac.flight.isEmpty()) {
+                String callsign = ac.flight.trim();
+                u.set("callsign", a -> a.setCallsign(callsign));
+            }
+            if (ac.squawk != null && !ac.squawk.isEmpty()) {
+                int squawk = Integer.parseInt(ac.squawk);
+                u.set("squawk", a -> a.setSquawk(squawk));
+            }
+            if (ac.category != null && !ac.category.isEmpty()) {
+                String category = ac.category.trim();
+                u.set("category", a -> a.setCategory(category));
+            }
+            double seen = !Double.isNaN(ac.posSeen) ? ac.posSeen : ac.seen;
+            if (!Double.isNaN(ac.lat) && !Double.isNaN(ac.lon)) {
+                if (!Double.isNaN(seen)) {
+                    u.position(ac.lat, ac.lon, System.currentTimeMillis() - Math.round(seen * 1000));
+                } else {
+                    u.position(ac.lat, ac.lon);
+                }
+            }
+            if (ac.altBaroGround) {
+                u.set("altitude", a -> a.setAltitude(0.0));
+                u.set("onGround", a -> a.setOnGround(true));
+            } else {
+                double altitude = firstOf(ac.altBaro, ac.altGeom, ac.navAltitudeMcp);
+                if (!Double.isNaN(altitude)) {
+                    u.set("altitude", a -> a.setAltitude(altitude));
+                    u.set("onGround", a -> a.setOnGround(false));
+                }
+            }
+            double rate = firstOf(ac.baroRate, ac.geomRate);
+            if (!Double.isNaN(rate)) {
+                double verticalRate = rate / 60.0;
+                u.set("verticalRate", a -> a.setVerticalRate(verticalRate));
+            }
+            double course = firstOf(ac.track, ac.trueHeading, ac.magHeading, ac.navHeading);
+            if (!Double.isNaN(course)) {
+                u.set("course", a -> a.setCourse(course));
+            }
+            double heading = firstOf(ac.trueHeading, ac.magHeading, ac.navHeading, ac.track);
+            if (!Double.isNaN(heading)) {
+                u.set("heading", a -> a.setHeading(heading));
+            }
+            double speed = firstOf(ac.gs, ac.tas, ac.ias, ac.mach * 666.739);
+            if (!Double.isNaN(speed)) {
+                u.set("speed", a -> a.setSpeed(speed));
+            }
+            if (!Double.isNaN(seen)) {
+                u.updateMetadataTime(System.currentTimeMillis() - Math.round(seen * 1000));
+            } else {
+                u.updateMetadataTime();
+            }
+            trackTable.submit(u.build());
+        } catch (Exception e) {
+            LOGGER.error("Exception reading data for an aircraft", e);
+        }
+        return true;
+    }
+
+    /**
+     * Read the value after the current name if it is a string, otherwise
+     * skip it and return null.
+     */
+    private String readString() {
+        if (tokenizer.next() == Token.STRING) {
+            return tokenizer.getString();
+        }
+        tokenizer.skipValue();
+        return null;
+    }
+
+    /**
+     * Read the value after the current name if it is a number, otherwise
+     * skip it and return NaN.
+     */
+    private double readNumber() {
+        if (tokenizer.next() == Token.NUMBER) {
+            return tokenizer.getDouble();
+        }
+        tokenizer.skipValue();
+        return Double.NaN;
+    }
+
+    /**
+     * Get the first of the values that is available, or NaN if none are.
+     */
+    private static double firstOf(double... values) {
+        for (double v : values) {
+            if (!Double.isNaN(v)) {
+                return v;
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * The fields we use from one aircraft in the file, reused for each
+     * aircraft. Numbers that weren't in the file are NaN, and strings null.
+     */
+    private static class AircraftFields {
+        String hex;
+        String flight;
+        String squawk;
+        String category;
+        double lat;
+        double lon;
+        double seen;
+        double posSeen;
+        double messages;
+        boolean altBaroGround;
+        double altBaro;
+        double altGeom;
+        double navAltitudeMcp;
+        double baroRate;
+        double geomRate;
+        double track;
+        double trueHeading;
+        double magHeading;
+        double navHeading;
+        double gs;
+        double tas;
+        double ias;
+        double mach;
+
+        void reset() {
+            hex = null;
+            flight = null;
+            squawk = null;
+            category = null;
+            altBaroGround = false;
+            lat = lon = seen = posSeen = messages = Double.NaN;
+            altBaro = altGeom = navAltitudeMcp = baroRate = geomRate = Double.NaN;
+            track = trueHeading = magHeading = navHeading = gs = tas = ias = mach = Double.NaN;
+        }
+    }
+
+    /**
+     * Resources shared by all readers, created when the first one starts.
+     */
+    private static class Shared {
+        static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+                new BasicThreadFactory.Builder().namingPattern("Dump1090 JSON poller").daemon(true).build());
+        static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(QUERY_INTERVAL_MS))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
 }
@@ -0,0 +1,143 @@
+package com.ianrenton.planesailing.comms;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-term memory of recently seen messages, used to spot duplicates when
+ * several feeders hear the same aircraft or ship, or a digipeater repeats an
+ * APRS packet, so that each message is only decoded once. Messages are
+ * identified by a 64-bit hash of their raw bytes, kept in two fixed-size hash
+ * sets: one for the current time window and one for the previous window. When
+ * the window ends, or the current set fills up, the previous set is cleared
+ * and the two swap over. So a message is always reported as a duplicate if an
+ * identical one arrived within the window, and may be if one arrived within
+ * twice the window. Not thread-safe.
+ */
+public class DuplicateFilter {
+
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private final long windowNanos;
+    private final int maxEntries;
+    private final int mask;
+    private long[] current;
+    private long[] previous;
+    private int currentCount;
+    private long windowStart = System.nanoTime();
+
+    /**
+     * Create the filter
+     *
+     * @param windowMillis Time within which an identical message counts as a
+     *                     duplicate. Zero or less turns the filter off.
+     * @param maxEntries   Maximum number of messages to remember per window.
+     */
+    public DuplicateFilter(long windowMillis, int maxEntries) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxEntries = Math.max(1, maxEntries);
+        // Keep the hash sets at most half full so probe sequences stay short
+        int capacity = Integer.highestOneBit(this.maxEntries * 2 - 1) << 1;
+        this.mask = capacity - 1;
+        this.current = new long[capacity];
+        this.previous = new long[capacity];
+    }
+
+    /**
+     * Check whether a message is a duplicate of one seen recently, and
+     * remember it if not.
+     *
+     * @param data   Buffer containing the message.
+     * @param offset Offset of the message in the buffer.
+     * @param length Length of the message.
+     * @return true if the message is a duplicate and should be thrown away.
+     */
+    public boolean isDuplicate(byte[] data, int offset, int length) {
+        long h = FNV_OFFSET_BASIS;
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ (data[i] & 0xFF)) * FNV_PRIME;
+        }
+        return isDuplicate(h);
+    }
+
+    /**
+     * Check whether a message is a duplicate of one seen recently, and
+     * remember it if not. Only suitable for ASCII text.
+     *
+     * @param text The message.
+     * @return true if the message is a duplicate and should be thrown away.
+     */
+    public boolean isDuplicate(CharSequence text) {
+        long h = FNV_OFFSET_BASIS;
+        for (int i = 0; i < text.length(); i++) {
+            h = (h ^ (text.charAt(i) & 0xFF)) * FNV_PRIME;
+        }
+        return isDuplicate(h);
+    }
+
+    private boolean isDuplicate(long hash) {
+        if (windowNanos <= 0) {
+            return false;
+        }
+        long now = System.nanoTime();
+        if (now - windowStart >= windowNanos || currentCount >= maxEntries) {
+            rotate(now);
+        }
+
+        // Zero marks an empty slot, so nudge the one hash that would clash with it
+        long key = hash == 0 ? 1 : hash;
+        if (contains(previous, key)) {
+            return true;
+        }
+        int i = slot(key);
+        while (current[i] != 0) {
+            if (current[i] == key) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        current[i] = key;
+        currentCount++;
+        return false;
+    }
+
+    /**
+     * Start a new window. If more than one whole window has passed since the
+     * last message, nothing remembered is recent enough to keep.
+     */
+    private void rotate(long now) {
+        long[] cleared = previous;
+        Arrays.fill(cleared, 0);
+        if (now - windowStart >= windowNanos * 2) {
+            Arrays.fill(current, 0);
+        }
+        previous = current;
+        current = cleared;
+        currentCount = 0;
+        windowStart = now;
+    }
+
+    private boolean contains(long[] set, long key) {
+        int i = slot(key);
+        while (set[i] != 0) {
+            if (set[i] == key) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Pick the starting slot for a hash, mixing its bits first as FNV-1a
+     * leaves the low bits poorly distributed.
+     */
+    private int slot(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+}
@@ -0,0 +1,232 @@
+package com.ianrenton.planesailing.comms;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Records the raw data received by a client to capture files, so that it can
+ * be replayed later by a {@link ReplayClient}, e.g. to reproduce a problem or
+ * to compare performance before and after a change using exactly the same
+ * data. Data is recorded exactly as it was received, before any framing or
+ * decoding: chunks of the stream for TCP clients, whole datagrams for UDP
+ * clients, and whole documents for clients that poll for JSON.
+ * <p>
+ * A new capture file is started at regular intervals, so that files stay a
+ * manageable size and old ones can be deleted. Files are named after the
+ * client and the UTC time they were started, so sorting them by name puts
+ * them in time order. Each file starts with {@link #MAGIC}, followed by one
+ * record per chunk of data, each of which is the time the data was received
+ * in UTC UNIX millis (8 bytes), the length of the data (4 bytes), then the
+ * data itself.
+ * <p>
+ * The receiving thread only copies each chunk of data onto a queue. Files are
+ * created, written, flushed and closed by the recorder's own thread, so a slow
+ * disk never holds up receiving. If the queue is full because the disk can't
+ * keep up, new data isn't recorded and is counted as dropped instead. Written
+ * data is flushed to disk every second, even if no more arrives. If a write
+ * fails, recording stops rather than affecting the client.
+ */
+public class FeedRecorder {
+
+    private static final Logger LOGGER = LogManager.getLogger(FeedRecorder.class);
+    public static final byte[] MAGIC = {'P', 'S', 'R', 'E', 'C', 1};
+    public static final String FILE_EXTENSION = ".psrec";
+    private static final DateTimeFormatter FILE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC);
+    // Matches the times formatted with FILE_TIME_FORMAT
+    private static final String FILE_TIME_REGEX = "\\d{8}-\\d{6}";
+    private static final int BUFFER_SIZE = 65536;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    // Longest time to wait for queued data to be written when closing
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final Path directory;
+    private final String prefix;
+    private final long segmentMillis;
+    private final BlockingQueue<Chunk> queue;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread thread;
+    private volatile boolean run = true;
+    private volatile boolean failed;
+    private boolean droppingLogged;
+    // Only used by the recorder's thread
+    private DataOutputStream out;
+    private long segmentStart;
+    private boolean unflushed;
+
+    /**
+     * A chunk of data waiting to be written.
+     */
+    private record Chunk(long time, byte[] data) {
+    }
+
+    /**
+     * Create the recorder and start its thread. No file is created until there
+     * is data to record.
+     *
+     * @param directory     Directory to write capture files to. Created if it
+     *                      doesn't exist.
+     * @param name          Name to start each file's name with, usually the
+     *                      feeder and client names.
+     * @param segmentMillis Time after which to start a new file.
+     * @param queueSize     Maximum number of chunks of data waiting to be
+     *                      written. Any more are dropped.
+     */
+    public FeedRecorder(Path directory, String name, long segmentMillis, int queueSize) {
+        this.directory = directory;
+        this.prefix = fileNamePrefix(name);
+        this.segmentMillis = segmentMillis;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        thread = new Thread(this::writeLoop, "Recorder " + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Get the prefix of the names of the capture files for a given name, with
+     * any characters that aren't safe in file names replaced.
+     */
+    public static String fileNamePrefix(String name) {
+        return name.replaceAll("[^A-Za-z0-9_.-]", "_") + "-";
+    }
+
+    /**
+     * Get a pattern that matches the names of the capture files for a given
+     * name, and no others. Files for a name that only starts with the given
+     * name, e.g. "AIS-2" for "AIS", don't match.
+     */
+    public static Pattern fileNamePattern(String name) {
+        return Pattern.compile(Pattern.quote(fileNamePrefix(name)) + FILE_TIME_REGEX + Pattern.quote(FILE_EXTENSION));
+    }
+
+    /**
+     * Record a chunk of data, timestamped now. The data is copied, so the
+     * buffer can be reused as soon as this returns.
+     *
+     * @param data   Buffer containing the data.
+     * @param offset Offset of the data in the buffer.
+     * @param length Length of the data.
+     */
+    public void record(byte[] data, int offset, int length) {
+        if (failed || !run) {
+            return;
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        if (!queue.offer(new Chunk(System.currentTimeMillis(), copy))) {
+            dropped.increment();
+            if (!droppingLogged) {
+                droppingLogged = true;
+                LOGGER.warn("Recording for {} can't keep up, some data will not be recorded", prefix);
+            }
+        }
+    }
+
+    /**
+     * Get the number of chunks of data that weren't recorded because the
+     * queue was full, since start.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stop recording, and finish the current capture file once everything
+     * queued has been written.
+     */
+    public void close() {
+        run = false;
+        try {
+            thread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Recorder thread. Writes queued data until closed, flushing regularly.
+     */
+    private void writeLoop() {
+        long lastFlush = System.currentTimeMillis();
+        try {
+            while (run) {
+                // Not interrupted to stop, as that would close the file part way
+                // through a write, so wait no longer than the flush interval
+                Chunk r;
+                try {
+                    r = queue.poll(Math.max(1, lastFlush + FLUSH_INTERVAL_MILLIS - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                if (r != null) {
+                    write(r);
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastFlush >= FLUSH_INTERVAL_MILLIS) {
+                    flush();
+                    lastFlush = now;
+                }
+            }
+            Chunk r;
+            while ((r = queue.poll()) != null) {
+                write(r);
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Could not write capture file for {}, recording stopped", prefix, ex);
+            failed = true;
+            queue.clear();
+        }
+        closeFile();
+    }
+
+    private void write(Chunk r) throws IOException {
+        if (out == null || r.time() - segmentStart >= segmentMillis) {
+            startSegment(r.time());
+        }
+        out.writeLong(r.time());
+        out.writeInt(r.data().length);
+        out.write(r.data());
+        unflushed = true;
+    }
+
+    private void flush() throws IOException {
+        if (out != null && unflushed) {
+            out.flush();
+            unflushed = false;
+        }
+    }
+
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Could not close capture file for {}", prefix, ex);
+            }
+            out = null;
+        }
+    }
+
+    private void startSegment(long now) throws IOException {
+        closeFile();
+        Files.createDirectories(directory);
+        Path file = directory.resolve(prefix + FILE_TIME_FORMAT.format(Instant.ofEpochMilli(now)) + FILE_EXTENSION);
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE));
+        out.write(MAGIC);
+        segmentStart = now;
+        LOGGER.info("Recording raw data to {}", file);
+    }
+}
@@ -3,11 +3,14 @@ package com.ianrenton.planesailing.comms;
 import com.typesafe.config.Config;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import com.ianrenton.planesailing.app.Application;
 import com.ianrenton.planesailing.app.TrackTable;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -32,25 +35,31 @@ public class Feeder {
      * Create a new feeder from config
      * @param config The config object for the feeder
      * @param trackTable Reference to the track table so the receiver clients can connect to it
+     * @param connectionManager Connection manager to handle the TCP receiver clients' connections
+     * @param decodePool Pool of workers to decode Mode S messages for the ADS-B and MLAT receiver clients
+     * @param aisDuplicateFilter Filter shared by all feeders' AIS receiver clients, to throw away duplicate messages
      */
-    public Feeder(Config config, TrackTable trackTable) {
+    public Feeder(Config config, TrackTable trackTable, TCPConnectionManager connectionManager, ModeSDecodePool decodePool,
+                  DuplicateFilter aisDuplicateFilter) {
         name = config.getString("name");
 
+        Config recorderConfig = Application.CONFIG.getConfig("comms.recorder");
         List<? extends Config> receiversConfig = config.getConfigList("receivers");
         for (Config c : receiversConfig) {
+            Client client = null;
             ClientType type = ClientType.valueOf(c.getString("type"));
             switch (type) {
-                case AIS -> receivers.add(new AISUDPReceiver(c.getString("name"), c.getInt("port"), trackTable));
+                case AIS -> client = new AISUDPReceiver(c.getString("name"), c.getInt("port"), trackTable, aisDuplicateFilter);
                 case ADSB -> {
                     switch (c.getString("protocol")) {
                         case "dump1090json" ->
-                                receivers.add(new Dump1090JSONReader(c.getString("name"), c.getString("file"), trackTable));
+                                client = new Dump1090JSONReader(c.getString("name"), c.getString("file"), trackTable);
                         case "beastbinary" ->
-                                receivers.add(new BEASTBinaryTCPClient(c.getString("name"), c.getString("host"), c.getInt("port"), trackTable, false));
+                                client = new BEASTBinaryTCPClient(c.getString("name"), c.getString("host"), c.getInt("port"), trackTable, connectionManager, decodePool, false);
                         case "beastavr" ->
-                                receivers.add(new BEASTAVRTCPClient(c.getString("name"), c.getString("host"), c.getInt("port"), trackTable));
+                                client = new BEASTAVRTCPClient(c.getString("name"), c.getString("host"), c.getInt("port"), trackTable, connectionManager, decodePool);
                         case "sbs" ->
-                                receivers.add(new SBSTCPClient(c.getString("name"), c.getString("host"), c.getInt("port"), trackTable, false));
+                                client = new SBSTCPClient(c.getString("name"), c.getString("host"), c.getInt("port"), trackTable, connectionManager, false);
                         default ->
                                 LOGGER.error("Unknown air data protocol '{}'. Options are 'beastbinary', 'beastavr' and 'sbs'.", c.getString("protocol"));
                     }
@@ -58,17 +67,36 @@ public class Feeder {
                 case MLAT -> {
                     switch (c.getString("protocol")) {
                         case "beastbinary" ->
-                                receivers.add(new BEASTBinaryTCPClient(c.getString("name"), c.getString("host"), c.getInt("port"), trackTable, true));
+                                client = new BEASTBinaryTCPClient(c.getString("name"), c.getString("host"), c.getInt("port"), trackTable, connectionManager, decodePool, true);
                         case "sbs" ->
-                                receivers.add(new SBSTCPClient(c.getString("name"), c.getString("host"), c.getInt("port"), trackTable, true));
+                                client = new SBSTCPClient(c.getString("name"), c.getString("host"), c.getInt("port"), trackTable, connectionManager, true);
                         default ->
                                 LOGGER.error("Unknown air data protocol '{}'. Options are 'beastbinary' and 'sbs'.", c.getString("comms.mlat-receiver.protocol"));
                     }
                 }
-                case APRS -> receivers.add(new APRSTCPClient(c.getString("name"), c.getString("host"), c.getInt("port"), trackTable));
-                case HORUS -> receivers.add(new HORUSJSONUDPReceiver(c.getString("name"), c.getInt("port"), trackTable));
-                case MESHTASTIC -> receivers.add(new MeshtasticNodeQuerier(c.getString("name"), c.getString("command"), c.getInt("poll-interval-sec"), trackTable));
+                case APRS -> client = new APRSTCPClient(c.getString("name"), c.getString("host"), c.getInt("port"), trackTable, connectionManager);
+                case HORUS -> client = new HORUSJSONUDPReceiver(c.getString("name"), c.getInt("port"), trackTable);
+                case MESHTASTIC -> {
+                    // Connect to the node's TCP API if a host is given, otherwise fall back to polling using the CLI
+                    if (c.hasPath("host")) {
+                        client = new MeshtasticTCPClient(c.getString("name"), c.getString("host"), c.getInt("port"), trackTable, connectionManager);
+                    } else {
+                        client = new MeshtasticNodeQuerier(c.getString("name"), c.getString("command"), c.getInt("poll-interval-sec"), trackTable);
+                    }
+                }
             }
+            if (client == null) {
+                continue;
+            }
+
+            if (c.hasPath("replay")) {
+                // Replay recorded data through the client instead of connecting it to anything
+                client = new ReplayClient(client, Path.of(c.getString("replay.files")), c.getDouble("replay.speed"));
+            } else if (recorderConfig.getBoolean("enabled")) {
+                client.setRecorder(new FeedRecorder(Path.of(recorderConfig.getString("directory")), name + "-" + client.getName(),
+                        TimeUnit.MINUTES.toMillis(recorderConfig.getLong("segment-minutes")), recorderConfig.getInt("queue-size")));
+            }
+            receivers.add(client);
         }
     }
 
@@ -98,6 +126,11 @@ public class Feeder {
      */
     public void stopAll() {
         receivers.forEach(Client::stop);
+        for (Client c : receivers) {
+            if (c.getRecorder() != null) {
+                c.getRecorder().close();
+            }
+        }
     }
 
     /**
@@ -0,0 +1,75 @@
+package com.ianrenton.planesailing.comms;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base for framers, which split a stream of data from a connection into
+ * messages. Data is read into the framer's buffer in large chunks, then each
+ * complete message is found and passed on as a slice of the buffer without
+ * copying. Any partial message at the end of the buffer is kept until more
+ * data arrives. One framer should be used per connection, and it is not
+ * thread-safe.
+ * <p>
+ * Subclasses find the messages in the buffer, between {@link #dataStart()}
+ * and {@link #dataEnd()}, then call {@link #keepFrom(int)}.
+ */
+public abstract class Framer {
+
+    public static final int DEFAULT_BUFFER_SIZE = 16384;
+
+    protected final ByteBuffer buffer;
+
+    /**
+     * Create the framer
+     *
+     * @param bufferSize Size of the read buffer in bytes.
+     */
+    protected Framer(int bufferSize) {
+        buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Get the buffer to read new data into. New data must be put at the buffer's
+     * position, and the position advanced past it, as by
+     * {@link java.nio.channels.ReadableByteChannel#read(ByteBuffer)}, before
+     * asking the framer to process it.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Discard all buffered data, e.g. when reconnecting.
+     */
+    public void reset() {
+        buffer.clear();
+    }
+
+    /**
+     * Get the index in the buffer's array of the first byte of buffered data.
+     */
+    protected int dataStart() {
+        return buffer.arrayOffset();
+    }
+
+    /**
+     * Get the index in the buffer's array just after the last byte of
+     * buffered data.
+     */
+    protected int dataEnd() {
+        return buffer.arrayOffset() + buffer.position();
+    }
+
+    /**
+     * Discard the data before an index in the buffer's array, once all the
+     * messages in it have been handled, and move any leftover data to the
+     * start of the buffer ready for the next read.
+     */
+    protected void keepFrom(int index) {
+        int base = buffer.arrayOffset();
+        int limit = dataEnd();
+        buffer.position(index - base);
+        buffer.limit(limit - base);
+        buffer.compact();
+    }
+}
@@ -1,32 +1,26 @@
 package com.ianrenton.planesailing.comms;
 
 import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.app.TrackUpdate;
 import com.ianrenton.planesailing.data.Radiosonde;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.nio.charset.StandardCharsets;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
  * Receiver for HORUS JSON format messages from a UDP socket, e.g. as sent by
  * radiosonde_auto_rx.
  */
-public class HORUSJSONUDPReceiver extends Client {
+public class HORUSJSONUDPReceiver extends UDPReceiver {
 
     private static final Logger LOGGER = LogManager.getLogger(HORUSJSONUDPReceiver.class);
     // Expected milliseconds between receiving packets
     private static final int PACKET_RX_RATE_MILLIS = 10800000;
-    private final int localPort;
-    private final UDPReceiver udpReceiverThread = new UDPReceiver();
-    private final PipedOutputStream pipeOS = new PipedOutputStream();
-    private boolean run = true;
+    // Largest datagram allowed by UDP over IPv4
+    private static final int MAX_DATAGRAM_SIZE = 65507;
 
     /**
      * Create the receiver
@@ -36,31 +30,24 @@ public class HORUSJSONUDPReceiver extends Client {
      * @param trackTable The track table to use.
      */
     public HORUSJSONUDPReceiver(String name, int localPort, TrackTable trackTable) {
-        super(name, trackTable);
-        this.localPort = localPort;
-
-        try {
-            InputStream pipeIS = new PipedInputStream(pipeOS);
-        } catch (IOException ex) {
-            LOGGER.error("Could not set up internal pipe for HORUS Receiver", ex);
-        }
-    }
-
-    /**
-     * Run the receiver.
-     */
-    public void run() {
-        run = true;
-        online = true;
-        new Thread(udpReceiverThread, "HORUS UDP receiver thread").start();
+        super(name, localPort, trackTable, MAX_DATAGRAM_SIZE);
     }
 
     /**
-     * Stop the receiver.
+     * Handle a datagram, which should contain one JSON object.
      */
-    public void stop() {
-        run = false;
-        online = false;
+    @Override
+    protected void handleDatagram(byte[] data, int offset, int length) {
+        updatePacketReceivedTime();
+        try {
+            long decodeStart = System.nanoTime();
+            JSONObject obj = new JSONObject(new String(data, offset, length, StandardCharsets.UTF_8));
+            countMessageDecoded(decodeStart);
+            handle(obj);
+        } catch (JSONException ex) {
+            countDecodeError();
+            LOGGER.warn("Received invalid HORUS JSON data, skipping it.");
+        }
     }
 
     /**
@@ -70,82 +57,49 @@ public class HORUSJSONUDPReceiver extends Client {
         try {
             String callsign = o.getString("callsign");
 
-            // If this is a new track, add it to the track table
-            if (!trackTable.containsKey(callsign)) {
-                Radiosonde newTrack = new Radiosonde(callsign);
-                trackTable.put(callsign, newTrack);
-            }
-
-            // Extract the data and update the track
-            Radiosonde r = (Radiosonde) trackTable.get(callsign);
+            // Extract the data into an update for the track. If this is a new
+            // track, it will be added to the track table when the update is applied.
+            TrackUpdate.Builder<Radiosonde> u = TrackUpdate.builder(callsign, Radiosonde.class, Radiosonde::new, this);
             if (o.has("latitude") && o.has("longitude")) {
-                r.addPosition(o.getDouble("latitude"), o.getDouble("longitude"));
+                u.position(o.getDouble("latitude"), o.getDouble("longitude"));
             }
             if (o.has("altitude")) {
-                r.setAltitude(o.getDouble("altitude"));
+                double altitude = o.getDouble("altitude");
+                u.set("altitude", r -> r.setAltitude(altitude));
             }
             if (o.has("speed")) {
                 double speedKPH = o.getDouble("speed");
                 if (speedKPH != -1) {
-                    r.setSpeed(speedKPH * 0.54); // KPH to knots
+                    u.set("speed", r -> r.setSpeed(speedKPH * 0.54)); // KPH to knots
                 }
             }
             if (o.has("heading")) {
                 double heading = o.getDouble("heading");
                 if (heading != -1) {
-                    r.setHeading(heading);
+                    u.set("heading", r -> r.setHeading(heading));
                 }
             }
             if (o.has("temp")) {
                 double tempC = o.getDouble("temp");
                 if (tempC > -272) {
-                    r.setTemperature(tempC);
+                    u.set("temperature", r -> r.setTemperature(tempC));
                 }
             }
             if (o.has("freq")) {
-                r.setFrequencyString(o.getString("freq"));
+                String freq = o.getString("freq");
+                u.set("frequency", r -> r.setFrequencyString(freq));
             }
             if (o.has("model")) {
-                r.setModel(o.getString("model"));
+                String model = o.getString("model");
+                u.set("model", r -> r.setModel(model));
             }
+            trackTable.submit(u.build());
 
         } catch (Exception ex) {
             LOGGER.error("Exception handling HORUS data, catching exception so handling can continue.", ex);
         }
     }
 
-    /**
-     * Inner receiver thread. Reads datagrams from the UDP socket, pipes them
-     * over to the third-party AISInputStreamReader.
-     */
-    private class UDPReceiver implements Runnable {
-
-        public void run() {
-            try {
-                DatagramSocket socket = new DatagramSocket(localPort);
-                LOGGER.info("Opened local UDP port {} to receive HORUS JSON data.", localPort);
-
-                while (run) {
-                    // Read packet from the UDP port and handle it as JSON
-                    byte[] buffer = new byte[65507];
-                    DatagramPacket p = new DatagramPacket(buffer, buffer.length);
-                    socket.receive(p);
-                    String text = new String(p.getData(), StandardCharsets.US_ASCII);
-                    JSONObject obj = new JSONObject(text);
-                    handle(obj);
-                    lastReceivedTime = System.currentTimeMillis();
-
-                    Thread.sleep(1000);
-                }
-
-                socket.close();
-
-            } catch (Exception ex) {
-                LOGGER.error("Exception in AIS Receiver", ex);
-            }
-        }
-    }
-
     @Override
     public ClientType getType() {
         return ClientType.HORUS;
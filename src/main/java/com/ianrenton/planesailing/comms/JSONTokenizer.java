@@ -0,0 +1,289 @@
+package com.ianrenton.planesailing.comms;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Pull tokenizer for JSON data, working directly on the bytes of a document.
+ * Rather than building a tree of objects for the whole document, the caller
+ * steps through it one token at a time, picking out the values it wants and
+ * skipping the rest. Names are compared and numbers parsed straight from the
+ * bytes, so the only Strings created are the values the caller asks for.
+ * <p>
+ * The tokenizer is lenient: commas and colons are treated as separators
+ * without checking they are in the right place, so invalid documents may be
+ * read without an error. Not thread-safe.
+ */
+public class JSONTokenizer {
+
+    public enum Token {
+        START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, NAME, STRING, NUMBER, TRUE, FALSE, NULL, END
+    }
+
+    // Powers of ten that can be represented exactly as doubles
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private byte[] data;
+    private int pos;
+    private int end;
+    // Position of the current name, string or number, without quotes
+    private int valueStart;
+    private int valueEnd;
+    private boolean valueHasEscapes;
+    private Token token;
+
+    /**
+     * Start reading a document. The data must not be changed until the caller
+     * is finished with the tokenizer.
+     *
+     * @param data   Buffer containing the document.
+     * @param offset Offset of the document in the buffer.
+     * @param length Length of the document.
+     */
+    public void reset(byte[] data, int offset, int length) {
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+        this.token = null;
+    }
+
+    /**
+     * Move on to the next token.
+     *
+     * @return The type of the token.
+     * @throws IllegalArgumentException if the document is not valid JSON.
+     */
+    public Token next() {
+        skipSeparators();
+        if (pos >= end) {
+            return token = Token.END;
+        }
+        byte b = data[pos];
+        switch (b) {
+            case '{' -> {
+                pos++;
+                return token = Token.START_OBJECT;
+            }
+            case '}' -> {
+                pos++;
+                return token = Token.END_OBJECT;
+            }
+            case '[' -> {
+                pos++;
+                return token = Token.START_ARRAY;
+            }
+            case ']' -> {
+                pos++;
+                return token = Token.END_ARRAY;
+            }
+            case '"' -> {
+                readString();
+                // A string followed by a colon is the name of an object member
+                int i = pos;
+                while (i < end && isWhitespace(data[i])) {
+                    i++;
+                }
+                return token = (i < end && data[i] == ':') ? Token.NAME : Token.STRING;
+            }
+            case 't' -> {
+                expectLiteral("true");
+                return token = Token.TRUE;
+            }
+            case 'f' -> {
+                expectLiteral("false");
+                return token = Token.FALSE;
+            }
+            case 'n' -> {
+                expectLiteral("null");
+                return token = Token.NULL;
+            }
+            default -> {
+                if (b == '-' || (b >= '0' && b <= '9')) {
+                    valueStart = pos;
+                    while (pos < end && isNumberChar(data[pos])) {
+                        pos++;
+                    }
+                    valueEnd = pos;
+                    return token = Token.NUMBER;
+                }
+                throw new IllegalArgumentException("Unexpected character " + (char) b + " at " + pos);
+            }
+        }
+    }
+
+    /**
+     * Get the type of the current token, i.e. the one last returned by next().
+     */
+    public Token getToken() {
+        return token;
+    }
+
+    /**
+     * Skip the value after the current name, or the rest of the current
+     * object or array if the current token started one. For any other token
+     * this does nothing.
+     */
+    public void skipValue() {
+        if (token == Token.NAME) {
+            next();
+        }
+        if (token == Token.START_OBJECT || token == Token.START_ARRAY) {
+            int depth = 1;
+            while (depth > 0) {
+                switch (next()) {
+                    case START_OBJECT, START_ARRAY -> depth++;
+                    case END_OBJECT, END_ARRAY -> depth--;
+                    case END -> throw new IllegalArgumentException("Unexpected end of document");
+                    default -> {
+                        // Keep going
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether the current name or string is equal to the given ASCII
+     * text, without creating a String.
+     */
+    public boolean textEquals(String text) {
+        if (valueHasEscapes || valueEnd - valueStart != text.length()) {
+            return valueHasEscapes && getString().equals(text);
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (data[valueStart + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the current name or string, or the text of the current number.
+     */
+    public String getString() {
+        if (!valueHasEscapes || token == Token.NUMBER) {
+            return new String(data, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+        }
+        StringBuilder sb = new StringBuilder(valueEnd - valueStart);
+        int i = valueStart;
+        while (i < valueEnd) {
+            int runStart = i;
+            while (i < valueEnd && data[i] != '\\') {
+                i++;
+            }
+            sb.append(new String(data, runStart, i - runStart, StandardCharsets.UTF_8));
+            if (i < valueEnd) {
+                byte e = data[i + 1];
+                switch (e) {
+                    case 'b' -> sb.append('\b');
+                    case 'f' -> sb.append('\f');
+                    case 'n' -> sb.append('\n');
+                    case 'r' -> sb.append('\r');
+                    case 't' -> sb.append('\t');
+                    case 'u' -> {
+                        sb.append((char) Integer.parseInt(new String(data, i + 2, 4, StandardCharsets.US_ASCII), 16));
+                        i += 4;
+                    }
+                    default -> sb.append((char) e);
+                }
+                i += 2;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the current number as a double.
+     *
+     * @throws NumberFormatException if the current token is not a number.
+     */
+    public double getDouble() {
+        if (token != Token.NUMBER) {
+            throw new NumberFormatException("Not a number: " + token);
+        }
+        int i = valueStart;
+        boolean negative = data[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < valueEnd; i++) {
+            byte b = data[i];
+            if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else {
+                // Exponent, let Java deal with it
+                return Double.parseDouble(getString());
+            }
+        }
+        if (digits == 0 || digits > 15) {
+            // Invalid, or too many digits to be sure of getting the same answer as Java would
+            return Double.parseDouble(getString());
+        }
+        // Both parts are exact, so dividing gives the correctly rounded answer
+        double value = (decimals > 0) ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Get the current number as a long, truncating any fractional part.
+     *
+     * @throws NumberFormatException if the current token is not a number.
+     */
+    public long getLong() {
+        return (long) getDouble();
+    }
+
+    private void readString() {
+        pos++;
+        valueStart = pos;
+        valueHasEscapes = false;
+        while (pos < end && data[pos] != '"') {
+            if (data[pos] == '\\') {
+                valueHasEscapes = true;
+                pos++;
+            }
+            pos++;
+        }
+        if (pos >= end) {
+            throw new IllegalArgumentException("Unterminated string at " + valueStart);
+        }
+        valueEnd = pos;
+        pos++;
+    }
+
+    private void expectLiteral(String literal) {
+        if (end - pos < literal.length()) {
+            throw new IllegalArgumentException("Unexpected end of document");
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (data[pos + i] != literal.charAt(i)) {
+                throw new IllegalArgumentException("Unexpected character " + (char) data[pos + i] + " at " + (pos + i));
+            }
+        }
+        pos += literal.length();
+    }
+
+    private void skipSeparators() {
+        while (pos < end && (isWhitespace(data[pos]) || data[pos] == ',' || data[pos] == ':')) {
+            pos++;
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static boolean isNumberChar(byte b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+    }
+}
@@ -0,0 +1,103 @@
+package com.ianrenton.planesailing.comms;
+
+/**
+ * Splits a stream of KISS data, as sent by a TNC such as Direwolf, into
+ * frames. Any escaped bytes in each frame are unescaped in place before it is
+ * passed on.
+ * <p>
+ * Frames are separated by FEND (0xC0) bytes. The first byte of each frame holds
+ * the TNC port number in its high nibble and the command in its low nibble.
+ * Only data frames (command 0) are passed on, which contain an AX.25 packet.
+ * FEND and FESC (0xDB) bytes inside a frame are sent as FESC TFEND (0xDB 0xDC)
+ * and FESC TFESC (0xDB 0xDD) respectively.
+ */
+public class KISSFramer extends Framer {
+
+    /**
+     * Receives frames found by the framer.
+     */
+    public interface FrameHandler {
+
+        /**
+         * Handle one data frame. The data is only valid for the duration of the
+         * call, as the framer reuses its buffer.
+         *
+         * @param port   The TNC port the frame was received on.
+         * @param data   Buffer containing the unescaped AX.25 packet.
+         * @param offset Offset of the packet in the buffer.
+         * @param length Length of the packet.
+         */
+        void frame(int port, byte[] data, int offset, int length);
+    }
+
+    private static final byte FEND = (byte) 0xC0;
+    private static final byte FESC = (byte) 0xDB;
+    private static final byte TFEND = (byte) 0xDC;
+    private static final byte TFESC = (byte) 0xDD;
+    private static final int COMMAND_DATA = 0;
+
+    /**
+     * Create the framer
+     *
+     * @param bufferSize Size of the read buffer in bytes. This is the longest
+     *                   frame that can be handled.
+     */
+    public KISSFramer(int bufferSize) {
+        super(bufferSize);
+    }
+
+    /**
+     * Pass every complete data frame in the buffer to the handler, then keep
+     * any leftover data ready for the next read.
+     */
+    public void process(FrameHandler handler) {
+        byte[] a = buffer.array();
+        int start = dataStart();
+        int limit = dataEnd();
+
+        for (int i = start; i < limit; i++) {
+            if (a[i] == FEND) {
+                // Back-to-back FENDs are allowed, and just mean an empty frame
+                if (i > start) {
+                    handleFrame(a, start, i, handler);
+                }
+                start = i + 1;
+            }
+        }
+
+        if (start == dataStart() && !buffer.hasRemaining()) {
+            // Buffer full without finding the end of a frame, so it must be too
+            // long or corrupt. Throw it away and wait for the next FEND.
+            start = limit;
+        }
+
+        keepFrom(start);
+    }
+
+    /**
+     * Unescape a frame in place, and pass it on if it is a data frame. An
+     * invalid escape sequence is left as it is, so the packet will fail to
+     * decode.
+     */
+    private static void handleFrame(byte[] a, int start, int end, FrameHandler handler) {
+        int w = start;
+        for (int r = start; r < end; r++) {
+            byte b = a[r];
+            if (b == FESC && r + 1 < end) {
+                if (a[r + 1] == TFEND) {
+                    b = FEND;
+                    r++;
+                } else if (a[r + 1] == TFESC) {
+                    b = FESC;
+                    r++;
+                }
+            }
+            a[w++] = b;
+        }
+        int command = a[start] & 0x0F;
+        int port = (a[start] >> 4) & 0x0F;
+        if (command == COMMAND_DATA && w > start + 1) {
+            handler.frame(port, a, start + 1, w - start - 1);
+        }
+    }
+}
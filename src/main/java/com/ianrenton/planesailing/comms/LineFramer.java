@@ -0,0 +1,59 @@
+package com.ianrenton.planesailing.comms;
+
+/**
+ * Splits a stream of text data into lines, each ending in LF or CR LF.
+ */
+public class LineFramer extends Framer {
+
+    /**
+     * Receives lines found by the framer.
+     */
+    public interface LineHandler {
+
+        /**
+         * Handle one line, without its line ending. The data is only valid for
+         * the duration of the call, as the framer reuses its buffer. Empty
+         * lines are not passed on.
+         *
+         * @param data   Buffer containing the line.
+         * @param offset Offset of the line in the buffer.
+         * @param length Length of the line.
+         */
+        void line(byte[] data, int offset, int length);
+    }
+
+    /**
+     * Create the framer
+     *
+     * @param bufferSize Size of the read buffer in bytes. This is the longest
+     *                   line that can be handled.
+     */
+    public LineFramer(int bufferSize) {
+        super(bufferSize);
+    }
+
+    /**
+     * Pass every complete line in the buffer to the handler, then keep any
+     * leftover data ready for the next read.
+     */
+    public void process(LineHandler handler) {
+        byte[] a = buffer.array();
+        int start = dataStart();
+        int limit = dataEnd();
+
+        for (int i = start; i < limit; i++) {
+            if (a[i] == '\n') {
+                int end = i;
+                if (end > start && a[end - 1] == '\r') {
+                    end--;
+                }
+                if (end > start) {
+                    handler.line(a, start, end - start);
+                }
+                start = i + 1;
+            }
+        }
+
+        keepFrom(start);
+    }
+}
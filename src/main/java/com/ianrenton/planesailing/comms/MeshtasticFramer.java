@@ -0,0 +1,103 @@
+package com.ianrenton.planesailing.comms;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a stream of data from a Meshtastic node's TCP or serial API into
+ * frames.
+ * <p>
+ * Each frame starts with the two bytes 0x94 0xC3, followed by the length of
+ * the payload as a 16-bit big-endian number, then the payload itself, which
+ * is a protobuf message. Nodes may also send plain text debug logs between
+ * frames, which are skipped. A header with an impossible length is treated as
+ * part of the text, so the framer resyncs on the next real header.
+ */
+public class MeshtasticFramer extends Framer {
+
+    /**
+     * Receives frames found by the framer.
+     */
+    public interface FrameHandler {
+
+        /**
+         * Handle one frame. The data is only valid for the duration of the
+         * call, as the framer reuses its buffer.
+         *
+         * @param data   Buffer containing the frame's protobuf payload.
+         * @param offset Offset of the payload in the buffer.
+         * @param length Length of the payload.
+         */
+        void frame(byte[] data, int offset, int length);
+    }
+
+    // Largest payload a node will send
+    public static final int MAX_PAYLOAD_LENGTH = 512;
+
+    private static final byte START1 = (byte) 0x94;
+    private static final byte START2 = (byte) 0xC3;
+    private static final int HEADER_LENGTH = 4;
+
+    /**
+     * Create the framer
+     *
+     * @param bufferSize Size of the read buffer in bytes. Must be larger than
+     *                   the longest frame.
+     */
+    public MeshtasticFramer(int bufferSize) {
+        super(Math.max(bufferSize, HEADER_LENGTH + MAX_PAYLOAD_LENGTH));
+    }
+
+    /**
+     * Pass every complete frame in the buffer to the handler, then keep any
+     * partial frame ready for the next read.
+     */
+    public void process(FrameHandler handler) {
+        byte[] a = buffer.array();
+        int p = dataStart();
+        int limit = dataEnd();
+
+        while (p < limit) {
+            if (a[p] != START1) {
+                p++;
+                continue;
+            }
+            if (p + 1 >= limit) {
+                break;
+            }
+            if (a[p + 1] != START2) {
+                p++;
+                continue;
+            }
+            if (p + HEADER_LENGTH > limit) {
+                break;
+            }
+            int length = ((a[p + 2] & 0xFF) << 8) | (a[p + 3] & 0xFF);
+            if (length > MAX_PAYLOAD_LENGTH) {
+                p++;
+                continue;
+            }
+            if (p + HEADER_LENGTH + length > limit) {
+                break;
+            }
+            handler.frame(a, p + HEADER_LENGTH, length);
+            p += HEADER_LENGTH + length;
+        }
+
+        keepFrom(p);
+    }
+
+    /**
+     * Wrap a protobuf message in a frame, ready to send to a node.
+     *
+     * @param payload The encoded protobuf message.
+     * @return A buffer containing the frame, with its position at the start.
+     */
+    public static ByteBuffer frame(byte[] payload) {
+        if (payload.length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Payload too long: " + payload.length + " bytes");
+        }
+        ByteBuffer b = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        b.put(START1).put(START2).putShort((short) payload.length).put(payload);
+        return b.flip();
+    }
+}
@@ -1,6 +1,7 @@
 package com.ianrenton.planesailing.comms;
 
 import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.app.TrackUpdate;
 import com.ianrenton.planesailing.data.MeshtasticNode;
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -13,10 +14,13 @@ import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
- * Querier for Meshtastic node data using the Meshtastic Python CLI.
+ * Querier for Meshtastic node data using the Meshtastic Python CLI. For nodes
+ * that can be reached over the network, {@link MeshtasticTCPClient} is much
+ * cheaper and receives updates as they happen.
  */
 public class MeshtasticNodeQuerier extends Client {
 
@@ -67,72 +71,75 @@ public class MeshtasticNodeQuerier extends Client {
             for (String id : ids) {
                 JSONObject nodeData = o.getJSONObject(id);
 
-                // If this is a new track, add it to the track table
-                if (!trackTable.containsKey(id)) {
-                    MeshtasticNode newTrack = new MeshtasticNode(id);
-                    trackTable.put(id, newTrack);
-                }
-
-                // Extract the data and update the track
-                MeshtasticNode n = (MeshtasticNode) trackTable.get(id);
-
                 // Meshtastic data isn't reported live from a receiver, we are
                 // querying a device that may have history. If we are looking
                 // at a node last heard longer ago than the timeout, skip it -
                 // only handle data from nodes whose data is new enough.
                 if (nodeData.has("lastHeard") && System.currentTimeMillis() -
                         (nodeData.getLong("lastHeard") * 1000L) < MeshtasticNode.DROP_MESHTASTIC_TRACK_TIME) {
-                    
+
+                    // Extract the data into an update for the track. If this is a new
+                    // track, it will be added to the track table when the update is applied.
+                    TrackUpdate.Builder<MeshtasticNode> u = TrackUpdate.builder(id, MeshtasticNode.class, MeshtasticNode::new, this);
+
                     if (nodeData.has("snr")) {
-                        n.setSnr(nodeData.getDouble("snr"));
+                        double snr = nodeData.getDouble("snr");
+                        u.set("snr", n -> n.setSnr(snr));
                     }
                     
                     if (nodeData.has("user")) {
                         JSONObject userData = nodeData.getJSONObject("user");
                         if (userData.has("hwModel")) {
-                            n.setHardware(userData.getString("hwModel"));
+                            String hardware = userData.getString("hwModel");
+                            u.set("hardware", n -> n.setHardware(hardware));
                         }
                         if (userData.has("shortName")) {
-                            n.setShortName(userData.getString("shortName"));
+                            String shortName = userData.getString("shortName");
+                            u.set("shortName", n -> n.setShortName(shortName));
                         }
                         if (userData.has("longName")) {
-                            n.setLongName(userData.getString("longName"));
+                            String longName = userData.getString("longName");
+                            u.set("longName", n -> n.setLongName(longName));
                         }
                     }
                     
                     if (nodeData.has("deviceMetrics")) {
                         JSONObject deviceData = nodeData.getJSONObject("deviceMetrics");
                         if (deviceData.has("channelUtilization")) {
-                            n.setChannelUtil(deviceData.getDouble("channelUtilization"));
+                            double channelUtil = deviceData.getDouble("channelUtilization");
+                            u.set("channelUtil", n -> n.setChannelUtil(channelUtil));
                         }
                         if (deviceData.has("airUtilTx")) {
-                            n.setAirUtilTx(deviceData.getDouble("airUtilTx"));
+                            double airUtilTx = deviceData.getDouble("airUtilTx");
+                            u.set("airUtilTx", n -> n.setAirUtilTx(airUtilTx));
                         }
                         if (deviceData.has("batteryLevel")) {
-                            n.setBatteryLevel(deviceData.getDouble("batteryLevel"));
+                            double batteryLevel = deviceData.getDouble("batteryLevel");
+                            u.set("batteryLevel", n -> n.setBatteryLevel(batteryLevel));
                         }
                         if (deviceData.has("voltage")) {
-                            n.setVoltage(deviceData.getDouble("voltage"));
+                            double voltage = deviceData.getDouble("voltage");
+                            u.set("voltage", n -> n.setVoltage(voltage));
                         }
                     }
                     
                     if (nodeData.has("position")) {
                         JSONObject positionData = nodeData.getJSONObject("position");
                         if (positionData.has("latitude") && positionData.has("longitude")) {
-                            double lat = positionData.getDouble("latitude");
-                            double lon = positionData.getDouble("longitude");
                             long time = nodeData.getLong("lastHeard");
                             if (positionData.has("time")) {
                                 time = positionData.getLong("time");
                             }
-                            n.addPosition(lat, lon, time * 1000L);
+                            u.position(positionData.getDouble("latitude"), positionData.getDouble("longitude"), time * 1000L);
                         }
                         if (positionData.has("altitude")) {
-                            n.setAltitude(positionData.getDouble("altitude") * 3.28); // Metres to feet
+                            double altitude = positionData.getDouble("altitude") * 3.28; // Metres to feet
+                            u.set("altitude", n -> n.setAltitude(altitude));
                         }
                     }
 
-                    n.updateMetadataTime(nodeData.getLong("lastHeard") * 1000L);
+                    u.updateMetadataTime(nodeData.getLong("lastHeard") * 1000L);
+                    trackTable.submit(u.build());
                     
                 } else {
                     LOGGER.debug("Rejecting node " + id + " data as 'last heard' unknown or too long ago");
@@ -179,12 +186,19 @@ public class MeshtasticNodeQuerier extends Client {
                 if (endLine > startLine) {
                     String jsonResponse = String.join(System.lineSeparator(), lines.subList(startLine, endLine));
                     jsonResponse = jsonResponse.replace("Nodes in mesh: ", "");
+                    countBytesRead(jsonResponse.length());
+                    updatePacketReceivedTime();
+                    long decodeStart = System.nanoTime();
                     JSONObject obj = new JSONObject(jsonResponse);
+                    countMessageDecoded(decodeStart);
                     handle(obj);
-                    lastReceivedTime = System.currentTimeMillis();
                 } else {
+                    countDecodeError();
                     LOGGER.error("Could not parse Meshtastic info");
                 }
+            } catch (JSONException ex) {
+                countDecodeError();
+                LOGGER.error("Could not parse Meshtastic info", ex);
             } catch (IOException ex) {
                 LOGGER.error("Could not query Meshtastic node, check the command from your application.conf works!", ex);
             }
@@ -0,0 +1,376 @@
+package com.ianrenton.planesailing.comms;
+
+import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.app.TrackUpdate;
+import com.ianrenton.planesailing.data.MeshtasticNode;
+import com.ianrenton.planesailing.utils.DataMaps;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Receiver for node data from a Meshtastic node's TCP API, as used by the
+ * Meshtastic apps and Python CLI.
+ * <p>
+ * On connecting, the client asks the node for its database of known nodes,
+ * which gives the last known state of every node in the mesh. After that, the
+ * node passes on every packet it hears, so positions, node info and
+ * telemetry are updated as soon as they arrive. Messages in both directions
+ * are protobufs, which are read directly from the wire format rather than
+ * using generated classes, as only a few fields of a few messages are needed.
+ * Field numbers come from Meshtastic's mesh.proto, portnums.proto and
+ * telemetry.proto.
+ */
+public class MeshtasticTCPClient extends TCPClient {
+
+    private static final Logger LOGGER = LogManager.getLogger(MeshtasticTCPClient.class);
+
+    // Asking for the node database with this ID tells firmware 2.7 and later to
+    // skip sending its own config, which we don't need. Older firmware treats it
+    // like any other ID and sends everything.
+    private static final int WANT_CONFIG_ID_NODES_ONLY = 69421;
+    // Nodes drop API clients that have sent nothing for 15 minutes
+    private static final long KEEPALIVE_MILLIS = 300000;
+
+    // ToRadio fields
+    private static final int TO_RADIO_WANT_CONFIG_ID = 3;
+    private static final int TO_RADIO_HEARTBEAT = 7;
+    // FromRadio fields
+    private static final int FROM_RADIO_PACKET = 2;
+    private static final int FROM_RADIO_NODE_INFO = 4;
+    private static final int FROM_RADIO_CONFIG_COMPLETE_ID = 7;
+    // NodeInfo fields
+    private static final int NODE_INFO_NUM = 1;
+    private static final int NODE_INFO_USER = 2;
+    private static final int NODE_INFO_POSITION = 3;
+    private static final int NODE_INFO_SNR = 4;
+    private static final int NODE_INFO_LAST_HEARD = 5;
+    private static final int NODE_INFO_DEVICE_METRICS = 6;
+    // MeshPacket fields
+    private static final int PACKET_FROM = 1;
+    private static final int PACKET_DECODED = 4;
+    private static final int PACKET_RX_TIME = 7;
+    private static final int PACKET_RX_SNR = 8;
+    // Data fields, and the port numbers that say what the payload is
+    private static final int DATA_PORTNUM = 1;
+    private static final int DATA_PAYLOAD = 2;
+    private static final int PORTNUM_POSITION = 3;
+    private static final int PORTNUM_NODEINFO = 4;
+    private static final int PORTNUM_TELEMETRY = 67;
+    // User fields
+    private static final int USER_LONG_NAME = 2;
+    private static final int USER_SHORT_NAME = 3;
+    private static final int USER_HW_MODEL = 5;
+    // Position fields
+    private static final int POSITION_LATITUDE = 1;
+    private static final int POSITION_LONGITUDE = 2;
+    private static final int POSITION_ALTITUDE = 3;
+    private static final int POSITION_TIME = 4;
+    // Telemetry fields
+    private static final int TELEMETRY_DEVICE_METRICS = 2;
+    // DeviceMetrics fields
+    private static final int METRICS_BATTERY_LEVEL = 1;
+    private static final int METRICS_VOLTAGE = 2;
+    private static final int METRICS_CHANNEL_UTILIZATION = 3;
+    private static final int METRICS_AIR_UTIL_TX = 4;
+
+    private final MeshtasticFramer framer = new MeshtasticFramer(MeshtasticFramer.DEFAULT_BUFFER_SIZE);
+    private final MeshtasticFramer.FrameHandler frameHandler = this::handleFrame;
+
+    /**
+     * Create the client
+     *
+     * @param name              The name of the connection.
+     * @param remoteHost        Host to connect to.
+     * @param remotePort        Port to connect to.
+     * @param trackTable        The track table to use.
+     * @param connectionManager The connection manager that will handle the
+     *                          connection.
+     */
+    public MeshtasticTCPClient(String name, String remoteHost, int remotePort, TrackTable trackTable,
+                               TCPConnectionManager connectionManager) {
+        super(name, remoteHost, remotePort, trackTable, connectionManager);
+    }
+
+    @Override
+    protected ByteBuffer getReadBuffer() {
+        return framer.getBuffer();
+    }
+
+    @Override
+    protected void dataReceived(ByteBuffer buffer) {
+        framer.process(frameHandler);
+    }
+
+    @Override
+    protected ByteBuffer getConnectMessage() {
+        return MeshtasticFramer.frame(varintField(TO_RADIO_WANT_CONFIG_ID, WANT_CONFIG_ID_NODES_ONLY));
+    }
+
+    @Override
+    protected long getKeepaliveMillis() {
+        return KEEPALIVE_MILLIS;
+    }
+
+    @Override
+    protected ByteBuffer getKeepaliveMessage() {
+        // A ToRadio containing an empty Heartbeat message
+        return MeshtasticFramer.frame(new byte[]{(byte) (TO_RADIO_HEARTBEAT << 3 | ProtobufReader.WIRE_LENGTH_DELIMITED), 0});
+    }
+
+    /**
+     * Handle one frame from the framer, containing a FromRadio message.
+     */
+    private void handleFrame(byte[] data, int offset, int length) {
+        updatePacketReceivedTime();
+        try {
+            long decodeStart = System.nanoTime();
+            ProtobufReader fromRadio = new ProtobufReader(data, offset, length);
+            while (fromRadio.next()) {
+                switch (fromRadio.getFieldNumber()) {
+                    case FROM_RADIO_PACKET -> handlePacket(fromRadio.readMessage());
+                    case FROM_RADIO_NODE_INFO -> handleNodeInfo(fromRadio.readMessage());
+                    case FROM_RADIO_CONFIG_COMPLETE_ID -> {
+                        fromRadio.readVarint();
+                        LOGGER.info("Received node database from Meshtastic node, now receiving live updates");
+                    }
+                    default -> fromRadio.skip();
+                }
+            }
+            countMessageDecoded(decodeStart);
+        } catch (IllegalArgumentException ex) {
+            countDecodeError();
+            LOGGER.debug("Malformed Meshtastic message skipped: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Handle an entry from the node's database of known nodes.
+     */
+    private void handleNodeInfo(ProtobufReader nodeInfo) {
+        long num = 0;
+        long lastHeard = 0;
+        double snr = Double.NaN;
+        ProtobufReader user = null;
+        ProtobufReader position = null;
+        ProtobufReader deviceMetrics = null;
+        while (nodeInfo.next()) {
+            switch (nodeInfo.getFieldNumber()) {
+                case NODE_INFO_NUM -> num = nodeInfo.readVarint();
+                case NODE_INFO_USER -> user = nodeInfo.readMessage();
+                case NODE_INFO_POSITION -> position = nodeInfo.readMessage();
+                case NODE_INFO_SNR -> snr = nodeInfo.readFloat();
+                case NODE_INFO_LAST_HEARD -> lastHeard = Integer.toUnsignedLong(nodeInfo.readFixed32());
+                case NODE_INFO_DEVICE_METRICS -> deviceMetrics = nodeInfo.readMessage();
+                default -> nodeInfo.skip();
+            }
+        }
+
+        // The node database may hold nodes that haven't been heard from for a
+        // long time. Only handle data from nodes whose data is new enough.
+        long lastHeardMillis = lastHeard * 1000L;
+        if (System.currentTimeMillis() - lastHeardMillis >= MeshtasticNode.DROP_MESHTASTIC_TRACK_TIME) {
+            LOGGER.debug("Rejecting node {} data as 'last heard' unknown or too long ago", nodeId(num));
+            return;
+        }
+
+        // Extract the data into an update for the track. If this is a new
+        // track, it will be added to the track table when the update is applied.
+        TrackUpdate.Builder<MeshtasticNode> u = TrackUpdate.builder(nodeId(num), MeshtasticNode.class, MeshtasticNode::new, this);
+        setSnr(u, snr);
+        if (user != null) {
+            readUser(u, user);
+        }
+        if (position != null) {
+            readPosition(u, position, lastHeardMillis);
+        }
+        if (deviceMetrics != null) {
+            readDeviceMetrics(u, deviceMetrics);
+        }
+        u.updateMetadataTime(lastHeardMillis);
+        trackTable.submit(u.build());
+    }
+
+    /**
+     * Handle a packet heard by the node. Only unencrypted position, node info
+     * and telemetry packets contain anything for the node's track.
+     */
+    private void handlePacket(ProtobufReader packet) {
+        long from = 0;
+        long rxTime = 0;
+        double snr = Double.NaN;
+        ProtobufReader decoded = null;
+        while (packet.next()) {
+            switch (packet.getFieldNumber()) {
+                case PACKET_FROM -> from = Integer.toUnsignedLong(packet.readFixed32());
+                case PACKET_DECODED -> decoded = packet.readMessage();
+                case PACKET_RX_TIME -> rxTime = Integer.toUnsignedLong(packet.readFixed32());
+                case PACKET_RX_SNR -> snr = packet.readFloat();
+                default -> packet.skip();
+            }
+        }
+        if (from == 0 || decoded == null) {
+            return;
+        }
+
+        int portnum = 0;
+        ProtobufReader payload = null;
+        while (decoded.next()) {
+            switch (decoded.getFieldNumber()) {
+                case DATA_PORTNUM -> portnum = (int) decoded.readVarint();
+                case DATA_PAYLOAD -> payload = decoded.readMessage();
+                default -> decoded.skip();
+            }
+        }
+        if (payload == null || (portnum != PORTNUM_POSITION && portnum != PORTNUM_NODEINFO && portnum != PORTNUM_TELEMETRY)) {
+            return;
+        }
+
+        long time = rxTime > 0 ? rxTime * 1000L : System.currentTimeMillis();
+        TrackUpdate.Builder<MeshtasticNode> u = TrackUpdate.builder(nodeId(from), MeshtasticNode.class, MeshtasticNode::new, this);
+        setSnr(u, snr);
+        switch (portnum) {
+            case PORTNUM_POSITION -> readPosition(u, payload, time);
+            case PORTNUM_NODEINFO -> readUser(u, payload);
+            default -> {
+                while (payload.next()) {
+                    if (payload.getFieldNumber() == TELEMETRY_DEVICE_METRICS) {
+                        readDeviceMetrics(u, payload.readMessage());
+                    } else {
+                        payload.skip();
+                    }
+                }
+            }
+        }
+        u.updateMetadataTime(time);
+        trackTable.submit(u.build());
+    }
+
+    private static void setSnr(TrackUpdate.Builder<MeshtasticNode> u, double snr) {
+        if (!Double.isNaN(snr)) {
+            u.set("snr", n -> n.setSnr(snr));
+        }
+    }
+
+    /**
+     * Read a User message into a track update.
+     */
+    private static void readUser(TrackUpdate.Builder<MeshtasticNode> u, ProtobufReader user) {
+        while (user.next()) {
+            switch (user.getFieldNumber()) {
+                case USER_LONG_NAME -> {
+                    String longName = user.readString();
+                    u.set("longName", n -> n.setLongName(longName));
+                }
+                case USER_SHORT_NAME -> {
+                    String shortName = user.readString();
+                    u.set("shortName", n -> n.setShortName(shortName));
+                }
+                case USER_HW_MODEL -> {
+                    String model = String.valueOf(user.readVarint());
+                    String hardware = DataMaps.MESHTASTIC_HW_MODEL_TO_NAME.getOrDefault(model, model);
+                    u.set("hardware", n -> n.setHardware(hardware));
+                }
+                default -> user.skip();
+            }
+        }
+    }
+
+    /**
+     * Read a Position message into a track update.
+     *
+     * @param defaultTime Time to use for the position if it doesn't have one.
+     */
+    private static void readPosition(TrackUpdate.Builder<MeshtasticNode> u, ProtobufReader position, long defaultTime) {
+        Integer latitude = null;
+        Integer longitude = null;
+        long time = 0;
+        while (position.next()) {
+            switch (position.getFieldNumber()) {
+                case POSITION_LATITUDE -> latitude = position.readFixed32();
+                case POSITION_LONGITUDE -> longitude = position.readFixed32();
+                case POSITION_ALTITUDE -> {
+                    double altitude = (int) position.readVarint() * 3.28; // Metres to feet
+                    u.set("altitude", n -> n.setAltitude(altitude));
+                }
+                case POSITION_TIME -> time = Integer.toUnsignedLong(position.readFixed32()) * 1000L;
+                default -> position.skip();
+            }
+        }
+        if (latitude != null && longitude != null) {
+            u.position(latitude / 1e7, longitude / 1e7, time > 0 ? time : defaultTime);
+        }
+    }
+
+    /**
+     * Read a DeviceMetrics message into a track update.
+     */
+    private static void readDeviceMetrics(TrackUpdate.Builder<MeshtasticNode> u, ProtobufReader metrics) {
+        while (metrics.next()) {
+            switch (metrics.getFieldNumber()) {
+                case METRICS_BATTERY_LEVEL -> {
+                    double batteryLevel = metrics.readVarint();
+                    u.set("batteryLevel", n -> n.setBatteryLevel(batteryLevel));
+                }
+                case METRICS_VOLTAGE -> {
+                    double voltage = metrics.readFloat();
+                    u.set("voltage", n -> n.setVoltage(voltage));
+                }
+                case METRICS_CHANNEL_UTILIZATION -> {
+                    double channelUtil = metrics.readFloat();
+                    u.set("channelUtil", n -> n.setChannelUtil(channelUtil));
+                }
+                case METRICS_AIR_UTIL_TX -> {
+                    double airUtilTx = metrics.readFloat();
+                    u.set("airUtilTx", n -> n.setAirUtilTx(airUtilTx));
+                }
+                default -> metrics.skip();
+            }
+        }
+    }
+
+    /**
+     * Get the track ID for a node number, in the "!" hex format Meshtastic
+     * uses for node IDs.
+     */
+    private static String nodeId(long num) {
+        return String.format("!%08x", num);
+    }
+
+    /**
+     * Encode a protobuf message containing a single varint field.
+     */
+    private static byte[] varintField(int field, long value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, (long) field << 3 | ProtobufReader.WIRE_VARINT);
+        writeVarint(out, value);
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    @Override
+    protected int getTimeoutMillis() {
+        // Quiet meshes can go a long time without sending anything. Reconnecting
+        // also fetches the node database again, in case anything was missed.
+        return 3600000;
+    }
+
+    @Override
+    public ClientType getType() {
+        return ClientType.MESHTASTIC;
+    }
+
+    @Override
+    protected Logger getLogger() {
+        return LOGGER;
+    }
+}
@@ -0,0 +1,335 @@
+package com.ianrenton.planesailing.comms;
+
+import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.utils.MetricsSource;
+import com.ianrenton.planesailing.utils.MpscRingBuffer;
+import com.ianrenton.planesailing.utils.PrometheusMetricGenerator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opensky.libadsb.ModeSDecoder;
+import org.opensky.libadsb.exceptions.BadFormatException;
+import org.opensky.libadsb.exceptions.UnspecifiedFormatError;
+import org.opensky.libadsb.msgs.ModeSReply;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pool of worker threads that decode Mode S messages for all the ADS-B and
+ * MLAT receivers. Each worker has its own ModeSDecoder, which is not
+ * thread-safe and keeps per-aircraft state for pairing up CPR position
+ * messages. Messages are routed to workers by their aircraft's ICAO 24-bit
+ * address, so every message for one aircraft, from whichever receiver, is
+ * decoded by the same worker in the order it arrived. This keeps the CPR
+ * state consistent while spreading decoding across cores, and means socket
+ * threads only have to split data into frames.
+ * <p>
+ * Routing by address also means that when several feeders hear the same
+ * aircraft, all the copies of a message reach the same worker, so each worker
+ * can throw away duplicates before decoding them without sharing any state.
+ * <p>
+ * When a burst of data arrives faster than the workers can decode it, their
+ * queues start to fill. Rather than dropping whatever arrives once a queue is
+ * full, messages are sorted into classes by priority using just their first
+ * few bytes, and lower priority classes are dropped first once a queue passes
+ * their threshold. This leaves room for positions, which are only dropped when
+ * the queue is completely full.
+ * <p>
+ * Until the pool is started, messages are decoded straight away on the
+ * calling thread.
+ */
+public class ModeSDecodePool implements MetricsSource {
+
+    private static final Logger LOGGER = LogManager.getLogger(ModeSDecodePool.class);
+    // How long an idle worker sleeps for if it's not woken by a new message
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // Maximum number of messages a worker decodes before checking whether to stop
+    private static final int BATCH_SIZE = 256;
+    // Mode S CRC-24 generator polynomial, and lookup table for calculating it a byte at a time
+    private static final int CRC_POLYNOMIAL = 0xFFF409;
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i << 16;
+            for (int j = 0; j < 8; j++) {
+                c = ((c & 0x800000) != 0) ? (c << 1) ^ CRC_POLYNOMIAL : c << 1;
+            }
+            CRC_TABLE[i] = c & 0xFFFFFF;
+        }
+    }
+
+    private final TrackTable trackTable;
+    private final Worker[] workers;
+    private final long duplicateWindowMillis;
+    private final int duplicateMaxEntries;
+    private final double[] shedAbove = new double[MessageClass.values().length];
+    private volatile boolean run;
+
+    /**
+     * Create the pool
+     *
+     * @param trackTable The track table to submit updates to.
+     * @param threads    Number of worker threads.
+     * @param queueSize  Maximum number of messages waiting for each worker.
+     * @param duplicateWindowMillis Time within which an identical message is
+     *                              thrown away as a duplicate. Zero turns
+     *                              this off.
+     * @param duplicateMaxEntries   Maximum number of recent messages each
+     *                              worker remembers to spot duplicates.
+     * @param shedSurveillanceAbove Fraction of a worker's queue size above
+     *                              which surveillance replies are dropped.
+     * @param shedIdentificationAbove Fraction of a worker's queue size above
+     *                                which identification messages are
+     *                                dropped.
+     */
+    public ModeSDecodePool(TrackTable trackTable, int threads, int queueSize,
+                           long duplicateWindowMillis, int duplicateMaxEntries,
+                           double shedSurveillanceAbove, double shedIdentificationAbove) {
+        this.trackTable = trackTable;
+        this.duplicateWindowMillis = duplicateWindowMillis;
+        this.duplicateMaxEntries = duplicateMaxEntries;
+        shedAbove[MessageClass.POSITION.ordinal()] = 1.0;
+        shedAbove[MessageClass.IDENTIFICATION.ordinal()] = shedIdentificationAbove;
+        shedAbove[MessageClass.SURVEILLANCE.ordinal()] = shedSurveillanceAbove;
+        workers = new Worker[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i, queueSize);
+        }
+    }
+
+    /**
+     * Start the worker threads.
+     */
+    public void run() {
+        run = true;
+        for (Worker w : workers) {
+            w.start();
+        }
+        LOGGER.info("Mode S decode pool started with {} workers.", workers.length);
+    }
+
+    /**
+     * Stop the worker threads, once they have decoded everything already queued.
+     */
+    public void stop() {
+        run = false;
+        for (Worker w : workers) {
+            w.stop();
+        }
+    }
+
+    /**
+     * Submit a message to be decoded and applied to the track table. Never
+     * blocks. If the worker's queue is full, or past the threshold for the
+     * message's class, the message is dropped and counted against the client
+     * and its class. Duplicates of a message the worker has just seen
+     * are also counted against the client, and not decoded.
+     *
+     * @param data   The raw 7 or 14 byte Mode S message. The pool takes
+     *               ownership of the array, so it must not be reused.
+     * @param client The client that received the message.
+     */
+    public void submit(byte[] data, Client client) {
+        Worker w = workers[Math.floorMod(icao24(data) * 0x9E3779B9, workers.length)];
+        if (!run) {
+            w.decode(new Frame(data, client));
+        } else {
+            w.submit(new Frame(data, client));
+        }
+    }
+
+    @Override
+    public void writeMetrics(PrometheusMetricGenerator out) {
+        out.header("plane_sailing_modes_decode_queue_depth", "Number of Mode S messages waiting for each decode worker", "gauge");
+        for (Worker w : workers) {
+            out.sample("plane_sailing_modes_decode_queue_depth", w.labels, w.queue.size());
+        }
+        out.header("plane_sailing_modes_decoded_total", "Number of Mode S messages handled by each decode worker since start", "counter");
+        for (Worker w : workers) {
+            out.sample("plane_sailing_modes_decoded_total", w.labels, w.decoded.sum());
+        }
+        out.header("plane_sailing_modes_decode_dropped_total", "Number of Mode S messages of each class dropped because a decode worker's queue was too full since start", "counter");
+        for (Worker w : workers) {
+            for (MessageClass c : MessageClass.values()) {
+                out.sample("plane_sailing_modes_decode_dropped_total", w.classLabels[c.ordinal()], w.dropped[c.ordinal()].sum());
+            }
+        }
+        out.header("plane_sailing_modes_duplicates_suppressed_total", "Number of duplicate Mode S messages each decode worker threw away without decoding since start", "counter");
+        for (Worker w : workers) {
+            out.sample("plane_sailing_modes_duplicates_suppressed_total", w.labels, w.duplicates.sum());
+        }
+    }
+
+    /**
+     * Get the ICAO 24-bit address of the aircraft that sent a Mode S message,
+     * without fully decoding it. Formats 11, 17 and 18 contain it directly.
+     * Most others overlay it on the parity bits, so it can be recovered by
+     * XORing the parity with the CRC of the rest of the message. This is only
+     * used to choose a worker, so it doesn't matter if it is wrong for a
+     * corrupt message.
+     */
+    static int icao24(byte[] data) {
+        int downlinkFormat = (data[0] >>> 3) & 0x1F;
+        if (downlinkFormat == 11 || downlinkFormat == 17 || downlinkFormat == 18) {
+            return ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+        }
+        int n = data.length - 3;
+        int parity = ((data[n] & 0xFF) << 16) | ((data[n + 1] & 0xFF) << 8) | (data[n + 2] & 0xFF);
+        return crc(data, n) ^ parity;
+    }
+
+    /**
+     * Sort a Mode S message into a priority class, without fully decoding it.
+     * Extended squitters (formats 17 and 18) carry a type code in the first
+     * five bits of their ME field, which says whether they contain a position,
+     * velocity, identification or status. Formats 5 and 21 are replies with a
+     * squawk code. Everything else is treated as surveillance, e.g. ACAS,
+     * all-call and Comm-B altitude replies.
+     */
+    static MessageClass classify(byte[] data) {
+        int downlinkFormat = (data[0] >>> 3) & 0x1F;
+        if ((downlinkFormat == 17 || downlinkFormat == 18) && data.length >= 5) {
+            int typeCode = (data[4] >>> 3) & 0x1F;
+            if (typeCode >= 5 && typeCode <= 22) {
+                // Surface and airborne positions, and velocities
+                return MessageClass.POSITION;
+            } else if (typeCode >= 1 && typeCode <= 4) {
+                return MessageClass.IDENTIFICATION;
+            }
+            return MessageClass.SURVEILLANCE;
+        } else if (downlinkFormat == 5 || downlinkFormat == 21) {
+            return MessageClass.IDENTIFICATION;
+        }
+        return MessageClass.SURVEILLANCE;
+    }
+
+    /**
+     * Calculate the Mode S CRC-24 of the first bytes of a message.
+     */
+    static int crc(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = ((crc << 8) ^ CRC_TABLE[((crc >>> 16) ^ data[i]) & 0xFF]) & 0xFFFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * Priority classes of Mode S messages, highest first.
+     */
+    enum MessageClass {
+        POSITION, IDENTIFICATION, SURVEILLANCE
+    }
+
+    /**
+     * A message waiting to be decoded.
+     */
+    private record Frame(byte[] data, Client client) {
+    }
+
+    /**
+     * One decode worker, with its own decoder, queue and thread.
+     */
+    private class Worker implements Runnable {
+
+        private final ModeSDecoder decoder = new ModeSDecoder();
+        private final DuplicateFilter duplicateFilter = new DuplicateFilter(duplicateWindowMillis, duplicateMaxEntries);
+        private final MpscRingBuffer<Frame> queue;
+        private final String[] labels;
+        private final String[][] classLabels = new String[MessageClass.values().length][];
+        // Queue size above which each class of message is dropped
+        private final int[] shedLimits = new int[MessageClass.values().length];
+        private final LongAdder decoded = new LongAdder();
+        private final LongAdder[] dropped = new LongAdder[MessageClass.values().length];
+        private final LongAdder duplicates = new LongAdder();
+        private final int index;
+        private volatile boolean waiting;
+        private Thread thread;
+
+        Worker(int index, int queueSize) {
+            this.index = index;
+            this.queue = new MpscRingBuffer<>(queueSize);
+            this.labels = new String[]{"worker", String.valueOf(index)};
+            for (MessageClass c : MessageClass.values()) {
+                classLabels[c.ordinal()] = new String[]{"worker", String.valueOf(index), "class", c.name().toLowerCase()};
+                shedLimits[c.ordinal()] = (int) (queue.capacity() * shedAbove[c.ordinal()]);
+                dropped[c.ordinal()] = new LongAdder();
+            }
+        }
+
+        void start() {
+            thread = new Thread(this, "Mode S decode worker " + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() {
+            if (thread != null) {
+                LockSupport.unpark(thread);
+                try {
+                    thread.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        void submit(Frame f) {
+            int c = classify(f.data()).ordinal();
+            if ((c != MessageClass.POSITION.ordinal() && queue.size() >= shedLimits[c]) || !queue.offer(f)) {
+                dropped[c].increment();
+                f.client().countMessagesDropped(1);
+                return;
+            }
+            if (waiting) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        public void run() {
+            while (run || queue.size() > 0) {
+                if (queue.drain(this::decode, BATCH_SIZE) == 0 && run) {
+                    // Nothing to do. Let producers know they need to wake us, check
+                    // again in case something arrived in the meantime, then sleep.
+                    waiting = true;
+                    if (queue.size() == 0) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                    waiting = false;
+                }
+            }
+        }
+
+        /**
+         * Decode a message and submit the resulting track update, unless it is
+         * a duplicate.
+         */
+        void decode(Frame f) {
+            Client client = f.client();
+            // Check the raw bytes, before MLAT messages are altered for decoding
+            if (duplicateFilter.isDuplicate(f.data(), 0, f.data().length)) {
+                duplicates.increment();
+                client.countDuplicateSuppressed();
+                return;
+            }
+            try {
+                long decodeStart = System.nanoTime();
+                ModeSReply msg = decoder.decode(BEASTBinaryTCPClient.fudgeMLATData(f.data()));
+                client.countMessageDecoded(decodeStart);
+                BEASTBinaryTCPClient.handle(msg, decoder, trackTable, client);
+            } catch (BadFormatException e) {
+                client.countDecodeError();
+                LOGGER.debug("Malformed message skipped. Message: {}", e.getMessage());
+            } catch (UnspecifiedFormatError e) {
+                client.countDecodeError();
+                LOGGER.debug("Unspecified message skipped.");
+            } catch (RuntimeException ex) {
+                client.countDecodeError();
+                LOGGER.error("Encountered an exception when handling a Mode S message.", ex);
+            }
+            decoded.increment();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.ianrenton.planesailing.comms;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal reader for the protobuf wire format, working directly on the bytes
+ * of a message. The caller steps through the fields one at a time, reading the
+ * ones it knows by field number and skipping the rest, so no generated classes
+ * or schema are needed. Fields are read according to their wire type only, so
+ * the caller must know the type each field was declared with, e.g. whether a
+ * 32-bit fixed field is an integer or a float. Reading a field as the wrong
+ * wire type throws an exception rather than returning garbage. Not
+ * thread-safe.
+ */
+public class ProtobufReader {
+
+    public static final int WIRE_VARINT = 0;
+    public static final int WIRE_FIXED64 = 1;
+    public static final int WIRE_LENGTH_DELIMITED = 2;
+    public static final int WIRE_FIXED32 = 5;
+
+    private final byte[] data;
+    private final int end;
+    private int pos;
+    private int tag;
+
+    /**
+     * Start reading a message. The data must not be changed until the caller
+     * is finished with the reader.
+     *
+     * @param data   Buffer containing the message.
+     * @param offset Offset of the message in the buffer.
+     * @param length Length of the message.
+     */
+    public ProtobufReader(byte[] data, int offset, int length) {
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Move on to the next field. Its value must then be read or skipped
+     * before calling this again.
+     *
+     * @return true if there is another field, false at the end of the message.
+     * @throws IllegalArgumentException if the message is truncated or invalid.
+     */
+    public boolean next() {
+        if (pos >= end) {
+            return false;
+        }
+        tag = (int) readRawVarint();
+        return true;
+    }
+
+    /**
+     * Get the field number of the current field.
+     */
+    public int getFieldNumber() {
+        return tag >>> 3;
+    }
+
+    /**
+     * Get the wire type of the current field.
+     */
+    public int getWireType() {
+        return tag & 0x07;
+    }
+
+    /**
+     * Read a varint field, as used for int32, int64, uint32, uint64, bool and
+     * enum fields. Negative int32 values can be cast straight to an int.
+     */
+    public long readVarint() {
+        expectWireType(WIRE_VARINT);
+        return readRawVarint();
+    }
+
+    /**
+     * Read a 32-bit fixed field, as used for fixed32 and sfixed32 fields.
+     */
+    public int readFixed32() {
+        expectWireType(WIRE_FIXED32);
+        checkAvailable(4);
+        int value = (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8)
+                | ((data[pos + 2] & 0xFF) << 16) | ((data[pos + 3] & 0xFF) << 24);
+        pos += 4;
+        return value;
+    }
+
+    /**
+     * Read a float field.
+     */
+    public float readFloat() {
+        return Float.intBitsToFloat(readFixed32());
+    }
+
+    /**
+     * Read a string field.
+     */
+    public String readString() {
+        int length = readLength();
+        String value = new String(data, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return value;
+    }
+
+    /**
+     * Read an embedded message field, or a bytes field containing an encoded
+     * message.
+     *
+     * @return A reader for the embedded message, sharing this reader's data.
+     */
+    public ProtobufReader readMessage() {
+        int length = readLength();
+        ProtobufReader r = new ProtobufReader(data, pos, length);
+        pos += length;
+        return r;
+    }
+
+    /**
+     * Skip the value of the current field.
+     */
+    public void skip() {
+        switch (getWireType()) {
+            case WIRE_VARINT -> readRawVarint();
+            case WIRE_FIXED64 -> {
+                checkAvailable(8);
+                pos += 8;
+            }
+            case WIRE_LENGTH_DELIMITED -> {
+                int length = readLength();
+                pos += length;
+            }
+            case WIRE_FIXED32 -> {
+                checkAvailable(4);
+                pos += 4;
+            }
+            default -> throw new IllegalArgumentException("Unsupported wire type " + getWireType() + " at " + pos);
+        }
+    }
+
+    private long readRawVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            checkAvailable(1);
+            byte b = data[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long at " + pos);
+    }
+
+    private int readLength() {
+        expectWireType(WIRE_LENGTH_DELIMITED);
+        long length = readRawVarint();
+        if (length < 0 || length > end - pos) {
+            throw new IllegalArgumentException("Invalid length " + length + " at " + pos);
+        }
+        return (int) length;
+    }
+
+    private void expectWireType(int wireType) {
+        if (getWireType() != wireType) {
+            throw new IllegalArgumentException("Field " + getFieldNumber() + " has wire type " + getWireType()
+                    + ", expected " + wireType);
+        }
+    }
+
+    private void checkAvailable(int n) {
+        if (end - pos < n) {
+            throw new IllegalArgumentException("Message truncated at " + pos);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.ianrenton.planesailing.comms;
+
+import com.ianrenton.planesailing.utils.MetricsSource;
+import com.ianrenton.planesailing.utils.PrometheusMetricGenerator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Metrics for the receiver clients of all feeders: how many of each type are
+ * connected and receiving, plus per-client message counts and timings so it
+ * is possible to see which receiver is busy or failing.
+ */
+public class ReceiverMetrics implements MetricsSource {
+
+    private final List<Feeder> feeders;
+
+    public ReceiverMetrics(List<Feeder> feeders) {
+        this.feeders = feeders;
+    }
+
+    @Override
+    public void writeMetrics(PrometheusMetricGenerator out) {
+        // Count connection status of each receiver type in one pass
+        int[] connected = new int[ClientType.values().length];
+        int[] receiving = new int[ClientType.values().length];
+        List<Client> clients = new ArrayList<>();
+        List<String[]> labels = new ArrayList<>();
+        List<UDPReceiver> udpReceivers = new ArrayList<>();
+        List<String[]> udpLabels = new ArrayList<>();
+        for (Feeder f : feeders) {
+            for (Client c : f.getReceivers()) {
+                ConnectionStatus status = c.getStatus();
+                if (status == ConnectionStatus.WAITING || status == ConnectionStatus.ACTIVE) {
+                    connected[c.getType().ordinal()]++;
+                }
+                if (status == ConnectionStatus.ACTIVE) {
+                    receiving[c.getType().ordinal()]++;
+                }
+                clients.add(c);
+                labels.add(new String[]{"feeder", f.getName(), "client", c.getName(), "type", c.getType().name()});
+                if (c instanceof UDPReceiver u) {
+                    udpReceivers.add(u);
+                    udpLabels.add(new String[]{"feeder", f.getName(), "client", c.getName(), "port", String.valueOf(u.getLocalPort())});
+                }
+            }
+        }
+
+        out.gauge("plane_sailing_adsb_inputs_available", "How many ADSB receivers are configured and connected?",
+                connected[ClientType.ADSB.ordinal()]);
+        out.gauge("plane_sailing_mlat_inputs_available", "How many MLAT receivers are configured and connected?",
+                connected[ClientType.MLAT.ordinal()]);
+        out.gauge("plane_sailing_ais_inputs_available", "How many AIS receivers are configured and connected?",
+                connected[ClientType.AIS.ordinal()]);
+        out.gauge("plane_sailing_aprs_inputs_available", "How many APRS receivers are configured and connected?",
+                connected[ClientType.APRS.ordinal()]);
+        out.gauge("plane_sailing_horus_inputs_available", "How many HORUS receivers are configured and connected?",
+                connected[ClientType.HORUS.ordinal()]);
+        out.gauge("plane_sailing_meshtastic_inputs_available", "How many Meshtastic node queriers are configured and have communicated at least once?",
+                connected[ClientType.MESHTASTIC.ordinal()]);
+        out.gauge("plane_sailing_adsb_inputs_receiving", "How many ADSB receivers are receiving data?",
+                receiving[ClientType.ADSB.ordinal()]);
+        out.gauge("plane_sailing_mlat_inputs_receiving", "How many MLAT receivers are receiving data?",
+                receiving[ClientType.MLAT.ordinal()]);
+        out.gauge("plane_sailing_ais_inputs_receiving", "How many AIS receivers are receiving data?",
+                receiving[ClientType.AIS.ordinal()]);
+        out.gauge("plane_sailing_aprs_inputs_receiving", "How many APRS receivers are receiving data?",
+                receiving[ClientType.APRS.ordinal()]);
+        out.gauge("plane_sailing_horus_inputs_receiving", "How many HORUS receivers are receiving data?",
+                receiving[ClientType.HORUS.ordinal()]);
+        out.gauge("plane_sailing_meshtastic_inputs_receiving", "How many Meshtastic receivers have responded to query on schedule?",
+                receiving[ClientType.MESHTASTIC.ordinal()]);
+
+        // Per-client statistics
+        out.header("plane_sailing_receiver_messages_received_total", "Number of messages received by each receiver since start", "counter");
+        for (int i = 0; i < clients.size(); i++) {
+            out.sample("plane_sailing_receiver_messages_received_total", labels.get(i), clients.get(i).getMessagesReceived());
+        }
+        out.header("plane_sailing_receiver_messages_decoded_total", "Number of messages successfully decoded by each receiver since start", "counter");
+        for (int i = 0; i < clients.size(); i++) {
+            out.sample("plane_sailing_receiver_messages_decoded_total", labels.get(i), clients.get(i).getMessagesDecoded());
+        }
+        out.header("plane_sailing_receiver_decode_errors_total", "Number of messages each receiver failed to decode since start", "counter");
+        for (int i = 0; i < clients.size(); i++) {
+            out.sample("plane_sailing_receiver_decode_errors_total", labels.get(i), clients.get(i).getDecodeErrors());
+        }
+        out.header("plane_sailing_receiver_messages_dropped_total", "Number of messages each receiver threw away without decoding since start", "counter");
+        for (int i = 0; i < clients.size(); i++) {
+            out.sample("plane_sailing_receiver_messages_dropped_total", labels.get(i), clients.get(i).getMessagesDropped());
+        }
+        out.header("plane_sailing_receiver_duplicates_suppressed_total", "Number of messages each receiver threw away as duplicates of one just received, usually from another feeder, since start", "counter");
+        for (int i = 0; i < clients.size(); i++) {
+            out.sample("plane_sailing_receiver_duplicates_suppressed_total", labels.get(i), clients.get(i).getDuplicatesSuppressed());
+        }
+        out.header("plane_sailing_receiver_positions_rejected_total", "Number of unreasonable positions from each receiver rejected since start", "counter");
+        for (int i = 0; i < clients.size(); i++) {
+            out.sample("plane_sailing_receiver_positions_rejected_total", labels.get(i), clients.get(i).getPositionsRejected());
+        }
+        out.header("plane_sailing_receiver_bytes_read_total", "Number of bytes read by each receiver since start", "counter");
+        for (int i = 0; i < clients.size(); i++) {
+            out.sample("plane_sailing_receiver_bytes_read_total", labels.get(i), clients.get(i).getBytesRead());
+        }
+        out.header("plane_sailing_receiver_records_dropped_total", "Number of chunks of data from each receiver that weren't recorded because the disk couldn't keep up, since start", "counter");
+        for (int i = 0; i < clients.size(); i++) {
+            FeedRecorder recorder = clients.get(i).getRecorder();
+            if (recorder != null) {
+                out.sample("plane_sailing_receiver_records_dropped_total", labels.get(i), recorder.getDroppedCount());
+            }
+        }
+        out.header("plane_sailing_receiver_decode_latency_seconds", "Time taken by each receiver to decode a message", "histogram");
+        for (int i = 0; i < clients.size(); i++) {
+            out.histogram("plane_sailing_receiver_decode_latency_seconds", labels.get(i), clients.get(i).getDecodeLatency());
+        }
+        out.header("plane_sailing_receiver_track_update_latency_seconds", "Time from each receiver decoding a message to the track table being updated with it", "histogram");
+        for (int i = 0; i < clients.size(); i++) {
+            out.histogram("plane_sailing_receiver_track_update_latency_seconds", labels.get(i), clients.get(i).getTrackUpdateLatency());
+        }
+
+        // Per-port statistics for UDP receivers
+        out.header("plane_sailing_udp_datagrams_received_total", "Number of datagrams received on each UDP port since start", "counter");
+        for (int i = 0; i < udpReceivers.size(); i++) {
+            out.sample("plane_sailing_udp_datagrams_received_total", udpLabels.get(i), udpReceivers.get(i).getDatagramsReceived());
+        }
+        out.header("plane_sailing_udp_datagrams_truncated_total", "Number of datagrams on each UDP port dropped for being too big since start", "counter");
+        for (int i = 0; i < udpReceivers.size(); i++) {
+            out.sample("plane_sailing_udp_datagrams_truncated_total", udpLabels.get(i), udpReceivers.get(i).getDatagramsTruncated());
+        }
+        out.header("plane_sailing_udp_receive_batches_total", "Number of batches of datagrams received on each UDP port since start", "counter");
+        for (int i = 0; i < udpReceivers.size(); i++) {
+            out.sample("plane_sailing_udp_receive_batches_total", udpLabels.get(i), udpReceivers.get(i).getBatches());
+        }
+        out.header("plane_sailing_udp_kernel_drops_total", "Number of datagrams on each UDP port dropped by the OS because the receive buffer was full (Linux only)", "counter");
+        for (int i = 0; i < udpReceivers.size(); i++) {
+            out.sample("plane_sailing_udp_kernel_drops_total", udpLabels.get(i), udpReceivers.get(i).getKernelDrops());
+        }
+        out.header("plane_sailing_udp_receive_buffer_bytes", "Size of each UDP port's socket receive buffer, as granted by the OS", "gauge");
+        for (int i = 0; i < udpReceivers.size(); i++) {
+            out.sample("plane_sailing_udp_receive_buffer_bytes", udpLabels.get(i), udpReceivers.get(i).getActualReceiveBufferSize());
+        }
+    }
+}
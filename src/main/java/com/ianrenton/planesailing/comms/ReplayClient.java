@@ -0,0 +1,261 @@
+package com.ianrenton.planesailing.comms;
+
+import com.ianrenton.planesailing.utils.Histogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Client that replays capture files written by a {@link FeedRecorder},
+ * instead of connecting to a real data source. The recorded data is fed
+ * through a normal client of the type that recorded it, which is never run
+ * itself, so it is framed, decoded and applied to the track table exactly as
+ * it was when it was received. This client reports the other client's name,
+ * type and statistics as its own.
+ * <p>
+ * Data can be replayed at the speed it was recorded, a multiple of that, or
+ * as fast as possible, e.g. to reproduce a performance problem or to compare
+ * before and after a change to a decoder. Timestamps in the resulting tracks
+ * are the time the data was replayed, not the time it was recorded.
+ */
+public class ReplayClient extends Client {
+
+    private static final Logger LOGGER = LogManager.getLogger(ReplayClient.class);
+
+    private final Client target;
+    private final Path directory;
+    private final String captureName;
+    private final Pattern fileNamePattern;
+    private final double speed;
+    private volatile boolean run;
+    private Thread thread;
+
+    /**
+     * Create the client
+     *
+     * @param target The client to feed recorded data through. It should be
+     *               created as normal but never run.
+     * @param files  Capture files to replay, given as the path of the
+     *               directory they are in plus the name they were recorded
+     *               with, e.g. "recordings/Local-ADS-B". All matching files
+     *               are replayed in name order, which is the order they were
+     *               recorded in.
+     * @param speed  Speed to replay at: 1 for the speed it was recorded, 10 for
+     *               ten times faster, or 0 for as fast as possible.
+     */
+    public ReplayClient(Client target, Path files, double speed) {
+        super(target.getName(), target.trackTable);
+        this.target = target;
+        this.directory = files.toAbsolutePath().getParent();
+        this.captureName = files.getFileName().toString();
+        this.fileNamePattern = FeedRecorder.fileNamePattern(captureName);
+        this.speed = speed;
+    }
+
+    @Override
+    public void run() {
+        run = true;
+        thread = new Thread(this::replayAll, "Replay " + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        run = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        target.online = false;
+    }
+
+    /**
+     * Replay thread. Replays every matching file in turn.
+     */
+    private void replayAll() {
+        List<Path> files;
+        try (Stream<Path> s = Files.list(directory)) {
+            files = s.filter(p -> fileNamePattern.matcher(p.getFileName().toString()).matches())
+                    .sorted().toList();
+        } catch (IOException ex) {
+            LOGGER.error("Could not list capture files in {}", directory, ex);
+            return;
+        }
+        if (files.isEmpty()) {
+            LOGGER.error("No capture files found for {} in {}", captureName, directory);
+            return;
+        }
+
+        LOGGER.info("Replaying {} capture files for {} {} at {}...", files.size(), target.getType(), name,
+                speed > 0 ? speed + "x speed" : "maximum speed");
+        target.online = true;
+        Replay replay = new Replay();
+        long start = System.nanoTime();
+        try {
+            for (Path file : files) {
+                if (!run) {
+                    break;
+                }
+                replay.replayFile(file);
+            }
+            LOGGER.info("Finished replaying {} {}: {} records, {} bytes in {} ms", target.getType(), name,
+                    replay.records, replay.bytes, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (InterruptedException ex) {
+            LOGGER.info("Replay of {} {} stopped", target.getType(), name);
+        } catch (UnsupportedOperationException ex) {
+            LOGGER.error("Can't replay {} {}: {}", target.getType(), name, ex.getMessage());
+        }
+        target.online = false;
+    }
+
+    /**
+     * State of a replay that carries across files, so gaps between files
+     * are replayed at the right speed too.
+     */
+    private class Replay {
+        private byte[] data = new byte[65536];
+        private long firstRecordTime = -1;
+        private long startNanos;
+        private long records;
+        private long bytes;
+
+        void replayFile(Path file) throws InterruptedException {
+            LOGGER.debug("Replaying {}", file);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536))) {
+                byte[] magic = new byte[FeedRecorder.MAGIC.length];
+                in.readFully(magic);
+                if (!Arrays.equals(magic, FeedRecorder.MAGIC)) {
+                    LOGGER.error("{} is not a capture file, skipping it", file);
+                    return;
+                }
+                while (run) {
+                    long time;
+                    try {
+                        time = in.readLong();
+                    } catch (EOFException ex) {
+                        break;
+                    }
+                    int length = in.readInt();
+                    if (length < 0) {
+                        throw new IOException("Invalid record length " + length);
+                    }
+                    if (data.length < length) {
+                        data = new byte[length];
+                    }
+                    in.readFully(data, 0, length);
+                    waitUntil(time);
+                    try {
+                        target.replay(data, 0, length);
+                    } catch (UnsupportedOperationException ex) {
+                        throw ex;
+                    } catch (RuntimeException ex) {
+                        LOGGER.error("Exception replaying {} data", target.getType(), ex);
+                    }
+                    records++;
+                    bytes += length;
+                }
+            } catch (IOException ex) {
+                // Probably a file that was still being written when recording stopped
+                LOGGER.warn("Could not read all of {}: {}", file, ex.getLocalizedMessage());
+            }
+        }
+
+        /**
+         * Wait until it is time to replay a record, according to the replay
+         * speed.
+         */
+        private void waitUntil(long recordTime) throws InterruptedException {
+            if (firstRecordTime < 0) {
+                firstRecordTime = recordTime;
+                startNanos = System.nanoTime();
+            }
+            if (speed <= 0) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                return;
+            }
+            long dueNanos = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(recordTime - firstRecordTime) / speed);
+            long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
+
+    @Override
+    public ConnectionStatus getStatus() {
+        return target.getStatus();
+    }
+
+    @Override
+    public ClientType getType() {
+        return target.getType();
+    }
+
+    @Override
+    protected Logger getLogger() {
+        return target.getLogger();
+    }
+
+    @Override
+    protected int getTimeoutMillis() {
+        return target.getTimeoutMillis();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return target.getMessagesReceived();
+    }
+
+    @Override
+    public long getMessagesDecoded() {
+        return target.getMessagesDecoded();
+    }
+
+    @Override
+    public long getDecodeErrors() {
+        return target.getDecodeErrors();
+    }
+
+    @Override
+    public long getMessagesDropped() {
+        return target.getMessagesDropped();
+    }
+
+    @Override
+    public long getDuplicatesSuppressed() {
+        return target.getDuplicatesSuppressed();
+    }
+
+    @Override
+    public long getPositionsRejected() {
+        return target.getPositionsRejected();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return target.getBytesRead();
+    }
+
+    @Override
+    public Histogram getDecodeLatency() {
+        return target.getDecodeLatency();
+    }
+
+    @Override
+    public Histogram getTrackUpdateLatency() {
+        return target.getTrackUpdateLatency();
+    }
+}
@@ -0,0 +1,208 @@
+package com.ianrenton.planesailing.comms;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parser for lines of SBS ("BaseStation") format data, working directly on
+ * the bytes in a read buffer. Parsing a line just records where each field
+ * starts and ends, and numbers are then parsed straight from the bytes, so
+ * handling a line doesn't need to create any Strings except for the ones that
+ * end up in the track. One parser should be used per connection, and it is not
+ * thread-safe.
+ */
+public class SBSParser {
+
+    // Field indices in an SBS line
+    public static final int MESSAGE_TYPE = 0;
+    public static final int ICAO_HEX = 4;
+    public static final int CALLSIGN = 10;
+    public static final int ALTITUDE = 11;
+    public static final int SPEED = 12;
+    public static final int COURSE = 13;
+    public static final int LATITUDE = 14;
+    public static final int LONGITUDE = 15;
+    public static final int VERTICAL_RATE = 16;
+    public static final int SQUAWK = 17;
+    public static final int ON_GROUND = 21;
+
+    // We don't use any fields past "is on ground", so don't bother finding them
+    private static final int MAX_FIELDS = ON_GROUND + 1;
+    // Size of the cache of ICAO hex strings. Must be a power of two.
+    private static final int ID_CACHE_SIZE = 1024;
+    // Powers of ten that can be represented exactly as doubles
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private final String[] idCache = new String[ID_CACHE_SIZE];
+    private byte[] data;
+    private int fieldCount;
+
+    /**
+     * Parse a line. The line's data must not be changed until the caller is
+     * finished getting fields from this parser.
+     *
+     * @param data   Buffer containing the line.
+     * @param offset Offset of the line in the buffer.
+     * @param length Length of the line, without its line ending.
+     */
+    public void parse(byte[] data, int offset, int length) {
+        this.data = data;
+        int end = offset + length;
+        int start = offset;
+        fieldCount = 0;
+        for (int i = offset; i < end && fieldCount < MAX_FIELDS; i++) {
+            if (data[i] == ',') {
+                setField(start, i);
+                start = i + 1;
+            }
+        }
+        if (fieldCount < MAX_FIELDS) {
+            setField(start, end);
+        }
+    }
+
+    /**
+     * Get the number of fields found in the line, up to the last one we use.
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Check if a field is missing or empty.
+     */
+    public boolean isEmpty(int field) {
+        return field >= fieldCount || fieldStart[field] == fieldEnd[field];
+    }
+
+    /**
+     * Check if a field matches some ASCII text exactly.
+     */
+    public boolean fieldEquals(int field, String text) {
+        if (field >= fieldCount || fieldEnd[field] - fieldStart[field] != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (data[fieldStart[field] + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get a field as a String.
+     */
+    public String getString(int field) {
+        return new String(data, fieldStart[field], fieldEnd[field] - fieldStart[field], StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Get a field that is used as an ID, such as the ICAO hex code. The same
+     * IDs come up over and over again, so recent ones are cached and reused
+     * rather than creating a new String each time.
+     */
+    public String getId(int field) {
+        int start = fieldStart[field];
+        int length = fieldEnd[field] - start;
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + data[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (ID_CACHE_SIZE - 1);
+        String cached = idCache[slot];
+        if (cached != null && fieldEquals(field, cached)) {
+            return cached;
+        }
+        String id = getString(field);
+        idCache[slot] = id;
+        return id;
+    }
+
+    /**
+     * Get a field as an integer.
+     *
+     * @throws NumberFormatException if the field is not an integer.
+     */
+    public int getInt(int field) {
+        int i = fieldStart[field];
+        int end = fieldEnd[field];
+        boolean negative = false;
+        if (i < end && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+        if (i == end || end - i > 9) {
+            throw new NumberFormatException("Bad integer: " + getString(field));
+        }
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Bad integer: " + getString(field));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Get a field as a decimal number.
+     *
+     * @throws NumberFormatException if the field is not a number.
+     */
+    public double getDouble(int field) {
+        int i = fieldStart[field];
+        int end = fieldEnd[field];
+        boolean negative = false;
+        if (i < end && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < end; i++) {
+            byte b = data[i];
+            if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else {
+                // Exponents etc. aren't used in SBS, so let Java deal with anything unusual
+                return Double.parseDouble(getString(field));
+            }
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Bad number: " + getString(field));
+        }
+        if (digits > 15) {
+            // Too many digits to be sure of getting the same answer as Java would
+            return Double.parseDouble(getString(field));
+        }
+        // Both parts are exact, so dividing gives the correctly rounded answer
+        double value = (decimals > 0) ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Record the position of the next field, with surrounding spaces removed.
+     */
+    private void setField(int start, int end) {
+        while (start < end && data[start] == ' ') {
+            start++;
+        }
+        while (end > start && data[end - 1] == ' ') {
+            end--;
+        }
+        fieldStart[fieldCount] = start;
+        fieldEnd[fieldCount] = end;
+        fieldCount++;
+    }
+}
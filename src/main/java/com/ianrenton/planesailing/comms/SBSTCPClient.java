@@ -1,14 +1,13 @@
 package com.ianrenton.planesailing.comms;
 
 import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.app.TrackUpdate;
 import com.ianrenton.planesailing.data.Aircraft;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Receiver for aircraft data in SBS ("BaseStation") format: comma-separated
@@ -22,119 +21,108 @@ public class SBSTCPClient extends TCPClient {
 
     private final boolean mlat;
     private final int socketTimeoutMillis;
+    private final LineFramer framer = new LineFramer(LineFramer.DEFAULT_BUFFER_SIZE);
+    private final LineFramer.LineHandler lineHandler = this::handleLine;
+    private final SBSParser parser = new SBSParser();
 
     /**
      * Create the client
      *
-     * @param name       The name of the connection.
-     * @param remoteHost Host to connect to.
-     * @param remotePort Port to connect to.
-     * @param trackTable The track table to use.
-     * @param mlat       true if this connection will be receiving MLAT data, false if it
-     *                   will be receiving Mode-S/ADS-B data from a local radio.
+     * @param name              The name of the connection.
+     * @param remoteHost        Host to connect to.
+     * @param remotePort        Port to connect to.
+     * @param trackTable        The track table to use.
+     * @param connectionManager The connection manager that will handle the
+     *                          connection.
+     * @param mlat              true if this connection will be receiving MLAT data,
+     *                          false if it will be receiving Mode-S/ADS-B data from
+     *                          a local radio.
      */
-    public SBSTCPClient(String name, String remoteHost, int remotePort, TrackTable trackTable, boolean mlat) {
-        super(name, remoteHost, remotePort, trackTable);
+    public SBSTCPClient(String name, String remoteHost, int remotePort, TrackTable trackTable,
+                        TCPConnectionManager connectionManager, boolean mlat) {
+        super(name, remoteHost, remotePort, trackTable, connectionManager);
         this.mlat = mlat;
         socketTimeoutMillis = mlat ? 600000 : 60000; // 1 min for local data, 10 min for MLAT from server
     }
 
     @Override
-    protected boolean read(InputStream in) {
-        try {
-            String line = new BufferedReader(new InputStreamReader(in)).readLine();
-            if (line != null) {
-                updatePacketReceivedTime();
-                handle(line);
-            }
-            return true;
-        } catch (IOException ex) {
-            getLogger().warn("Exception encountered in Receiver {}.", getType(), ex);
-            return false;
-        }
+    protected ByteBuffer getReadBuffer() {
+        return framer.getBuffer();
+    }
+
+    @Override
+    protected void dataReceived(ByteBuffer buffer) {
+        framer.process(lineHandler);
     }
 
     /**
-     * Handle a new line of SBS format data.
+     * Handle a new line of SBS format data from the framer.
      */
-    private void handle(String m) {
+    private void handleLine(byte[] data, int offset, int length) {
+        updatePacketReceivedTime();
         try {
-            String[] fields = m.split(",");
-            String icaoHex = fields[4];
+            long decodeStart = System.nanoTime();
+            parser.parse(data, offset, length);
+
+            // Only "MSG" lines contain aircraft data. Every transmission type is
+            // used, even type 8 (all call reply), which only has the on ground
+            // field but still shows the aircraft is there.
+            if (!parser.fieldEquals(SBSParser.MESSAGE_TYPE, "MSG") || parser.isEmpty(SBSParser.ICAO_HEX)) {
+                return;
+            }
+
+            // Extract the data into an update for the track. If this is a new
+            // track, it will be added to the track table when the update is applied.
+            TrackUpdate.Builder<Aircraft> u = TrackUpdate.builder(parser.getId(SBSParser.ICAO_HEX), Aircraft.class, Aircraft::new, this);
 
-            // If this is a new track, add it to the track table
-            if (!trackTable.containsKey(icaoHex)) {
-                trackTable.put(icaoHex, new Aircraft(icaoHex));
+            if (!parser.isEmpty(SBSParser.CALLSIGN)) {
+                String callsign = parser.getString(SBSParser.CALLSIGN);
+                u.set("callsign", a -> a.setCallsign(callsign));
             }
 
-            // Extract the data and update the track
-            Aircraft a = (Aircraft) trackTable.get(icaoHex);
-
-            if (fields[0].equals("MSG")) {
-                if (fields.length > 10) {
-                    String callsign = fields[10].trim();
-                    if (!callsign.isEmpty()) {
-                        a.setCallsign(callsign);
-                    }
-                }
-
-                if (fields.length > 11) {
-                    String altitude = fields[11].trim();
-                    if (!altitude.isEmpty()) {
-                        a.setAltitude(Double.valueOf(altitude));
-                    }
-                }
-
-                if (fields.length > 12) {
-                    String speed = fields[12].trim();
-                    if (!speed.isEmpty()) {
-                        a.setSpeed(Double.valueOf(speed));
-                    }
-                }
-
-                if (fields.length > 13) {
-                    String course = fields[13].trim();
-                    if (!course.isEmpty()) {
-                        a.setCourse(Double.valueOf(course));
-                        a.setHeading(Double.valueOf(course)); // SBS will never give us a separate mag heading so just
-                        // use
-                        // course as heading
-                    }
-                }
-
-                if (fields.length > 15) {
-                    String latitude = fields[14].trim();
-                    String longitude = fields[15].trim();
-                    if (!latitude.isEmpty() && !longitude.isEmpty()) {
-                        a.addPosition(Double.parseDouble(latitude), Double.parseDouble(longitude));
-                    }
-                }
-
-                if (fields.length > 16) {
-                    String verticalRate = fields[16].trim();
-                    if (!verticalRate.isEmpty()) {
-                        a.setVerticalRate(Double.valueOf(verticalRate));
-                    }
-                }
-
-                if (fields.length > 17) {
-                    String squawk = fields[17].trim();
-                    if (!squawk.isEmpty()) {
-                        a.setSquawk(Integer.parseInt(squawk));
-                    }
-                }
-
-                if (fields.length > 21) {
-                    String isOnGround = fields[21].trim();
-                    if (!isOnGround.isEmpty()) {
-                        a.setOnGround(!isOnGround.equals("0"));
-                    }
-                }
-
-                a.updateMetadataTime();
+            if (!parser.isEmpty(SBSParser.ALTITUDE)) {
+                double alt = parser.getDouble(SBSParser.ALTITUDE);
+                u.set("altitude", a -> a.setAltitude(alt));
             }
+
+            if (!parser.isEmpty(SBSParser.SPEED)) {
+                double spd = parser.getDouble(SBSParser.SPEED);
+                u.set("speed", a -> a.setSpeed(spd));
+            }
+
+            if (!parser.isEmpty(SBSParser.COURSE)) {
+                double crs = parser.getDouble(SBSParser.COURSE);
+                u.set("course", a -> a.setCourse(crs));
+                // SBS will never give us a separate mag heading so just use course as heading
+                u.set("heading", a -> a.setHeading(crs));
+            }
+
+            if (!parser.isEmpty(SBSParser.LATITUDE) && !parser.isEmpty(SBSParser.LONGITUDE)) {
+                u.position(parser.getDouble(SBSParser.LATITUDE), parser.getDouble(SBSParser.LONGITUDE));
+            }
+
+            if (!parser.isEmpty(SBSParser.VERTICAL_RATE)) {
+                double vr = parser.getDouble(SBSParser.VERTICAL_RATE);
+                u.set("verticalRate", a -> a.setVerticalRate(vr));
+            }
+
+            if (!parser.isEmpty(SBSParser.SQUAWK)) {
+                int sq = parser.getInt(SBSParser.SQUAWK);
+                u.set("squawk", a -> a.setSquawk(sq));
+            }
+
+            if (!parser.isEmpty(SBSParser.ON_GROUND)) {
+                boolean onGround = !parser.fieldEquals(SBSParser.ON_GROUND, "0");
+                u.set("onGround", a -> a.setOnGround(onGround));
+            }
+
+            u.updateMetadataTime();
+            countMessageDecoded(decodeStart);
+            trackTable.submit(u.build());
         } catch (Exception ex) {
-            getLogger().warn("Receiver {} encountered an exception handling line {}", name, m, ex);
+            countDecodeError();
+            getLogger().warn("Receiver {} encountered an exception handling line {}", name,
+                    new String(data, offset, length, StandardCharsets.US_ASCII), ex);
         }
     }
 
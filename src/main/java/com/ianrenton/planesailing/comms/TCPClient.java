@@ -2,111 +2,117 @@ package com.ianrenton.planesailing.comms;
 
 import com.ianrenton.planesailing.app.TrackTable;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.Socket;
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
 
 /**
- * Generic line-reading TCP client implementation, to abstract out commonality
- * between SBS and APRS clients.
+ * Generic TCP client implementation, to abstract out commonality between
+ * SBS, BEAST and APRS clients. The connection itself is handled by a
+ * {@link TCPConnectionManager}, which reads data into the client's buffer and
+ * asks the client to decode it.
  */
 public abstract class TCPClient extends Client {
 
     protected final String remoteHost;
     protected final int remotePort;
-    final Receiver receiver = new Receiver();
-    protected boolean run = true;
+    private final TCPConnectionManager connectionManager;
 
     /**
      * Create the client
      *
-     * @param name       The name of the connection.
-     * @param remoteHost Host to connect to.
-     * @param remotePort Port to connect to.
-     * @param trackTable The track table to use.
+     * @param name              The name of the connection.
+     * @param remoteHost        Host to connect to.
+     * @param remotePort        Port to connect to.
+     * @param trackTable        The track table to use.
+     * @param connectionManager The connection manager that will handle the
+     *                          connection.
      */
-    public TCPClient(String name, String remoteHost, int remotePort, TrackTable trackTable) {
+    public TCPClient(String name, String remoteHost, int remotePort, TrackTable trackTable,
+                     TCPConnectionManager connectionManager) {
         super(name, trackTable);
         this.remoteHost = remoteHost;
         this.remotePort = remotePort;
+        this.connectionManager = connectionManager;
     }
 
     @Override
     public void run() {
-        run = true;
-        new Thread(receiver, getType() + " receiver thread").start();
+        connectionManager.register(this);
     }
 
     @Override
     public void stop() {
-        run = false;
+        connectionManager.unregister(this);
     }
 
     /**
-     * Read data from the stream, and process it if appropriate.
-     * This method can block for as long as it likes trying to
-     * read, but the TCP server implements a socket timeout so
-     * after a certain amount of time any read operation on the
-     * stream will fail.
-     *
-     * @param in The input stream to read data from.
-     * @return true if data was successfully read this time,
-     * regardless of whether we chose to process it or not. False
-     * if the read operation failed, and we need to reconnect
-     * the socket.
+     * Feed recorded data through the read buffer as if it had just been read
+     * from the socket.
      */
-    protected abstract boolean read(InputStream in);
+    @Override
+    protected void replay(byte[] data, int offset, int length) {
+        ByteBuffer buffer = getReadBuffer();
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                // As for a live connection, a full buffer must be garbage
+                buffer.clear();
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.put(data, offset, n);
+            offset += n;
+            length -= n;
+            countBytesRead(n);
+            dataReceived(buffer);
+        }
+    }
 
     /**
-     * Inner receiver thread. Reads lines from the TCP socket, and provides them
-     * to the handle() method.
+     * Get the buffer that data from the socket should be read into. The same
+     * buffer must be returned every time. The connection manager clears it
+     * whenever a new connection is made.
      */
-    private class Receiver implements Runnable {
+    protected abstract ByteBuffer getReadBuffer();
 
-        private Socket clientSocket;
-        private InputStream in;
+    /**
+     * Process new data. This is called on the connection manager's event loop
+     * thread, so must not block. The buffer contains data from its start up to
+     * its position. Implementations must handle all the complete messages in
+     * it, then leave any partial message at the start of the buffer, with the
+     * position just after it, ready for the next read.
+     *
+     * @param buffer The read buffer.
+     */
+    protected abstract void dataReceived(ByteBuffer buffer);
+
+    /**
+     * Get a message to send as soon as a connection is made, for servers that
+     * need to be asked before they send any data. Called on the connection
+     * manager's event loop thread. By default nothing is sent.
+     *
+     * @return The message, ready to be read from its position to its limit,
+     * or null to send nothing.
+     */
+    protected ByteBuffer getConnectMessage() {
+        return null;
+    }
 
-        public void run() {
-            while (run) {
-                while (run) {
-                    // Try to connect
-                    try {
-                        getLogger().info("Trying to make TCP connection to {}:{} to receive {}...", remoteHost, remotePort, getType());
-                        clientSocket = new Socket(remoteHost, remotePort);
-                        clientSocket.setSoTimeout(getTimeoutMillis());
-                        clientSocket.setSoLinger(false, 0);
-                        clientSocket.setKeepAlive(true);
-                        clientSocket.setReuseAddress(true);
-                        in = clientSocket.getInputStream();
-                        online = true;
-                        getLogger().info("Receiver {} connected.", getType());
-                        break;
-                    } catch (IOException e) {
-                        try {
-                            getLogger().warn("Receiver {} could not connect ({}), trying again in one minute...", getType(), e.getLocalizedMessage());
-                            TimeUnit.MINUTES.sleep(1);
-                        } catch (InterruptedException ie) {
-                            // This is fine, carry on
-                        }
-                    }
-                }
+    /**
+     * Get the time between keepalive messages, for servers that drop idle
+     * connections. By default no keepalives are sent.
+     *
+     * @return The time in milliseconds, or zero to send no keepalives.
+     */
+    protected long getKeepaliveMillis() {
+        return 0;
+    }
 
-                while (run) {
-                    boolean ok = read(in);
-                    if (!ok) {
-                        getLogger().warn("Receiver {} read failed, reconnecting...", getType());
-                        try {
-                            online = false;
-                            Thread.sleep(1000);
-                            clientSocket.close();
-                            break;
-                        } catch (IOException | InterruptedException e) {
-                            // Probably closed anyway
-                        }
-                    }
-                }
-            }
-        }
+    /**
+     * Get a keepalive message to send. Called on the connection manager's
+     * event loop thread, whenever nothing has been sent for the keepalive time.
+     *
+     * @return The message, ready to be read from its position to its limit,
+     * or null to send nothing.
+     */
+    protected ByteBuffer getKeepaliveMessage() {
+        return null;
     }
-}
\ No newline at end of file
+}
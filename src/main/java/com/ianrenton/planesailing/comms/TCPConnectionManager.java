@@ -0,0 +1,535 @@
+package com.ianrenton.planesailing.comms;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handles the connections for all TCP receiver clients on a small number of
+ * event loop threads, rather than one blocking thread per client. Each event
+ * loop uses a single selector to make non-blocking connections and read from
+ * all of its clients' sockets, handing new data to each client to decode.
+ * Clients whose servers need to be asked for data, or kept awake, can also
+ * have a message sent when they connect and at regular intervals after.
+ * Host names are looked up on separate threads before connecting, so a slow
+ * or failing DNS server only holds up the connections that need it.
+ * <p>
+ * If a connection fails, or receives nothing for longer than the client's
+ * timeout, it is closed and retried after a delay. The delay doubles with
+ * each consecutive failure up to a maximum, and is randomised so that many
+ * connections to the same server don't all retry at once. An unexpected
+ * error handling one connection only fails that connection, and if the
+ * selector itself fails, it is replaced and all of its connections are
+ * retried, so the event loop keeps running until it is stopped.
+ */
+public class TCPConnectionManager {
+
+    private static final Logger LOGGER = LogManager.getLogger(TCPConnectionManager.class);
+    // Longest time the event loop will wait before checking timeouts and reconnects
+    private static final long MAX_SELECT_MILLIS = 1000;
+
+    private final EventLoop[] loops;
+    private final long reconnectMinMillis;
+    private final long reconnectMaxMillis;
+    private final long connectTimeoutMillis;
+    private final Map<TCPClient, EventLoop> clientLoops = new ConcurrentHashMap<>();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    // At most one lookup runs per connection, so this never has more threads than there are clients
+    private final ExecutorService lookupExecutor = Executors.newCachedThreadPool(
+            new BasicThreadFactory.Builder().namingPattern("TCP receiver host lookup %d").daemon(true).build());
+
+    /**
+     * Create the connection manager
+     *
+     * @param threads              Number of event loop threads to use.
+     * @param reconnectMinMillis   Delay before the first reconnection attempt.
+     * @param reconnectMaxMillis   Maximum delay between reconnection attempts.
+     * @param connectTimeoutMillis Time to wait for a connection to be made.
+     */
+    public TCPConnectionManager(int threads, long reconnectMinMillis, long reconnectMaxMillis, long connectTimeoutMillis) {
+        this.reconnectMinMillis = reconnectMinMillis;
+        this.reconnectMaxMillis = Math.max(reconnectMinMillis, reconnectMaxMillis);
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        loops = new EventLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Start the event loop threads.
+     */
+    public void run() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Stop the event loop threads, closing all connections.
+     */
+    public void stop() {
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+        lookupExecutor.shutdownNow();
+    }
+
+    /**
+     * Start connecting a client. Safe to call from any thread.
+     */
+    void register(TCPClient client) {
+        EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        if (clientLoops.putIfAbsent(client, loop) == null) {
+            loop.submit(() -> loop.add(client));
+        }
+    }
+
+    /**
+     * Disconnect a client and stop reconnecting it. Safe to call from any thread.
+     */
+    void unregister(TCPClient client) {
+        EventLoop loop = clientLoops.remove(client);
+        if (loop != null) {
+            loop.submit(() -> loop.remove(client));
+        }
+    }
+
+    /**
+     * Get the number of clients that are currently connected.
+     */
+    public int getConnectedCount() {
+        int count = 0;
+        for (EventLoop loop : loops) {
+            count += loop.connectedCount;
+        }
+        return count;
+    }
+
+    /**
+     * State of one client's connection, only touched by its event loop thread.
+     */
+    private static class Connection {
+        final TCPClient client;
+        SocketChannel channel;
+        SelectionKey key;
+        // Whether the host name is being looked up, before connecting
+        boolean lookingUp;
+        boolean connected;
+        long connectStartTime;
+        long lastReadTime;
+        long lastWriteTime;
+        // Data still waiting to be written, if the socket couldn't take it all at once
+        ByteBuffer pendingWrite;
+        long nextAttemptTime;
+        int failures;
+
+        Connection(TCPClient client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * One event loop thread and its selector.
+     */
+    private class EventLoop implements Runnable {
+
+        private final int index;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final List<Connection> connections = new ArrayList<>();
+        private volatile Selector selector;
+        private Thread thread;
+        private volatile boolean run;
+        private volatile int connectedCount;
+
+        EventLoop(int index) {
+            this.index = index;
+        }
+
+        void start() throws IOException {
+            selector = Selector.open();
+            run = true;
+            thread = new Thread(this, "TCP receiver event loop " + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() {
+            run = false;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Run a task on the event loop thread.
+         */
+        void submit(Runnable task) {
+            tasks.add(task);
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+
+        public void run() {
+            try {
+                while (run) {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException ex) {
+                            LOGGER.error("TCP receiver event loop {} task failed", index, ex);
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    long nextWake = now + MAX_SELECT_MILLIS;
+                    for (Connection c : connections) {
+                        long checkTime;
+                        try {
+                            checkTime = checkConnection(c, now);
+                        } catch (RuntimeException ex) {
+                            failedUnexpectedly(c, now, ex);
+                            checkTime = c.nextAttemptTime;
+                        }
+                        nextWake = Math.min(nextWake, checkTime);
+                    }
+                    try {
+                        selector.select(this::handleKey, Math.max(1, nextWake - System.currentTimeMillis()));
+                    } catch (IOException | ClosedSelectorException ex) {
+                        LOGGER.error("TCP receiver event loop {} selector failed, replacing it", index, ex);
+                        replaceSelector();
+                    }
+                }
+            } finally {
+                for (Connection c : connections) {
+                    close(c);
+                }
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                    // Nothing to do
+                }
+            }
+        }
+
+        /**
+         * Close every connection, scheduling each to be retried, and replace
+         * the selector with a new one. If a new selector can't be opened, keep
+         * trying until the event loop is stopped.
+         */
+        private void replaceSelector() {
+            long now = System.currentTimeMillis();
+            for (Connection c : connections) {
+                if (c.channel != null) {
+                    failed(c, now, "event loop selector failed");
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                // Nothing to do
+            }
+            while (run) {
+                try {
+                    selector = Selector.open();
+                    return;
+                } catch (IOException ex) {
+                    LOGGER.error("TCP receiver event loop {} could not open a new selector, trying again...", index, ex);
+                    try {
+                        Thread.sleep(MAX_SELECT_MILLIS);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        void add(TCPClient client) {
+            connections.add(new Connection(client));
+        }
+
+        void remove(TCPClient client) {
+            connections.removeIf(c -> {
+                if (c.client == client) {
+                    close(c);
+                    return true;
+                }
+                return false;
+            });
+        }
+
+        /**
+         * Start a connection attempt if one is due, or drop the connection if it
+         * has timed out.
+         *
+         * @return The time at which this connection next needs checking.
+         */
+        private long checkConnection(Connection c, long now) {
+            if (c.lookingUp) {
+                // Checked again when the lookup finishes
+                return Long.MAX_VALUE;
+            } else if (c.channel == null) {
+                if (now >= c.nextAttemptTime) {
+                    lookUp(c);
+                    return Long.MAX_VALUE;
+                }
+                return c.nextAttemptTime;
+            } else if (!c.connected) {
+                if (now - c.connectStartTime >= connectTimeoutMillis) {
+                    failed(c, now, "timed out connecting");
+                    return c.nextAttemptTime;
+                }
+                return c.connectStartTime + connectTimeoutMillis;
+            } else {
+                int timeout = c.client.getTimeoutMillis();
+                if (now - c.lastReadTime >= timeout) {
+                    failed(c, now, "no data for " + (timeout / 1000) + " seconds");
+                    return c.nextAttemptTime;
+                }
+                long keepalive = c.client.getKeepaliveMillis();
+                if (keepalive <= 0) {
+                    return c.lastReadTime + timeout;
+                }
+                if (now - c.lastWriteTime >= keepalive) {
+                    try {
+                        write(c, c.client.getKeepaliveMessage(), now);
+                    } catch (IOException ex) {
+                        failed(c, now, ex.getLocalizedMessage());
+                        return c.nextAttemptTime;
+                    }
+                }
+                return Math.min(c.lastReadTime + timeout, c.lastWriteTime + keepalive);
+            }
+        }
+
+        /**
+         * Look up the host to connect to on a lookup thread, then connect to it
+         * back on this thread. A failed lookup counts as a failed connection.
+         */
+        private void lookUp(Connection c) {
+            TCPClient client = c.client;
+            client.getLogger().info("Trying to make TCP connection to {}:{} to receive {}...", client.remoteHost, client.remotePort, client.getType());
+            c.lookingUp = true;
+            try {
+                lookupExecutor.execute(() -> {
+                    try {
+                        InetAddress address = InetAddress.getByName(client.remoteHost);
+                        submit(() -> lookedUp(c, new InetSocketAddress(address, client.remotePort), null));
+                    } catch (UnknownHostException ex) {
+                        submit(() -> lookedUp(c, null, "unknown host " + client.remoteHost));
+                    } catch (RuntimeException ex) {
+                        submit(() -> lookedUp(c, null, ex.toString()));
+                    }
+                });
+            } catch (RuntimeException ex) {
+                // Shutting down
+                c.lookingUp = false;
+            }
+        }
+
+        private void lookedUp(Connection c, InetSocketAddress address, String error) {
+            c.lookingUp = false;
+            if (!connections.contains(c)) {
+                // Removed while the lookup was running
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (address != null) {
+                connect(c, address, now);
+            } else {
+                failed(c, now, error);
+            }
+        }
+
+        private void connect(Connection c, InetSocketAddress address, long now) {
+            c.connectStartTime = now;
+            try {
+                c.channel = SocketChannel.open();
+                c.channel.configureBlocking(false);
+                c.channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                c.channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                c.key = c.channel.register(selector, SelectionKey.OP_CONNECT, c);
+                if (c.channel.connect(address)) {
+                    connected(c, now);
+                }
+            } catch (IOException | RuntimeException ex) {
+                failed(c, now, ex.getLocalizedMessage());
+            }
+        }
+
+        private void connected(Connection c, long now) {
+            c.connected = true;
+            c.lastReadTime = now;
+            c.key.interestOps(SelectionKey.OP_READ);
+            c.client.getReadBuffer().clear();
+            c.client.online = true;
+            connectedCount++;
+            c.client.getLogger().info("Receiver {} connected.", c.client.getType());
+            c.lastWriteTime = now;
+            try {
+                write(c, c.client.getConnectMessage(), now);
+                // Only reset the reconnect delay once the connection is fully set up,
+                // so one that always fails straight after connecting still backs off
+                c.failures = 0;
+            } catch (IOException ex) {
+                failed(c, now, ex.getLocalizedMessage());
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            Connection c = (Connection) key.attachment();
+            long now = System.currentTimeMillis();
+            try {
+                if (!key.isValid()) {
+                    return;
+                }
+                if (key.isConnectable()) {
+                    if (c.channel.finishConnect()) {
+                        connected(c, now);
+                    }
+                    return;
+                }
+                if (key.isWritable()) {
+                    writePending(c);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(c, now);
+                }
+            } catch (IOException ex) {
+                failed(c, now, ex.getLocalizedMessage());
+            } catch (RuntimeException ex) {
+                failedUnexpectedly(c, now, ex);
+            }
+        }
+
+        private void read(Connection c, long now) throws IOException {
+            ByteBuffer buffer = c.client.getReadBuffer();
+            if (!buffer.hasRemaining()) {
+                // The client couldn't find a single message in a whole buffer of
+                // data, so this must be garbage
+                c.client.getLogger().warn("Receiver {} read buffer full without a complete message, discarding data", c.client.getType());
+                buffer.clear();
+            }
+            int n = c.channel.read(buffer);
+            if (n < 0) {
+                failed(c, now, "connection closed");
+                return;
+            }
+            if (n > 0) {
+                c.lastReadTime = now;
+                c.client.countBytesRead(n);
+                c.client.record(buffer.array(), buffer.arrayOffset() + buffer.position() - n, n);
+                try {
+                    c.client.dataReceived(buffer);
+                } catch (RuntimeException ex) {
+                    c.client.getLogger().error("Receiver {} failed to handle data", c.client.getType(), ex);
+                }
+            }
+        }
+
+        /**
+         * Send a message without blocking. Whatever the socket can't take
+         * straight away is sent when it becomes writable. Messages are only
+         * small and occasional, so if one is still waiting to go, a new one is
+         * dropped rather than queued behind it.
+         *
+         * @param message The message to send, or null to send nothing.
+         */
+        private void write(Connection c, ByteBuffer message, long now) throws IOException {
+            if (message == null) {
+                return;
+            }
+            c.lastWriteTime = now;
+            if (c.pendingWrite != null) {
+                c.client.getLogger().debug("Receiver {} still sending previous message, dropping new one", c.client.getType());
+                return;
+            }
+            c.channel.write(message);
+            if (message.hasRemaining()) {
+                c.pendingWrite = message;
+                c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void writePending(Connection c) throws IOException {
+            if (c.pendingWrite != null) {
+                c.channel.write(c.pendingWrite);
+                if (c.pendingWrite.hasRemaining()) {
+                    return;
+                }
+                c.pendingWrite = null;
+            }
+            c.key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Close a connection and schedule the next attempt.
+         */
+        private void failed(Connection c, long now, String reason) {
+            boolean wasConnected = c.connected;
+            close(c);
+            long delay = Math.min(reconnectMaxMillis, reconnectMinMillis << Math.min(c.failures, 20));
+            // Randomise between half and all of the delay
+            delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            c.failures++;
+            c.nextAttemptTime = now + delay;
+            if (wasConnected) {
+                c.client.getLogger().warn("Receiver {} connection lost ({}), reconnecting in {} ms...", c.client.getType(), reason, delay);
+            } else {
+                c.client.getLogger().warn("Receiver {} could not connect ({}), trying again in {} ms...", c.client.getType(), reason, delay);
+            }
+        }
+
+        /**
+         * Close a connection and schedule the next attempt after an error that
+         * shouldn't happen, e.g. from the client's own code, logging it in full.
+         */
+        private void failedUnexpectedly(Connection c, long now, RuntimeException ex) {
+            c.client.getLogger().error("Receiver {} connection failed unexpectedly", c.client.getType(), ex);
+            failed(c, now, ex.toString());
+        }
+
+        private void close(Connection c) {
+            if (c.connected) {
+                connectedCount--;
+            }
+            c.connected = false;
+            c.client.online = false;
+            c.pendingWrite = null;
+            if (c.key != null) {
+                c.key.cancel();
+                c.key = null;
+            }
+            if (c.channel != null) {
+                try {
+                    c.channel.close();
+                } catch (IOException ex) {
+                    // Probably closed anyway
+                }
+                c.channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.ianrenton.planesailing.comms;
+
+import com.sun.management.OperatingSystemMXBean;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples server telemetry (CPU, memory, disk, temperature, JVM heap, GC and
+ * thread statistics) on a fixed schedule, keeping the most recent samples in a
+ * ring buffer. This means serving telemetry to clients is almost free, however
+ * often they ask for it, and clients can draw a short history.
+ */
+public class TelemetrySampler {
+
+    private static final Logger LOGGER = LogManager.getLogger(TelemetrySampler.class);
+    private static final OperatingSystemMXBean OS_BEAN = ManagementFactory
+            .getPlatformMXBean(OperatingSystemMXBean.class);
+    private static final MemoryMXBean MEMORY_BEAN = ManagementFactory.getMemoryMXBean();
+    private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+    // Work-around to specify total memory size of the PC manually (here, 2GB to
+    // match my
+    // Raspberry Pi) for JDKs where querying it doesn't work properly
+    private static final long TOTAL_MEM_BYTES = (OS_BEAN.getTotalMemorySize() != 0)
+            ? OS_BEAN.getTotalMemorySize() : 2000000000;
+    private static final Path TEMPERATURE_FILE = Path.of("/sys/class/thermal/thermal_zone0/temp");
+    private static final File DISK = new File(".");
+
+    private final int intervalSec;
+    private final Sample[] history;
+    private int nextIndex;
+    private int count;
+    private volatile Sample latest;
+    private boolean temperatureAvailable = true;
+    private ScheduledExecutorService scheduledExecutorService;
+
+    /**
+     * Create the sampler
+     *
+     * @param intervalSec Time between samples, in seconds.
+     * @param historySize Number of past samples to keep.
+     */
+    public TelemetrySampler(int intervalSec, int historySize) {
+        this.intervalSec = intervalSec;
+        this.history = new Sample[Math.max(1, historySize)];
+    }
+
+    /**
+     * Take the first sample and start sampling in the background.
+     */
+    public void run() {
+        sample();
+        scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(
+                new BasicThreadFactory.Builder().namingPattern("Telemetry Sampler Thread").daemon(true).build());
+        scheduledExecutorService.scheduleAtFixedRate(this::sample, intervalSec, intervalSec, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop sampling.
+     */
+    public void stop() {
+        if (scheduledExecutorService != null) {
+            scheduledExecutorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Get the most recent sample, or null if none has been taken yet.
+     */
+    public Sample getLatest() {
+        return latest;
+    }
+
+    /**
+     * Get up to the requested number of recent samples, oldest first.
+     */
+    public synchronized List<Sample> getHistory(int maxSamples) {
+        int n = Math.min(Math.max(0, maxSamples), count);
+        List<Sample> ret = new ArrayList<>(n);
+        for (int i = n; i > 0; i--) {
+            ret.add(history[Math.floorMod(nextIndex - i, history.length)]);
+        }
+        return ret;
+    }
+
+    /**
+     * Take a sample and store it.
+     */
+    private void sample() {
+        try {
+            MemoryUsage heap = MEMORY_BEAN.getHeapMemoryUsage();
+            long gcCount = 0;
+            long gcTime = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                gcCount += Math.max(0, gc.getCollectionCount());
+                gcTime += Math.max(0, gc.getCollectionTime());
+            }
+
+            Sample s = new Sample(System.currentTimeMillis(),
+                    OS_BEAN.getCpuLoad() * 100.0,
+                    (OS_BEAN.getCommittedVirtualMemorySize() / (double) TOTAL_MEM_BYTES) * 100.0,
+                    (1.0 - (DISK.getFreeSpace() / (double) DISK.getTotalSpace())) * 100.0,
+                    readTemperature(),
+                    heap.getUsed(),
+                    heap.getMax(),
+                    gcCount,
+                    gcTime,
+                    THREAD_BEAN.getThreadCount());
+
+            synchronized (this) {
+                history[nextIndex] = s;
+                nextIndex = (nextIndex + 1) % history.length;
+                count = Math.min(count + 1, history.length);
+            }
+            latest = s;
+        } catch (Exception ex) {
+            LOGGER.warn("Failed to sample telemetry", ex);
+        }
+    }
+
+    /**
+     * Read the CPU temperature in degrees C from sysfs, or null if it can't be
+     * read, e.g. because this isn't running on Linux. Once it has failed, it
+     * isn't tried again.
+     */
+    private Double readTemperature() {
+        if (!temperatureAvailable) {
+            return null;
+        }
+        try {
+            // Value is in "millidegrees", we want degrees
+            return Double.parseDouble(Files.readString(TEMPERATURE_FILE).trim()) / 1000.0;
+        } catch (IOException | NumberFormatException ex) {
+            LOGGER.info("CPU temperature is not available, it will not be reported in telemetry.");
+            temperatureAvailable = false;
+            return null;
+        }
+    }
+
+    /**
+     * One telemetry sample.
+     *
+     * @param time        Time of the sample, UTC millis since epoch.
+     * @param cpuLoad     System CPU load, percent.
+     * @param memUsed     Memory used, percent.
+     * @param diskUsed    Disk space used, percent.
+     * @param temp        CPU temperature in degrees C, or null if unknown.
+     * @param heapUsed    JVM heap used, bytes.
+     * @param heapMax     JVM maximum heap size, bytes, or -1 if undefined.
+     * @param gcCount     Total number of garbage collections since start.
+     * @param gcTimeMs    Total time spent in garbage collection since start, milliseconds.
+     * @param threadCount Number of live JVM threads.
+     */
+    public record Sample(long time, double cpuLoad, double memUsed, double diskUsed, Double temp,
+                         long heapUsed, long heapMax, long gcCount, long gcTimeMs, int threadCount) {
+
+        /**
+         * Get the sample as a map, suitable for turning into JSON.
+         */
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("time", time);
+            map.put("cpuLoad", Math.round(cpuLoad * 10) / 10.0);
+            map.put("memUsed", Math.round(memUsed * 10) / 10.0);
+            map.put("diskUsed", Math.round(diskUsed * 10) / 10.0);
+            map.put("temp", temp);
+            map.put("heapUsed", heapUsed);
+            map.put("heapMax", heapMax);
+            map.put("gcCount", gcCount);
+            map.put("gcTimeMs", gcTimeMs);
+            map.put("threads", threadCount);
+            return map;
+        }
+    }
+}
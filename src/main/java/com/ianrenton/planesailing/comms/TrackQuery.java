@@ -0,0 +1,166 @@
+package com.ianrenton.planesailing.comms;
+
+import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.data.Track;
+import com.ianrenton.planesailing.data.TrackType;
+
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Filter and field projection that a client can request on the track API calls,
+ * so that single-purpose displays only receive the tracks and fields they need.
+ * Parsed from query string parameters, e.g.
+ * <code>/update?type=SHIP,AIS_ATON&amp;maxRangeNmi=20&amp;fields=id,name,lat,lon</code>
+ * <p>
+ * Supported parameters are:
+ * </p>
+ * <ul>
+ *     <li>type - Comma-separated list of track types to include</li>
+ *     <li>minAlt, maxAlt - Altitude limits in feet. Tracks with unknown altitude
+ *     are excluded if either is set.</li>
+ *     <li>maxAgeMs - Only include tracks updated within this many milliseconds</li>
+ *     <li>maxRangeNmi - Only include tracks within this many nautical miles of the
+ *     base station. Tracks with unknown position are excluded if this is set.</li>
+ *     <li>fields - Comma-separated list of the track fields to include. The track
+ *     ID is always included.</li>
+ * </ul>
+ */
+public class TrackQuery {
+
+    /**
+     * A query that doesn't filter anything out.
+     */
+    public static final TrackQuery ALL = new TrackQuery(null, null, null, null, null, null);
+
+    private final Set<TrackType> types;
+    private final Double minAlt;
+    private final Double maxAlt;
+    private final Long maxAgeMs;
+    private final Double maxRangeNmi;
+    private final Set<String> fields;
+
+    private TrackQuery(Set<TrackType> types, Double minAlt, Double maxAlt, Long maxAgeMs, Double maxRangeNmi, Set<String> fields) {
+        this.types = types;
+        this.minAlt = minAlt;
+        this.maxAlt = maxAlt;
+        this.maxAgeMs = maxAgeMs;
+        this.maxRangeNmi = maxRangeNmi;
+        this.fields = fields;
+    }
+
+    /**
+     * Create a query from the parameters supplied by the client.
+     *
+     * @param params Query string parameters. Unrecognised parameters are ignored.
+     * @throws IllegalArgumentException if a parameter value is invalid.
+     */
+    public static TrackQuery fromParameters(Map<String, String> params) {
+        Set<TrackType> types = null;
+        if (params.containsKey("type")) {
+            types = EnumSet.noneOf(TrackType.class);
+            for (String s : params.get("type").split(",")) {
+                try {
+                    types.add(TrackType.valueOf(s.trim().toUpperCase()));
+                } catch (IllegalArgumentException ex) {
+                    throw new IllegalArgumentException("Unknown track type '" + s + "'");
+                }
+            }
+        }
+
+        Set<String> fields = null;
+        if (params.containsKey("fields")) {
+            fields = new LinkedHashSet<>();
+            fields.add("id");
+            for (String s : params.get("fields").split(",")) {
+                if (!s.isBlank()) {
+                    fields.add(s.trim());
+                }
+            }
+        }
+
+        return new TrackQuery(types,
+                getDouble(params, "minAlt"),
+                getDouble(params, "maxAlt"),
+                getLong(params, "maxAgeMs"),
+                getDouble(params, "maxRangeNmi"),
+                fields);
+    }
+
+    /**
+     * Returns true if the track should be sent to the client.
+     *
+     * @param t  The track.
+     * @param tt The track table, used to find the base station position.
+     */
+    public boolean matches(Track t, TrackTable tt) {
+        if (types != null && !types.contains(t.getTrackType())) {
+            return false;
+        }
+        if (minAlt != null || maxAlt != null) {
+            Double alt = t.getAltitude();
+            if (alt == null || (minAlt != null && alt < minAlt) || (maxAlt != null && alt > maxAlt)) {
+                return false;
+            }
+        }
+        if (maxAgeMs != null) {
+            Long age = t.getTimeSinceLastUpdate();
+            if (age == null || age > maxAgeMs) {
+                return false;
+            }
+        }
+        if (maxRangeNmi != null) {
+            Double range = tt.getDistanceFromBaseStation(t);
+            return range != null && range * TrackTable.METRES_TO_NMI <= maxRangeNmi;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the client asked for only some fields of each track.
+     */
+    public boolean hasProjection() {
+        return fields != null;
+    }
+
+    /**
+     * Reduce a map of track data to only the fields that the client asked for.
+     */
+    public Map<String, Object> project(Map<String, Object> data) {
+        if (fields == null) {
+            return data;
+        }
+        Map<String, Object> ret = new LinkedHashMap<>();
+        for (String f : fields) {
+            if (data.containsKey(f)) {
+                ret.put(f, data.get(f));
+            }
+        }
+        return ret;
+    }
+
+    private static Double getDouble(Map<String, String> params, String key) {
+        if (!params.containsKey(key)) {
+            return null;
+        }
+        try {
+            return Double.valueOf(params.get(key));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid value for " + key + ": '" + params.get(key) + "'");
+        }
+    }
+
+    private static Long getLong(Map<String, String> params, String key) {
+        if (!params.containsKey(key)) {
+            return null;
+        }
+        try {
+            return Long.valueOf(params.get(key));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid value for " + key + ": '" + params.get(key) + "'");
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.ianrenton.planesailing.comms;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Reads the number of datagrams the operating system has dropped for a UDP
+ * port, because they arrived faster than the receiver read them and the
+ * socket's receive buffer overflowed. These drops are invisible to Java, so
+ * this is only available on Linux, where the kernel reports them in
+ * /proc/net/udp. Elsewhere, zero is returned.
+ */
+public final class UDPDropCounter {
+
+    private static final List<Path> PROC_FILES = List.of(Path.of("/proc/net/udp"), Path.of("/proc/net/udp6"));
+
+    private UDPDropCounter() {
+    }
+
+    /**
+     * Get the number of datagrams dropped by sockets bound to a local port.
+     */
+    public static long getDrops(int localPort) {
+        String portHex = String.format(":%04X", localPort);
+        long drops = 0;
+        for (Path p : PROC_FILES) {
+            if (!Files.isReadable(p)) {
+                continue;
+            }
+            try {
+                List<String> lines = Files.readAllLines(p);
+                // First line is the column headings, "drops" is the last column
+                for (int i = 1; i < lines.size(); i++) {
+                    String[] cols = lines.get(i).trim().split("\\s+");
+                    if (cols.length > 2 && cols[1].endsWith(portHex)) {
+                        drops += Long.parseLong(cols[cols.length - 1]);
+                    }
+                }
+            } catch (IOException | NumberFormatException ex) {
+                // Not available
+            }
+        }
+        return drops;
+    }
+}
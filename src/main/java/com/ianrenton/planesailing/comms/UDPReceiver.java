@@ -0,0 +1,193 @@
+package com.ianrenton.planesailing.comms;
+
+import com.ianrenton.planesailing.app.Application;
+import com.ianrenton.planesailing.app.TrackTable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generic UDP receiver implementation, to abstract out commonality between
+ * AIS and HORUS receivers. Each receiver has its own thread, which waits for
+ * datagrams to arrive on its port, then receives everything that is waiting
+ * in batches into a fixed pool of buffers, and passes each datagram's payload
+ * to the subclass to handle.
+ */
+public abstract class UDPReceiver extends Client {
+
+    protected final int localPort;
+    private final int receiveBufferSize;
+    private final ByteBuffer[] buffers;
+    private volatile boolean run = true;
+    private volatile Selector selector;
+    private volatile int actualReceiveBufferSize;
+
+    // Statistics for the port
+    private final LongAdder datagramsReceived = new LongAdder();
+    private final LongAdder datagramsTruncated = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    /**
+     * Create the receiver
+     *
+     * @param name            The name of the connection.
+     * @param localPort       Port to listen on.
+     * @param trackTable      The track table to use.
+     * @param maxDatagramSize Largest datagram the protocol will use. Anything
+     *                        bigger is dropped.
+     */
+    public UDPReceiver(String name, int localPort, TrackTable trackTable, int maxDatagramSize) {
+        super(name, trackTable);
+        this.localPort = localPort;
+        this.receiveBufferSize = Application.CONFIG.getInt("comms.udp.receive-buffer-size");
+        // One extra byte in each buffer, so a full buffer shows the datagram was truncated
+        buffers = new ByteBuffer[Application.CONFIG.getInt("comms.udp.batch-size")];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.allocate(maxDatagramSize + 1);
+        }
+    }
+
+    @Override
+    public void run() {
+        run = true;
+        online = true;
+        new Thread(this::receive, getType() + " UDP receiver thread").start();
+    }
+
+    @Override
+    public void stop() {
+        run = false;
+        online = false;
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    /**
+     * Handle the payload of one datagram. This is called on the receiver
+     * thread. The data is only valid for the duration of the call, as the
+     * buffer is reused.
+     *
+     * @param data   Buffer containing the payload.
+     * @param offset Offset of the payload in the buffer.
+     * @param length Length of the payload.
+     */
+    protected abstract void handleDatagram(byte[] data, int offset, int length);
+
+    /**
+     * Receiver thread.
+     */
+    private void receive() {
+        try (DatagramChannel channel = DatagramChannel.open(); Selector s = Selector.open()) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            channel.bind(new InetSocketAddress(localPort));
+            channel.configureBlocking(false);
+            channel.register(s, SelectionKey.OP_READ);
+            actualReceiveBufferSize = channel.getOption(StandardSocketOptions.SO_RCVBUF);
+            selector = s;
+            getLogger().info("Opened local UDP port {} to receive {} data.", localPort, getType());
+
+            while (run) {
+                s.select();
+                s.selectedKeys().clear();
+                // Receive everything waiting, a batch at a time
+                int n;
+                do {
+                    n = 0;
+                    while (n < buffers.length) {
+                        buffers[n].clear();
+                        if (channel.receive(buffers[n]) == null) {
+                            break;
+                        }
+                        n++;
+                    }
+                    if (n > 0) {
+                        batches.increment();
+                        handleBatch(n);
+                    }
+                } while (n == buffers.length && run);
+            }
+        } catch (IOException ex) {
+            getLogger().error("Exception in {} UDP receiver", getType(), ex);
+        } finally {
+            selector = null;
+        }
+    }
+
+    private void handleBatch(int count) {
+        for (int i = 0; i < count; i++) {
+            ByteBuffer b = buffers[i];
+            int length = b.position();
+            datagramsReceived.increment();
+            countBytesRead(length);
+            if (length == b.capacity()) {
+                datagramsTruncated.increment();
+                countMessagesDropped(1);
+                continue;
+            }
+            record(b.array(), b.arrayOffset(), length);
+            try {
+                handleDatagram(b.array(), b.arrayOffset(), length);
+            } catch (RuntimeException ex) {
+                getLogger().error("Exception handling {} datagram", getType(), ex);
+            }
+        }
+    }
+
+    /**
+     * Handle a recorded datagram as if it had just been received.
+     */
+    @Override
+    protected void replay(byte[] data, int offset, int length) {
+        datagramsReceived.increment();
+        countBytesRead(length);
+        handleDatagram(data, offset, length);
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    public long getDatagramsReceived() {
+        return datagramsReceived.sum();
+    }
+
+    /**
+     * Get the number of datagrams dropped because they were bigger than the
+     * protocol should use.
+     */
+    public long getDatagramsTruncated() {
+        return datagramsTruncated.sum();
+    }
+
+    /**
+     * Get the number of batches of datagrams received, i.e. how many times the
+     * receiver thread woke up to find data waiting.
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * Get the number of datagrams dropped by the operating system because the
+     * socket's receive buffer was full. Only available on Linux.
+     */
+    public long getKernelDrops() {
+        return UDPDropCounter.getDrops(localPort);
+    }
+
+    /**
+     * Get the socket receive buffer size granted by the operating system, which
+     * may be less than requested.
+     */
+    public int getActualReceiveBufferSize() {
+        return actualReceiveBufferSize;
+    }
+}
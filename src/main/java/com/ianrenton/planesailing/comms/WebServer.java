@@ -2,10 +2,11 @@ package com.ianrenton.planesailing.comms;
 
 import com.ianrenton.planesailing.app.Application;
 import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.data.TimestampedPosition;
 import com.ianrenton.planesailing.data.Track;
-import com.ianrenton.planesailing.data.TrackType;
+import com.ianrenton.planesailing.utils.MetricsSource;
 import com.ianrenton.planesailing.utils.PrometheusMetricGenerator;
-import com.sun.management.OperatingSystemMXBean;
+import com.ianrenton.planesailing.utils.SingleFlight;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -14,43 +15,44 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
  * The HTTP server that will provide data to the Plane/Sailing client over the
  * web.
  */
-public class WebServer {
+public class WebServer implements MetricsSource {
     private static final Application APP = Application.getInstance();
     private static final Logger LOGGER = LogManager.getLogger(WebServer.class);
-    private static final OperatingSystemMXBean OS_BEAN = ManagementFactory
-            .getPlatformMXBean(OperatingSystemMXBean.class);
-    // Work-around to specify total memory size of the PC manually (here, 2GB to
-    // match my
-    // Raspberry Pi) for JDKs where querying it doesn't work properly
-    private static final long TOTAL_MEM_BYTES = (OS_BEAN.getTotalMemorySize() != 0)
-            ? OS_BEAN.getTotalMemorySize() : 2000000000;
     // Expected milliseconds between receiving requests when a client is online
     private static final long CLIENT_REQUEST_RATE_MILLIS = 10000;
 
     private final HttpServer server;
     private final int localPort;
     private final boolean readableJSON = Application.CONFIG.getBoolean("comms.web-server.readable-json");
+    private final int retryAfterSec = Application.CONFIG.getInt("comms.web-server.retry-after-sec");
+    private final long recentHistoryMillis = Application.CONFIG.getLong("comms.web-server.recent-history-ms");
+    private final WebServerExecutor executor;
+    private final TelemetrySampler telemetrySampler = new TelemetrySampler(
+            Application.CONFIG.getInt("comms.web-server.telemetry-interval-sec"),
+            Application.CONFIG.getInt("comms.web-server.telemetry-history-size"));
     private boolean online;
-    private long lastReceivedTime;
+    private volatile long lastReceivedTime;
     private final String homeCallResponseHTML;
-    private int requestsServed = 0;
+    private final LongAdder requestsServed = new LongAdder();
+    // Concurrent identical requests for track data share a single response
+    private final SingleFlight<String, String> trackDataRequests = new SingleFlight<>();
 
     /**
      * Create the web server
@@ -65,22 +67,36 @@ public class WebServer {
                 + "<h1>Plane/Sailing Server</h1>" + "<p>Plane/Sailing Server version "
                 + Application.getSoftwareVersion() + " is up and running!</p>"
                 + "<p>Available API endpoints:</p>"
-                + "<ul><li><a href='/first'>/first</a> - First call (includes position history)</li>"
+                + "<ul><li><a href='/first'>/first</a> - First call (includes position history). Add "
+                + "<code>history=recent</code> to only include recent position history, or <code>history=none</code> "
+                + "to omit it</li>"
                 + "<li><a href='/update'>/update</a> - Update call (no position history)</li>"
-                + "<li><a href='/telemetry'>/telemetry</a> - Server telemetry information</li>"
+                + "<li>Both of the above accept optional filter parameters: <code>type</code> (comma-separated track "
+                + "types), <code>minAlt</code> &amp; <code>maxAlt</code> (feet), <code>maxAgeMs</code>, <code>maxRangeNmi</code> "
+                + "(from base station) and <code>fields</code> (comma-separated), e.g. "
+                + "<a href='/update?type=SHIP&amp;fields=id,name,lat,lon'>/update?type=SHIP&amp;fields=id,name,lat,lon</a></li>"
+                + "<li>/track/{id}/history - Position history for a single track. Accepts optional <code>from</code> and "
+                + "<code>to</code> times (UTC millis) and <code>maxPoints</code> parameters</li>"
+                + "<li><a href='/telemetry'>/telemetry</a> - Server telemetry information. Add e.g. <code>history=60</code> "
+                + "to include that many past samples</li>"
                 + "<li><a href='/metrics'>/metrics</a> - Performance data formatted for use with Prometheus (e.g. for Grafana)</li>"
                 + "</ul></body></html>";
 
         server = HttpServer.create(new InetSocketAddress(localPort), 10);
         server.createContext("/first", new CallHandler(Call.FIRST));
         server.createContext("/update", new CallHandler(Call.UPDATE));
+        server.createContext("/track/", new CallHandler(Call.TRACK_HISTORY));
         server.createContext("/telemetry", new CallHandler(Call.TELEMETRY));
         server.createContext("/metrics", new CallHandler(Call.METRICS));
         server.createContext("/", new CallHandler(Call.HOME));
-        server.setExecutor(null);
+        executor = new WebServerExecutor(Application.CONFIG.getString("comms.web-server.executor"),
+                Application.CONFIG.getInt("comms.web-server.threads"),
+                Application.CONFIG.getInt("comms.web-server.queue-size"));
+        server.setExecutor(executor);
     }
 
     public void run() {
+        telemetrySampler.run();
         server.start();
         online = true;
         LOGGER.info("Started web server on port {}.", localPort);
@@ -88,6 +104,8 @@ public class WebServer {
 
     public void stop() {
         server.stop(0);
+        executor.shutdown();
+        telemetrySampler.stop();
         online = false;
     }
 
@@ -103,20 +121,47 @@ public class WebServer {
             lastReceivedTime = System.currentTimeMillis();
             String response = "";
             String contentType = "application/json";
+            int status = 200;
 
             try (t) {
-                switch (call) {
-                    case FIRST -> response = getFirstCallJSON();
-                    case UPDATE -> response = getUpdateCallJSON();
-                    case TELEMETRY -> response = getTelemetryCallJSON();
-                    case METRICS -> {
-                        response = getMetricsForPrometheus();
-                        contentType = "text/plain";
-                    }
-                    case HOME -> {
-                        response = homeCallResponseHTML;
-                        contentType = "text/html";
+                // If the server is overloaded, reject the request straight away
+                if (WebServerExecutor.isShedding()) {
+                    t.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+                    t.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSec));
+                    t.sendResponseHeaders(503, -1);
+                    return;
+                }
+
+                try {
+                    Map<String, String> params = parseQueryString(t.getRequestURI().getRawQuery());
+                    String requestKey = t.getRequestURI().getRawPath() + "?" + t.getRequestURI().getRawQuery();
+                    switch (call) {
+                        case FIRST -> response = trackDataRequests.get(requestKey,
+                                () -> getFirstCallJSON(TrackQuery.fromParameters(params), HistoryMode.fromParameters(params)));
+                        case UPDATE -> response = trackDataRequests.get(requestKey,
+                                () -> getUpdateCallJSON(TrackQuery.fromParameters(params)));
+                        case TRACK_HISTORY -> response = trackDataRequests.get(requestKey,
+                                () -> getTrackHistoryJSON(t.getRequestURI().getRawPath(), params));
+                        case TELEMETRY -> response = getTelemetryCallJSON(params);
+                        case METRICS -> {
+                            response = APP.getMetrics().getText();
+                            contentType = "text/plain";
+                        }
+                        case HOME -> {
+                            response = homeCallResponseHTML;
+                            contentType = "text/html";
+                        }
                     }
+                } catch (IllegalArgumentException ex) {
+                    // Client supplied bad parameters
+                    response = ex.getMessage();
+                    contentType = "text/plain";
+                    status = 400;
+                } catch (NoSuchElementException ex) {
+                    // Client asked for something that doesn't exist
+                    response = ex.getMessage();
+                    contentType = "text/plain";
+                    status = 404;
                 }
 
                 final Headers headers = t.getResponseHeaders();
@@ -126,7 +171,7 @@ public class WebServer {
                     case "GET" -> {
                         headers.set("Content-Type", String.format(contentType + "; charset=%s", "UTF8"));
                         final byte[] rawResponseBody = response.getBytes(StandardCharsets.UTF_8);
-                        t.sendResponseHeaders(200, rawResponseBody.length);
+                        t.sendResponseHeaders(status, rawResponseBody.length);
                         t.getResponseBody().write(rawResponseBody);
                     }
                     case "OPTIONS" -> {
@@ -140,7 +185,7 @@ public class WebServer {
                         t.sendResponseHeaders(405, -1);
                     }
                 }
-                requestsServed++;
+                requestsServed.increment();
             } catch (Exception ex) {
                 LOGGER.error("Exception responding to web request", ex);
             }
@@ -154,20 +199,48 @@ public class WebServer {
      * populate both the full current picture and the snail trail for tracks. It
      * also includes the server's current time, so that clients can determine the
      * age of tracks correctly, and the server version number.
+     * <p>
+     * Clients can choose to receive less position history, fetching the full
+     * history of individual tracks later using getTrackHistoryJSON().
+     *
+     * @param query   Filter and projection requested by the client.
+     * @param history How much position history to include.
      */
-    public String getFirstCallJSON() {
-        Map<String, Object> map = new HashMap<>();
-        map.put("time", System.currentTimeMillis());
-        map.put("version", Application.getSoftwareVersion());
+    public String getFirstCallJSON(TrackQuery query, HistoryMode history) {
+        Function<Track, String> trackToJSON;
+        Function<Track, Map<String, Object>> trackToData;
+        switch (history) {
+            case NONE -> {
+                trackToJSON = Track::getUpdateCallJSON;
+                trackToData = Track::getUpdateCallData;
+            }
+            case RECENT -> {
+                long since = System.currentTimeMillis() - recentHistoryMillis;
+                trackToData = t -> t.getFirstCallData(since);
+                trackToJSON = t -> new JSONObject(t.getFirstCallData(since)).toString();
+            }
+            default -> {
+                trackToJSON = Track::getFirstCallJSON;
+                trackToData = Track::getFirstCallData;
+            }
+        }
 
-        Map<String, Map<String, Object>> tracks = new HashMap<>();
-        for (Track t : APP.getTrackTable().values()) {
-            tracks.put(t.getID(), t.getFirstCallData());
+        if (readableJSON) {
+            Map<String, Object> map = new HashMap<>();
+            map.put("time", System.currentTimeMillis());
+            map.put("version", Application.getSoftwareVersion());
+            map.put("tracks", getTracksData(query, trackToData));
+
+            JSONObject o = new JSONObject(map);
+            return o.toString(2);
         }
-        map.put("tracks", tracks);
 
-        JSONObject o = new JSONObject(map);
-        return o.toString(readableJSON ? 2 : 0);
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"time\":").append(System.currentTimeMillis());
+        sb.append(",\"version\":").append(JSONObject.quote(Application.getSoftwareVersion()));
+        appendTracksJSON(sb, query, trackToJSON, trackToData);
+        sb.append('}');
+        return sb.toString();
     }
 
     /**
@@ -178,171 +251,251 @@ public class WebServer {
      * also omits the base station, airports and seaports that can't change. It also
      * includes the server's current time, so that clients can determine the age of
      * tracks correctly.
+     *
+     * @param query Filter and projection requested by the client.
      */
-    public String getUpdateCallJSON() {
-        Map<String, Object> map = new HashMap<>();
-        map.put("time", System.currentTimeMillis());
-
-        Map<String, Map<String, Object>> tracks = new HashMap<>();
-        for (Track t : APP.getTrackTable().values()) {
-            tracks.put(t.getID(), t.getUpdateCallData());
+    public String getUpdateCallJSON(TrackQuery query) {
+        if (readableJSON) {
+            Map<String, Object> map = new HashMap<>();
+            map.put("time", System.currentTimeMillis());
+            map.put("tracks", getTracksData(query, Track::getUpdateCallData));
+
+            JSONObject o = new JSONObject(map);
+            return o.toString(2);
         }
-        map.put("tracks", tracks);
 
-        JSONObject o = new JSONObject(map);
-        return o.toString(readableJSON ? 2 : 0);
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"time\":").append(System.currentTimeMillis());
+        appendTracksJSON(sb, query, Track::getUpdateCallJSON, Track::getUpdateCallData);
+        sb.append('}');
+        return sb.toString();
     }
 
     /**
-     * Get a map of some useful server telemetry
+     * Returns JSON containing the position history of a single track, so that
+     * clients can fetch snail trails only for the tracks they are interested in.
+     * Optional parameters are "from" and "to" (UTC millis since epoch) to limit
+     * the time range, and "maxPoints" to limit the number of positions returned,
+     * in which case the history is downsampled to fit.
+     *
+     * @param path   The request path, in the form "/track/{id}/history".
+     * @param params Query string parameters.
+     * @throws NoSuchElementException   if the path is wrong or the track doesn't exist.
+     * @throws IllegalArgumentException if a parameter value is invalid.
      */
-    private String getTelemetryCallJSON() {
-        Map<String, Object> map = new HashMap<>();
-        map.put("cpuLoad", String.format("%.0f", OS_BEAN.getCpuLoad() * 100.0));
-        map.put("memUsed",
-                String.format("%.0f", ((OS_BEAN.getCommittedVirtualMemorySize() / (double) TOTAL_MEM_BYTES)) * 100.0));
-        map.put("diskUsed", String.format("%.0f",
-                (1.0 - (new File(".").getFreeSpace() / (double) new File(".").getTotalSpace())) * 100.0));
-        map.put("uptime", String.format("%d", System.currentTimeMillis() - Application.START_TIME));
-        Double temp = getTemp();
-        if (temp != null) {
-            map.put("temp", String.format("%.1f", temp));
+    public String getTrackHistoryJSON(String path, Map<String, String> params) {
+        String[] parts = path.split("/");
+        if (parts.length != 4 || !parts[3].equals("history")) {
+            throw new NoSuchElementException("Unknown endpoint " + path);
+        }
+        String id = URLDecoder.decode(parts[2], StandardCharsets.UTF_8);
+        Track t = APP.getTrackTable().get(id);
+        if (t == null) {
+            throw new NoSuchElementException("No track with ID " + id);
+        }
+
+        long from;
+        long to;
+        int maxPoints;
+        try {
+            from = Long.parseLong(params.getOrDefault("from", String.valueOf(Long.MIN_VALUE)));
+            to = Long.parseLong(params.getOrDefault("to", String.valueOf(Long.MAX_VALUE)));
+            maxPoints = Integer.parseInt(params.getOrDefault("maxPoints", String.valueOf(Integer.MAX_VALUE)));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid value for from, to or maxPoints");
+        }
+        if (maxPoints < 1) {
+            throw new IllegalArgumentException("maxPoints must be at least 1");
+        }
+
+        List<Map<String, Object>> posHistory = new ArrayList<>();
+        for (TimestampedPosition p : t.getPositionHistory().getBetween(from, to, maxPoints)) {
+            Map<String, Object> m = new HashMap<>();
+            m.put("lat", p.latitude());
+            m.put("lon", p.longitude());
+            m.put("time", p.time());
+            posHistory.add(m);
         }
-        map.put("webServerStatus", getStatus());
-        map.put("feederStatus", getFeederStatus());
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("time", System.currentTimeMillis());
+        map.put("id", t.getID());
+        map.put("poshistory", posHistory);
 
         JSONObject o = new JSONObject(map);
         return o.toString(readableJSON ? 2 : 0);
     }
 
     /**
-     * Get some server statistics formatted for use with Prometheus.
+     * Append a "tracks" field to a JSON object being built, containing every
+     * track in the track table that matches the query, keyed by ID. Unless the
+     * client asked for only some fields, the JSON for each track comes from its
+     * own cache, so only tracks that have changed since the last call are
+     * serialised again.
+     *
+     * @param sb          The JSON being built.
+     * @param query       Filter and projection requested by the client.
+     * @param trackToJSON Function to get the cached JSON for a track.
+     * @param trackToData Function to get the data map for a track.
      */
-    private String getMetricsForPrometheus() {
+    private void appendTracksJSON(StringBuilder sb, TrackQuery query, Function<Track, String> trackToJSON,
+                                  Function<Track, Map<String, Object>> trackToData) {
         TrackTable tt = APP.getTrackTable();
-        return PrometheusMetricGenerator.generate("plane_sailing_uptime", "Uptime of the server in seconds",
-                "counter", (System.currentTimeMillis() - Application.START_TIME) / 1000.0)
-                + PrometheusMetricGenerator.generate("plane_sailing_requests_served", "Number of HTTP requests served by the Plane/Sailing server since start",
-                "counter", requestsServed)
-                + PrometheusMetricGenerator.generate("plane_sailing_adsb_inputs_available", "How many ADSB receivers are configured and connected?",
-                "gauge", countADSBReceviersConnected())
-                + PrometheusMetricGenerator.generate("plane_sailing_mlat_inputs_available", "How many MLAT receivers are configured and connected?",
-                "gauge", countMLATReceviersConnected())
-                + PrometheusMetricGenerator.generate("plane_sailing_ais_inputs_available", "How many AIS receivers are configured and connected?",
-                "gauge", countAISReceviersConnected())
-                + PrometheusMetricGenerator.generate("plane_sailing_aprs_inputs_available", "How many APRS receivers are configured and connected?",
-                "gauge", countAPRSReceviersConnected())
-                + PrometheusMetricGenerator.generate("plane_sailing_horus_inputs_available", "How many HORUS receivers are configured and connected?",
-                "gauge", countHORUSReceviersConnected())
-                + PrometheusMetricGenerator.generate("plane_sailing_meshtastic_inputs_available", "How many Meshtastic node queriers are configured and have communicated at least once?",
-                "gauge", countMeshtasticReceviersConnected())
-                + PrometheusMetricGenerator.generate("plane_sailing_adsb_inputs_receiving", "How many ADSB receivers are receiving data?",
-                "gauge", countADSBReceviersActive())
-                + PrometheusMetricGenerator.generate("plane_sailing_mlat_inputs_receiving", "How many MLAT receivers are receiving data?",
-                "gauge", countMLATReceviersActive())
-                + PrometheusMetricGenerator.generate("plane_sailing_ais_inputs_receiving", "How many AIS receivers are receiving data?",
-                "gauge", countAISReceviersActive())
-                + PrometheusMetricGenerator.generate("plane_sailing_aprs_inputs_receiving", "How many APRS receivers are receiving data?",
-                "gauge", countAPRSReceviersActive())
-                + PrometheusMetricGenerator.generate("plane_sailing_horus_inputs_receiving", "How many HORUS receivers are receiving data?",
-                "gauge", countHORUSReceviersActive())
-                + PrometheusMetricGenerator.generate("plane_sailing_meshtastic_inputs_receiving", "How many Meshtastic receivers have responded to query on schedule?",
-                "gauge", countMeshtasticReceviersActive())
-                + PrometheusMetricGenerator.generate("plane_sailing_track_count", "Number of tracks of all kinds in the system",
-                "gauge", tt.size())
-                + PrometheusMetricGenerator.generate("plane_sailing_aircraft_count", "Number of aircraft tracks in the system",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.AIRCRAFT).count())
-                + PrometheusMetricGenerator.generate("plane_sailing_ship_count", "Number of ship tracks in the system",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.SHIP).count())
-                + PrometheusMetricGenerator.generate("plane_sailing_ais_shore_station_count", "Number of AIS shore station tracks in the system",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.AIS_SHORE_STATION).count())
-                + PrometheusMetricGenerator.generate("plane_sailing_aton_count", "Number of AtoN tracks in the system",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.AIS_ATON).count())
-                + PrometheusMetricGenerator.generate("plane_sailing_aprs_mobile_count", "Number of mobile APRS tracks in the system",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.APRS_MOBILE).count())
-                + PrometheusMetricGenerator.generate("plane_sailing_aprs_base_count", "Number of APRS base station tracks in the system",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.APRS_BASE_STATION).count())
-                + PrometheusMetricGenerator.generate("plane_sailing_radiosonde_count", "Number of radiosondes in the system",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.RADIOSONDE).count())
-                + PrometheusMetricGenerator.generate("plane_sailing_aircraft_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked aircraft",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.AIRCRAFT).mapToDouble(tt::getDistanceFromBaseStationOrZero).map(d -> d * 0.000539957).max().orElse(0.0))
-                + PrometheusMetricGenerator.generate("plane_sailing_ship_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked ship",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.SHIP).mapToDouble(tt::getDistanceFromBaseStationOrZero).map(d -> d * TrackTable.METRES_TO_NMI).max().orElse(0.0))
-                + PrometheusMetricGenerator.generate("plane_sailing_ais_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked AIS contact",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.SHIP || t.getTrackType() == TrackType.AIS_SHORE_STATION || t.getTrackType() == TrackType.AIS_ATON).mapToDouble(tt::getDistanceFromBaseStationOrZero).map(d -> d * 0.000539957).max().orElse(0.0))
-                + PrometheusMetricGenerator.generate("plane_sailing_aprs_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked APRS contact",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.APRS_MOBILE || t.getTrackType() == TrackType.APRS_BASE_STATION).mapToDouble(tt::getDistanceFromBaseStationOrZero).map(d -> d * 0.000539957).max().orElse(0.0))
-                + PrometheusMetricGenerator.generate("plane_sailing_radiosonde_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked radiosonde",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.RADIOSONDE).mapToDouble(tt::getDistanceFromBaseStationOrZero).map(d -> d * 0.000539957).max().orElse(0.0))
-                + PrometheusMetricGenerator.generate("plane_sailing_meshtastic_node_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked Meshtastic node",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.MESHTASTIC_NODE).mapToDouble(tt::getDistanceFromBaseStationOrZero).map(d -> d * 0.000539957).max().orElse(0.0));
+        sb.append(",\"tracks\":{");
+        boolean first = true;
+        for (Track t : tt.values()) {
+            if (query.matches(t, tt)) {
+                if (!first) {
+                    sb.append(',');
+                }
+                sb.append(JSONObject.quote(t.getID())).append(':');
+                if (query.hasProjection()) {
+                    sb.append(new JSONObject(query.project(trackToData.apply(t))));
+                } else {
+                    sb.append(trackToJSON.apply(t));
+                }
+                first = false;
+            }
+        }
+        sb.append('}');
     }
 
     /**
-     * Get a connection status summary for all feeders and all their receiver clients' status.
+     * Get a map of track data for every track in the track table that matches
+     * the query, keyed by ID.
+     *
+     * @param query       Filter and projection requested by the client.
+     * @param trackToData Function to get the data map for a track.
      */
-    private Map<String, Map<String, ConnectionStatus>> getFeederStatus() {
-        return APP.getFeeders().stream().collect(Collectors.toMap(Feeder::getName, Feeder::getStatus));
-    }
-
-    private long countADSBReceviersConnected() {
-        return getAllReceiversOfType(ClientType.ADSB).stream().filter(r -> r.getStatus() == ConnectionStatus.WAITING || r.getStatus() == ConnectionStatus.ACTIVE).count();
-    }
-
-    private long countMLATReceviersConnected() {
-        return getAllReceiversOfType(ClientType.MLAT).stream().filter(r -> r.getStatus() == ConnectionStatus.WAITING || r.getStatus() == ConnectionStatus.ACTIVE).count();
-    }
-
-    private long countAISReceviersConnected() {
-        return getAllReceiversOfType(ClientType.AIS).stream().filter(r -> r.getStatus() == ConnectionStatus.WAITING || r.getStatus() == ConnectionStatus.ACTIVE).count();
-    }
-
-    private long countAPRSReceviersConnected() {
-        return getAllReceiversOfType(ClientType.APRS).stream().filter(r -> r.getStatus() == ConnectionStatus.WAITING || r.getStatus() == ConnectionStatus.ACTIVE).count();
-    }
-
-    private long countHORUSReceviersConnected() {
-        return getAllReceiversOfType(ClientType.HORUS).stream().filter(r -> r.getStatus() == ConnectionStatus.WAITING || r.getStatus() == ConnectionStatus.ACTIVE).count();
+    private Map<String, Map<String, Object>> getTracksData(TrackQuery query, Function<Track, Map<String, Object>> trackToData) {
+        TrackTable tt = APP.getTrackTable();
+        Map<String, Map<String, Object>> tracks = new HashMap<>();
+        for (Track t : tt.values()) {
+            if (query.matches(t, tt)) {
+                tracks.put(t.getID(), query.project(trackToData.apply(t)));
+            }
+        }
+        return tracks;
     }
 
-    private long countMeshtasticReceviersConnected() {
-        return getAllReceiversOfType(ClientType.MESHTASTIC).stream().filter(r -> r.getStatus() == ConnectionStatus.WAITING || r.getStatus() == ConnectionStatus.ACTIVE).count();
-    }
+    /**
+     * Returns JSON containing server telemetry, from the most recent sample
+     * taken by the telemetry sampler. The optional "history" parameter gives a
+     * number of past samples to include as well, oldest first.
+     *
+     * @param params Query string parameters.
+     * @throws IllegalArgumentException if a parameter value is invalid.
+     */
+    private String getTelemetryCallJSON(Map<String, String> params) {
+        int historySamples = 0;
+        if (params.containsKey("history")) {
+            try {
+                historySamples = Integer.parseInt(params.get("history"));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid value for history: '" + params.get("history") + "'");
+            }
+        }
 
-    private long countADSBReceviersActive() {
-        return getAllReceiversOfType(ClientType.ADSB).stream().filter(r -> r.getStatus() == ConnectionStatus.ACTIVE).count();
-    }
+        Map<String, Object> map = new HashMap<>();
+        TelemetrySampler.Sample sample = telemetrySampler.getLatest();
+        if (sample != null) {
+            map.put("cpuLoad", String.format("%.0f", sample.cpuLoad()));
+            map.put("memUsed", String.format("%.0f", sample.memUsed()));
+            map.put("diskUsed", String.format("%.0f", sample.diskUsed()));
+            if (sample.temp() != null) {
+                map.put("temp", String.format("%.1f", sample.temp()));
+            }
+            map.put("heapUsed", sample.heapUsed());
+            map.put("heapMax", sample.heapMax());
+            map.put("gcCount", sample.gcCount());
+            map.put("gcTimeMs", sample.gcTimeMs());
+            map.put("threads", sample.threadCount());
+            map.put("sampleTime", sample.time());
+        }
+        map.put("uptime", String.format("%d", System.currentTimeMillis() - Application.START_TIME));
+        map.put("webServerStatus", getStatus());
+        map.put("feederStatus", getFeederStatus());
+        if (historySamples > 0) {
+            map.put("history", telemetrySampler.getHistory(historySamples).stream()
+                    .map(TelemetrySampler.Sample::toMap).collect(Collectors.toList()));
+        }
 
-    private long countMLATReceviersActive() {
-        return getAllReceiversOfType(ClientType.MLAT).stream().filter(r -> r.getStatus() == ConnectionStatus.ACTIVE).count();
+        JSONObject o = new JSONObject(map);
+        return o.toString(readableJSON ? 2 : 0);
     }
 
-    private long countAISReceviersActive() {
-        return getAllReceiversOfType(ClientType.AIS).stream().filter(r -> r.getStatus() == ConnectionStatus.ACTIVE).count();
+    /**
+     * Write the web server's own metrics, i.e. uptime and request statistics.
+     */
+    @Override
+    public void writeMetrics(PrometheusMetricGenerator out) {
+        out.counter("plane_sailing_uptime", "Uptime of the server in seconds",
+                (System.currentTimeMillis() - Application.START_TIME) / 1000.0);
+        out.counter("plane_sailing_requests_served", "Number of HTTP requests served by the Plane/Sailing server since start",
+                requestsServed.sum());
+        out.gauge("plane_sailing_requests_active", "Number of HTTP requests currently being handled",
+                executor.getActiveCount());
+        out.gauge("plane_sailing_requests_queued", "Number of HTTP requests waiting to be handled",
+                executor.getQueueDepth());
+        out.counter("plane_sailing_requests_rejected", "Number of HTTP requests rejected because the server was overloaded since start",
+                executor.getRejectedCount());
+        out.counter("plane_sailing_requests_coalesced", "Number of HTTP requests for track data that shared the response of an identical concurrent request since start",
+                trackDataRequests.getCoalescedCount());
+        out.counter("plane_sailing_requests_computed", "Number of HTTP requests for track data that built their own response since start",
+                trackDataRequests.getComputedCount());
     }
 
-    private long countAPRSReceviersActive() {
-        return getAllReceiversOfType(ClientType.APRS).stream().filter(r -> r.getStatus() == ConnectionStatus.ACTIVE).count();
+    /**
+     * Get a connection status summary for all feeders and all their receiver clients' status.
+     */
+    private Map<String, Map<String, ConnectionStatus>> getFeederStatus() {
+        return APP.getFeeders().stream().collect(Collectors.toMap(Feeder::getName, Feeder::getStatus));
     }
 
-    private long countHORUSReceviersActive() {
-        return getAllReceiversOfType(ClientType.HORUS).stream().filter(r -> r.getStatus() == ConnectionStatus.ACTIVE).count();
+    /**
+     * Split a raw query string, e.g. "type=SHIP&fields=id,lat,lon", into a map of
+     * decoded parameter names and values.
+     */
+    private static Map<String, String> parseQueryString(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery != null && !rawQuery.isEmpty()) {
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+                } else if (!pair.isEmpty()) {
+                    params.put(URLDecoder.decode(pair, StandardCharsets.UTF_8), "");
+                }
+            }
+        }
+        return params;
     }
 
-    private long countMeshtasticReceviersActive() {
-        return getAllReceiversOfType(ClientType.MESHTASTIC).stream().filter(r -> r.getStatus() == ConnectionStatus.ACTIVE).count();
+    private enum Call {
+        FIRST, UPDATE, TRACK_HISTORY, TELEMETRY, METRICS, HOME
     }
 
-    private List<Client> getAllReceiversOfType(ClientType type) {
-        List<Client> receivers = new ArrayList<>();
-        for (Feeder f : APP.getFeeders()) {
-            f.getReceivers().stream().filter(r -> r.getType() == type).forEach(receivers::add);
+    /**
+     * How much position history to send in the "first" API call.
+     */
+    public enum HistoryMode {
+        FULL, RECENT, NONE;
+
+        /**
+         * Get the history mode from the "history" query string parameter, or FULL
+         * if it is not set.
+         *
+         * @throws IllegalArgumentException if the parameter value is invalid.
+         */
+        public static HistoryMode fromParameters(Map<String, String> params) {
+            try {
+                return HistoryMode.valueOf(params.getOrDefault("history", "full").toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Unknown history option '" + params.get("history")
+                        + "'. Options are 'full', 'recent' and 'none'.");
+            }
         }
-        return receivers;
-    }
-
-    private enum Call {
-        FIRST, UPDATE, TELEMETRY, METRICS, HOME
     }
 
     public ConnectionStatus getStatus() {
@@ -356,25 +509,4 @@ public class WebServer {
             return ConnectionStatus.OFFLINE;
         }
     }
-
-    private Double getTemp() {
-        Process proc;
-        try {
-            proc = Runtime.getRuntime().exec("cat /sys/class/thermal/thermal_zone0/temp");
-            BufferedReader stdInput = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-            String s = stdInput.readLine();
-            if (s != null) {
-                // Value returned is in "millidegrees", we want degrees
-                return Double.parseDouble(s) / 1000.0;
-            } else {
-                // Could not read temperature, maybe this value isn't available?
-                return null;
-            }
-        } catch (Exception e) {
-            // Could not read temperature, maybe this isn't running on Linux?
-            return null;
-        }
-
-
-    }
 }
@@ -0,0 +1,164 @@
+package com.ianrenton.planesailing.comms;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executor used by the web server to handle HTTP requests. Requests are run
+ * either on a fixed pool of platform threads, or on virtual threads with the
+ * same limit on how many can run at once. Requests beyond that limit wait in a
+ * bounded queue, and once the queue is full the server sheds load: the request
+ * is run on the calling thread, flagged so that the handler responds straight
+ * away with a "503 Service Unavailable" rather than doing any real work.
+ */
+public class WebServerExecutor implements Executor {
+
+    private static final Logger LOGGER = LogManager.getLogger(WebServerExecutor.class);
+    private static final ThreadLocal<Boolean> SHEDDING = ThreadLocal.withInitial(() -> false);
+
+    private final ExecutorService executor;
+    private final Semaphore concurrencyLimit;
+    private final int maxOutstanding;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Create the executor
+     *
+     * @param type      "pool" to use a fixed pool of platform threads, or "virtual"
+     *                  to use a virtual thread per request. Virtual threads need
+     *                  Java 21 or later, on older versions this falls back to "pool".
+     * @param threads   Maximum number of requests to handle at once.
+     * @param queueSize Maximum number of requests that can be waiting to be
+     *                  handled before new ones are rejected.
+     */
+    public WebServerExecutor(String type, int threads, int queueSize) {
+        this.maxOutstanding = threads + queueSize;
+
+        ExecutorService virtualExecutor = null;
+        if (type.equals("virtual")) {
+            virtualExecutor = createVirtualThreadExecutor();
+        } else if (!type.equals("pool")) {
+            LOGGER.error("Unknown web server executor type '{}'. Options are 'pool' and 'virtual'.", type);
+        }
+
+        if (virtualExecutor != null) {
+            executor = virtualExecutor;
+            concurrencyLimit = new Semaphore(threads);
+            LOGGER.info("Web server will use virtual threads, handling up to {} requests at once.", threads);
+        } else {
+            executor = Executors.newFixedThreadPool(threads,
+                    new BasicThreadFactory.Builder().namingPattern("Web Server Thread %d").build());
+            concurrencyLimit = null;
+            LOGGER.info("Web server will use a pool of {} threads.", threads);
+        }
+    }
+
+    @Override
+    public void execute(Runnable r) {
+        if (outstanding.incrementAndGet() > maxOutstanding) {
+            // Too busy. Run the exchange here so the client gets a response, but mark
+            // it so the handler rejects it instead of doing the work.
+            outstanding.decrementAndGet();
+            rejected.increment();
+            SHEDDING.set(true);
+            try {
+                r.run();
+            } finally {
+                SHEDDING.set(false);
+            }
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    if (concurrencyLimit != null) {
+                        concurrencyLimit.acquireUninterruptibly();
+                    }
+                    active.incrementAndGet();
+                    try {
+                        r.run();
+                    } finally {
+                        active.decrementAndGet();
+                        if (concurrencyLimit != null) {
+                            concurrencyLimit.release();
+                        }
+                    }
+                } finally {
+                    outstanding.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            outstanding.decrementAndGet();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns true if the request being handled on the current thread was
+     * accepted while the server was overloaded, and should be rejected.
+     */
+    public static boolean isShedding() {
+        return SHEDDING.get();
+    }
+
+    /**
+     * Get the number of requests currently being handled.
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Get the number of requests waiting to be handled.
+     */
+    public int getQueueDepth() {
+        return Math.max(0, outstanding.get() - active.get());
+    }
+
+    /**
+     * Get the number of requests rejected due to overload since start.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Stop the executor, giving in-progress requests a short time to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Create a virtual thread per task executor if the JVM supports it. This
+     * software is built for Java 17, so it is looked up at runtime.
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            LOGGER.warn("Virtual threads are not supported by this Java version, falling back to a thread pool.");
+            return null;
+        }
+    }
+}
@@ -68,6 +68,7 @@ public class AISTrack extends Track {
 
     public void setName(String name) {
         this.name = name;
+        markChanged();
     }
 
     public ShipType getShipType() {
@@ -98,6 +99,7 @@ public class AISTrack extends Track {
                 }
             }
         }
+        markChanged();
     }
 
     public boolean isShoreStation() {
@@ -109,6 +111,7 @@ public class AISTrack extends Track {
         if (shoreStation) {
             setSymbolCode(SHORE_STATION_SYMBOL);
         }
+        markChanged();
     }
 
     public boolean isAtoN() {
@@ -117,6 +120,7 @@ public class AISTrack extends Track {
 
     public void setAtoN(boolean aton) {
         this.aton = aton;
+        markChanged();
     }
 
     public NavigationStatus getNavStatus() {
@@ -133,6 +137,7 @@ public class AISTrack extends Track {
                 break;
             }
         }
+        markChanged();
     }
 
     public String getDestination() {
@@ -141,6 +146,7 @@ public class AISTrack extends Track {
 
     public void setDestination(String destination) {
         this.destination = destination;
+        markChanged();
     }
 
     public boolean shouldDrop() {
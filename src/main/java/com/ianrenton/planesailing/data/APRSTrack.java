@@ -33,6 +33,7 @@ public class APRSTrack extends Track {
 
     public void setPacketDestCall(String packetDestCall) {
         this.packetDestCall = packetDestCall;
+        markChanged();
     }
 
     public String getPacketRoute() {
@@ -41,6 +42,7 @@ public class APRSTrack extends Track {
 
     public void setPacketRoute(String packetRoute) {
         this.packetRoute = packetRoute;
+        markChanged();
     }
 
     public String getComment() {
@@ -49,6 +51,7 @@ public class APRSTrack extends Track {
 
     public void setComment(String comment) {
         this.comment = comment;
+        markChanged();
     }
 
     public String getSSID() {
@@ -76,6 +79,7 @@ public class APRSTrack extends Track {
         boolean tmpFixed = (ssid.equals("0") || ssid.equals("10") || ssid.equals("13")) && course == null && speed == null;
         setFixed(tmpFixed);
         setTrackType(tmpFixed ? TrackType.APRS_BASE_STATION : TrackType.APRS_MOBILE);
+        markChanged();
     }
 
     @Override
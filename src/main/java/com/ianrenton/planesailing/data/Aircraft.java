@@ -42,6 +42,7 @@ public class Aircraft extends Track {
     @Override
     public void performPostLoadTasks() {
         loadDataFromStaticMaps();
+        markChanged();
     }
 
     /**
@@ -113,10 +114,12 @@ public class Aircraft extends Track {
 
     public void setOnGround(boolean onGround) {
         this.onGround = onGround;
+        markChanged();
     }
 
     public void setSquawk(int squawk) {
         this.squawk = squawk;
+        markChanged();
     }
 
     /**
@@ -153,6 +156,7 @@ public class Aircraft extends Track {
                 }
             }
         }
+        markChanged();
     }
 
     /**
@@ -185,6 +189,7 @@ public class Aircraft extends Track {
 
     public void setOperator(String operator) {
         this.operator = operator;
+        markChanged();
     }
 
     public boolean shouldDrop() {
@@ -38,6 +38,7 @@ public class MeshtasticNode extends Track {
      */
     public void setShortName(String shortName) {
         this.shortName = shortName;
+        markChanged();
     }
 
     /**
@@ -52,6 +53,7 @@ public class MeshtasticNode extends Track {
      */
     public void setLongName(String longName) {
         this.longName = longName;
+        markChanged();
     }
 
     /**
@@ -66,6 +68,7 @@ public class MeshtasticNode extends Track {
      */
     public void setHardware(String hardware) {
         this.hardware = hardware;
+        markChanged();
     }
 
     /**
@@ -80,6 +83,7 @@ public class MeshtasticNode extends Track {
      */
     public void setChannelUtil(double channelUtil) {
         this.channelUtil = channelUtil;
+        markChanged();
     }
 
     /**
@@ -94,6 +98,7 @@ public class MeshtasticNode extends Track {
      */
     public void setAirUtilTx(double airUtilTx) {
         this.airUtilTx = airUtilTx;
+        markChanged();
     }
 
     /**
@@ -108,6 +113,7 @@ public class MeshtasticNode extends Track {
      */
     public void setBatteryLevel(double batteryLevel) {
         this.batteryLevel = batteryLevel;
+        markChanged();
     }
 
     /**
@@ -122,6 +128,7 @@ public class MeshtasticNode extends Track {
      */
     public void setVoltage(double voltage) {
         this.voltage = voltage;
+        markChanged();
     }
 
     /**
@@ -136,6 +143,7 @@ public class MeshtasticNode extends Track {
      */
     public void setSnr(double snr) {
         this.snr = snr;
+        markChanged();
     }
 
     @Override
@@ -2,7 +2,10 @@ package com.ianrenton.planesailing.data;
 
 import java.io.Serial;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * Position history for a track.
@@ -10,7 +13,11 @@ import java.util.concurrent.CopyOnWriteArrayList;
 public class PositionHistory extends CopyOnWriteArrayList<TimestampedPosition> implements Serializable {
     @Serial
     private static final long serialVersionUID = 1L;
+    private static final AtomicLongFieldUpdater<PositionHistory> VERSION = AtomicLongFieldUpdater.newUpdater(PositionHistory.class, "version");
     private long historyLength = Long.MAX_VALUE;
+    // Incremented every time the contents change, so that cached JSON including
+    // the history is known to be out of date.
+    private transient volatile long version;
 
     /**
      * Create a position history.
@@ -26,6 +33,13 @@ public class PositionHistory extends CopyOnWriteArrayList<TimestampedPosition> i
         return historyLength;
     }
 
+    /**
+     * Get a number that changes every time the contents of the history change.
+     */
+    public long getVersion() {
+        return version;
+    }
+
     /**
      * Add a position, or if the position is unchanged, remove the previous position
      * before adding this one with the updated timestamp. This avoids having massive
@@ -38,7 +52,9 @@ public class PositionHistory extends CopyOnWriteArrayList<TimestampedPosition> i
                 remove(size() - 1);
             }
         }
-        return super.add(p);
+        boolean added = super.add(p);
+        VERSION.incrementAndGet(this);
+        return added;
     }
 
     /**
@@ -51,12 +67,46 @@ public class PositionHistory extends CopyOnWriteArrayList<TimestampedPosition> i
         return null;
     }
 
+    /**
+     * Get the positions with timestamps between the two times provided. If there
+     * are more than maxPoints, return evenly spaced entries from across the range
+     * instead, always including the first and last.
+     *
+     * @param from      Start time, UTC millis since epoch, inclusive
+     * @param to        End time, UTC millis since epoch, inclusive
+     * @param maxPoints Maximum number of positions to return
+     */
+    public List<TimestampedPosition> getBetween(long from, long to, int maxPoints) {
+        List<TimestampedPosition> inRange = new ArrayList<>();
+        for (TimestampedPosition p : this) {
+            if (p.time() >= from && p.time() <= to) {
+                inRange.add(p);
+            }
+        }
+        if (inRange.size() <= maxPoints) {
+            return inRange;
+        }
+
+        List<TimestampedPosition> ret = new ArrayList<>(maxPoints);
+        if (maxPoints == 1) {
+            ret.add(inRange.get(inRange.size() - 1));
+        } else if (maxPoints > 1) {
+            double step = (inRange.size() - 1) / (double) (maxPoints - 1);
+            for (int i = 0; i < maxPoints; i++) {
+                ret.add(inRange.get((int) Math.round(i * step)));
+            }
+        }
+        return ret;
+    }
+
     /**
      * Cull history older than historyLength.
      */
     public void cull() {
         long threshold = System.currentTimeMillis() - historyLength;
-        removeIf(e -> e.time() < threshold);
+        if (removeIf(e -> e.time() < threshold)) {
+            VERSION.incrementAndGet(this);
+        }
     }
 
     /**
@@ -65,6 +115,7 @@ public class PositionHistory extends CopyOnWriteArrayList<TimestampedPosition> i
     public void keepOnlyLatest() {
         if (size() > 1) {
             subList(0, size() - 1).clear();
+            VERSION.incrementAndGet(this);
         }
     }
 }
@@ -35,6 +35,7 @@ public class Radiosonde extends Track {
      */
     public void setFrequencyString(String frequencyString) {
         this.frequencyString = frequencyString;
+        markChanged();
     }
 
     /**
@@ -49,6 +50,7 @@ public class Radiosonde extends Track {
      */
     public void setModel(String model) {
         this.model = model;
+        markChanged();
     }
 
     /**
@@ -63,6 +65,7 @@ public class Radiosonde extends Track {
      */
     public void setTemperature(Double temperature) {
         this.temperature = temperature;
+        markChanged();
     }
 
     public boolean shouldDrop() {
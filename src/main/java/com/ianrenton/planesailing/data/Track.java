@@ -3,16 +3,19 @@ package com.ianrenton.planesailing.data;
 import com.ianrenton.planesailing.app.Application;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
 
 import java.io.Serial;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 public abstract class Track implements Serializable {
     @Serial
     private static final long serialVersionUID = 1L;
     private static final Application APP = Application.getInstance();
     private static final Logger LOGGER = LogManager.getLogger(Track.class);
+    private static final AtomicLongFieldUpdater<Track> DATA_VERSION = AtomicLongFieldUpdater.newUpdater(Track.class, "dataVersion");
 
     protected final String id; // unique ID. ICAO Hex is used for aircraft, MMSI for ships, callsign for APRS
     // tracks and radiosondes, "!" hex code for Meshtastic. These are all sufficiently different that each track should be
@@ -30,6 +33,12 @@ public abstract class Track implements Serializable {
     protected boolean fixed = false;
     protected boolean createdByConfig = false;
 
+    // Incremented every time data that is sent to clients changes, so that the
+    // cached JSON for this track is known to be out of date.
+    private transient volatile long dataVersion;
+    private transient volatile CachedJSON cachedFirstCallJSON;
+    private transient volatile CachedJSON cachedUpdateCallJSON;
+
     public Track(String id) {
         this.id = id;
     }
@@ -44,6 +53,7 @@ public abstract class Track implements Serializable {
 
     public void setCallsign(String callsign) {
         this.callsign = callsign;
+        markChanged();
     }
 
     public TrackType getTrackType() {
@@ -52,6 +62,7 @@ public abstract class Track implements Serializable {
 
     public void setTrackType(TrackType trackType) {
         this.trackType = trackType;
+        markChanged();
     }
 
     public String getSymbolCode() {
@@ -60,6 +71,7 @@ public abstract class Track implements Serializable {
 
     public void setSymbolCode(String symbolCode) {
         this.symbolCode = symbolCode;
+        markChanged();
     }
 
     /**
@@ -136,6 +148,7 @@ public abstract class Track implements Serializable {
 
     public void setAltitude(Double altitude) {
         this.altitude = altitude;
+        markChanged();
     }
 
     /**
@@ -147,6 +160,7 @@ public abstract class Track implements Serializable {
 
     public void setVerticalRate(Double verticalRate) {
         this.verticalRate = verticalRate;
+        markChanged();
     }
 
     /**
@@ -158,6 +172,7 @@ public abstract class Track implements Serializable {
 
     public void setCourse(Double course) {
         this.course = course;
+        markChanged();
     }
 
     /**
@@ -169,6 +184,7 @@ public abstract class Track implements Serializable {
 
     public void setHeading(Double heading) {
         this.heading = heading;
+        markChanged();
     }
 
     /**
@@ -180,6 +196,7 @@ public abstract class Track implements Serializable {
 
     public void setSpeed(Double speed) {
         this.speed = speed;
+        markChanged();
     }
 
     public PositionHistory getPositionHistory() {
@@ -192,9 +209,10 @@ public abstract class Track implements Serializable {
      *
      * @param latitude  Latitude, decimal degrees
      * @param longitude Longitude, decimal degrees
+     * @return true if the position was added, false if it was rejected.
      */
-    public void addPosition(double latitude, double longitude) {
-        addPosition(latitude, longitude, System.currentTimeMillis());
+    public boolean addPosition(double latitude, double longitude) {
+        return addPosition(latitude, longitude, System.currentTimeMillis());
     }
 
     /**
@@ -204,16 +222,19 @@ public abstract class Track implements Serializable {
      * @param latitude  Latitude, decimal degrees
      * @param longitude Longitude, decimal degrees
      * @param time      Timestamp of position report, UTC UNIX millis
+     * @return true if the position was added, false if it was rejected.
      */
-    public void addPosition(double latitude, double longitude, long time) {
+    public boolean addPosition(double latitude, double longitude, long time) {
         if (APP.getTrackTable().isReasonablePosition(latitude, longitude, trackType)) {
             positionHistory.add(new TimestampedPosition(latitude, longitude, time));
             updateMetadataTime(time);
+            return true;
         } else if (trackType != null) {
             LOGGER.warn("Position {},{} is unreasonable for track {} and has been rejected.", latitude, longitude, getDisplayName());
         } else {
             LOGGER.warn("Tried to check position reasonableness for a track of null type. Always set the type before adding a position!");
         }
+        return false;
     }
 
     /**
@@ -230,10 +251,12 @@ public abstract class Track implements Serializable {
 
     public void updateMetadataTime() {
         metaDataTime = System.currentTimeMillis();
+        markChanged();
     }
 
     public void updateMetadataTime(long newTime) {
         metaDataTime = newTime;
+        markChanged();
     }
 
     public Long getMetaDataTime() {
@@ -274,6 +297,7 @@ public abstract class Track implements Serializable {
 
     public void setFixed(boolean fixed) {
         this.fixed = fixed;
+        markChanged();
     }
 
     /**
@@ -290,6 +314,7 @@ public abstract class Track implements Serializable {
         if (createdByConfig) {
             this.fixed = true;
         }
+        markChanged();
     }
 
     /**
@@ -343,6 +368,15 @@ public abstract class Track implements Serializable {
     public void performPostLoadTasks() {
     }
 
+    /**
+     * Record that data sent to clients has changed, so any cached JSON for this
+     * track must be rebuilt. All setters must call this, including those in
+     * subclasses.
+     */
+    protected void markChanged() {
+        DATA_VERSION.incrementAndGet(this);
+    }
+
     /**
      * Get the type description for display.
      */
@@ -368,21 +402,49 @@ public abstract class Track implements Serializable {
      * be omitted to save bandwidth.
      */
     public Map<String, Object> getFirstCallData() {
+        return getFirstCallData(Long.MIN_VALUE);
+    }
+
+    /**
+     * As getFirstCallData(), but only including position history from after the
+     * given time.
+     *
+     * @param historySince Time, UTC millis since epoch. Older positions are omitted.
+     */
+    public Map<String, Object> getFirstCallData(long historySince) {
         Map<String, Object> map = getAllCallData();
 
         if (!fixed) {
             List<Map<String, Object>> posHistory = new ArrayList<>();
             for (TimestampedPosition p : positionHistory) {
-                Map<String, Object> m = new HashMap<>();
-                m.put("lat", p.latitude());
-                m.put("lon", p.longitude());
-                posHistory.add(m);
+                if (p.time() >= historySince) {
+                    Map<String, Object> m = new HashMap<>();
+                    m.put("lat", p.latitude());
+                    m.put("lon", p.longitude());
+                    posHistory.add(m);
+                }
             }
             map.put("poshistory", posHistory);
         }
         return map;
     }
 
+    /**
+     * Get the data from getFirstCallData() as a JSON string. This is cached, and
+     * only rebuilt if the track or its position history has changed since the
+     * last call.
+     */
+    public String getFirstCallJSON() {
+        long version = dataVersion;
+        long historyVersion = positionHistory.getVersion();
+        CachedJSON c = cachedFirstCallJSON;
+        if (c == null || c.version() != version || c.historyVersion() != historyVersion) {
+            c = new CachedJSON(version, historyVersion, new JSONObject(getFirstCallData()).toString());
+            cachedFirstCallJSON = c;
+        }
+        return c.json();
+    }
+
     /**
      * Get a map of data for this track that will be provided to the client,
      * including all metadata and the current position, used for the "update" API
@@ -392,6 +454,22 @@ public abstract class Track implements Serializable {
         return getAllCallData();
     }
 
+    /**
+     * Get the data from getUpdateCallData() as a JSON string. This is cached, and
+     * only rebuilt if the track or its position history has changed since the
+     * last call, as the current position comes from the history.
+     */
+    public String getUpdateCallJSON() {
+        long version = dataVersion;
+        long historyVersion = positionHistory.getVersion();
+        CachedJSON c = cachedUpdateCallJSON;
+        if (c == null || c.version() != version || c.historyVersion() != historyVersion) {
+            c = new CachedJSON(version, historyVersion, new JSONObject(getUpdateCallData()).toString());
+            cachedUpdateCallJSON = c;
+        }
+        return c.json();
+    }
+
     /**
      * Get a map of metadata for this track that will be provided to the client in
      * all API calls. This should be enough to generate all the information the
@@ -424,4 +502,11 @@ public abstract class Track implements Serializable {
         map.put("datatime", getMetaDataTime());
         return map;
     }
+
+    /**
+     * JSON for a track, along with the versions of the track data and position
+     * history it was generated from.
+     */
+    private record CachedJSON(long version, long historyVersion, String json) {
+    }
 }
@@ -32,6 +32,7 @@ public class DataMaps {
     public static final Map<String, String> SHIP_TYPE_TO_SYMBOL = new HashMap<>();
     public static final Map<String, String> SHIP_TYPE_TO_DESCRIPTION = new HashMap<>();
     public static final Map<String, String> APRS_SSID_TO_SYMBOL = new HashMap<>();
+    public static final Map<String, String> MESHTASTIC_HW_MODEL_TO_NAME = new HashMap<>();
 
     private static final Logger LOGGER = LogManager.getLogger(DataMaps.class);
 
@@ -52,6 +53,7 @@ public class DataMaps {
         load("ship_type_to_symbol.csv", SHIP_TYPE_TO_SYMBOL);
         load("ship_type_to_description.csv", SHIP_TYPE_TO_DESCRIPTION);
         load("aprs_ssid_to_symbol.csv", APRS_SSID_TO_SYMBOL);
+        load("meshtastic_hw_model_to_name.csv", MESHTASTIC_HW_MODEL_TO_NAME);
     }
 
     /**
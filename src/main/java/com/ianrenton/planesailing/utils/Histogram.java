@@ -0,0 +1,84 @@
+package com.ianrenton.planesailing.utils;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe histogram with fixed bucket boundaries, suitable for exporting
+ * as a Prometheus histogram. Observations are cheap enough to make on every
+ * received message.
+ */
+public class Histogram {
+
+    /**
+     * Bucket upper bounds in seconds, suitable for timing the handling of a
+     * single message, from 10 microseconds to one second.
+     */
+    public static final double[] LATENCY_BUCKETS_SEC = {0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005,
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0};
+
+    private final double[] bounds;
+    // One more bucket than there are bounds, for values above the top bound
+    private final LongAdder[] buckets;
+    private final DoubleAdder sum = new DoubleAdder();
+
+    /**
+     * Create the histogram
+     *
+     * @param bounds Upper bound of each bucket, in ascending order.
+     */
+    public Histogram(double[] bounds) {
+        this.bounds = bounds.clone();
+        buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a value.
+     */
+    public void observe(double value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sum.add(value);
+    }
+
+    /**
+     * Record the time in seconds since the given System.nanoTime() value.
+     */
+    public void observeSince(long startNanos) {
+        observe((System.nanoTime() - startNanos) / 1.0E9);
+    }
+
+    /**
+     * Get the upper bound of each bucket.
+     */
+    public double[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Get the number of values less than or equal to each bucket's upper bound,
+     * followed by the total number of values, as Prometheus expects.
+     */
+    public long[] getCumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    /**
+     * Get the sum of all values recorded.
+     */
+    public double getSum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,52 @@
+package com.ianrenton.planesailing.utils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Collects metrics from all registered sources into the text served by the
+ * Prometheus metrics endpoint. Generating this means walking the whole track
+ * table, so the text is cached for a short time and shared between any
+ * scrapes that arrive within that time.
+ */
+public class MetricsRegistry {
+
+    private final List<MetricsSource> sources = new CopyOnWriteArrayList<>();
+    private final long cacheMillis;
+    private String cachedText;
+    private long cachedTime;
+
+    /**
+     * Create the registry
+     *
+     * @param cacheMillis Time in milliseconds to reuse the generated text for.
+     *                    This should be shorter than the Prometheus scrape interval.
+     */
+    public MetricsRegistry(long cacheMillis) {
+        this.cacheMillis = cacheMillis;
+    }
+
+    /**
+     * Add a source of metrics. Sources are written out in the order they
+     * are registered.
+     */
+    public void register(MetricsSource source) {
+        sources.add(source);
+    }
+
+    /**
+     * Get the metrics in Prometheus text exposition format.
+     */
+    public synchronized String getText() {
+        long now = System.currentTimeMillis();
+        if (cachedText == null || now - cachedTime >= cacheMillis) {
+            PrometheusMetricGenerator out = new PrometheusMetricGenerator();
+            for (MetricsSource s : sources) {
+                s.writeMetrics(out);
+            }
+            cachedText = out.toString();
+            cachedTime = now;
+        }
+        return cachedText;
+    }
+}
@@ -0,0 +1,12 @@
+package com.ianrenton.planesailing.utils;
+
+/**
+ * Something that can contribute metrics to the Prometheus metrics endpoint.
+ */
+public interface MetricsSource {
+
+    /**
+     * Add this source's metrics to the output.
+     */
+    void writeMetrics(PrometheusMetricGenerator out);
+}
@@ -0,0 +1,127 @@
+package com.ianrenton.planesailing.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded, lock-free queue for many producer threads and a single consumer
+ * thread. Based on Dmitry Vyukov's bounded queue: each slot has a sequence
+ * number that tells producers when it is free to write and the consumer when
+ * it is ready to read, so producers only contend with each other on a single
+ * compare-and-set, and never block. If the queue is full, offer() fails
+ * rather than waiting.
+ *
+ * @param <E> Element type.
+ */
+public class MpscRingBuffer<E> {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // Only written by the consumer, volatile so that size() can be read elsewhere
+    private volatile long head;
+
+    /**
+     * Create the queue
+     *
+     * @param minCapacity Minimum number of elements the queue can hold. This is
+     *                    rounded up to the next power of two.
+     */
+    public MpscRingBuffer(int minCapacity) {
+        int c = 1;
+        while (c < minCapacity) {
+            c <<= 1;
+        }
+        capacity = c;
+        mask = c - 1;
+        elements = new AtomicReferenceArray<>(c);
+        sequences = new AtomicLongArray(c);
+        for (int i = 0; i < c; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Add an element to the queue. Safe to call from any thread.
+     *
+     * @return true if the element was added, false if the queue was full.
+     */
+    public boolean offer(E e) {
+        long pos = tail.get();
+        while (true) {
+            int i = (int) (pos & mask);
+            long diff = sequences.get(i) - pos;
+            if (diff == 0) {
+                // Slot is free, try to claim it
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements.lazySet(i, e);
+                    // Publish to the consumer
+                    sequences.lazySet(i, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // The consumer hasn't read this slot from the last time round yet
+                return false;
+            } else {
+                // Another producer got here first
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue. Must only be called from the
+     * consumer thread.
+     *
+     * @return The element, or null if the queue is empty.
+     */
+    public E poll() {
+        long h = head;
+        int i = (int) (h & mask);
+        if (sequences.get(i) != h + 1) {
+            // Empty, or a producer has claimed the slot but not written it yet
+            return null;
+        }
+        E e = elements.get(i);
+        elements.lazySet(i, null);
+        // Free the slot for producers on the next time round
+        sequences.lazySet(i, h + capacity);
+        head = h + 1;
+        return e;
+    }
+
+    /**
+     * Remove up to the given number of elements, passing each to the consumer
+     * function. Must only be called from the consumer thread.
+     *
+     * @return The number of elements removed.
+     */
+    public int drain(Consumer<E> consumer, int maxElements) {
+        int n = 0;
+        E e;
+        while (n < maxElements && (e = poll()) != null) {
+            consumer.accept(e);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Get the approximate number of elements in the queue.
+     */
+    public int size() {
+        return (int) Math.max(0, Math.min(capacity, tail.get() - head));
+    }
+
+    /**
+     * Get the number of elements the queue can hold.
+     */
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -1,16 +1,133 @@
 package com.ianrenton.planesailing.utils;
 
+/**
+ * Generates data for the Prometheus metrics endpoint. Metrics are added one
+ * by one, and all written into a single buffer.
+ */
 public class PrometheusMetricGenerator {
 
+    private final StringBuilder sb = new StringBuilder(16384);
+
+    /**
+     * Add a single gauge metric with no labels.
+     */
+    public PrometheusMetricGenerator gauge(String metricName, String metricDescription, long value) {
+        header(metricName, metricDescription, "gauge");
+        sb.append(metricName).append(' ').append(value).append('\n');
+        return this;
+    }
+
+    /**
+     * Add a single gauge metric with no labels.
+     */
+    public PrometheusMetricGenerator gauge(String metricName, String metricDescription, double value) {
+        header(metricName, metricDescription, "gauge");
+        sb.append(metricName).append(' ').append(value).append('\n');
+        return this;
+    }
+
+    /**
+     * Add a single counter metric with no labels.
+     */
+    public PrometheusMetricGenerator counter(String metricName, String metricDescription, long value) {
+        header(metricName, metricDescription, "counter");
+        sb.append(metricName).append(' ').append(value).append('\n');
+        return this;
+    }
+
+    /**
+     * Add a single counter metric with no labels.
+     */
+    public PrometheusMetricGenerator counter(String metricName, String metricDescription, double value) {
+        header(metricName, metricDescription, "counter");
+        sb.append(metricName).append(' ').append(value).append('\n');
+        return this;
+    }
+
+    /**
+     * Start a metric family, which can then have several labelled samples added
+     * to it using sample() or histogram().
+     *
+     * @param metricType "gauge", "counter" or "histogram"
+     */
+    public PrometheusMetricGenerator header(String metricName, String metricDescription, String metricType) {
+        sb.append("# HELP ").append(metricName).append(' ').append(metricDescription).append('\n');
+        sb.append("# TYPE ").append(metricName).append(' ').append(metricType).append('\n');
+        return this;
+    }
+
+    /**
+     * Add a labelled sample to the current metric family.
+     *
+     * @param labels Label names and values, alternating.
+     */
+    public PrometheusMetricGenerator sample(String metricName, String[] labels, long value) {
+        sb.append(metricName);
+        appendLabels(labels, null, null);
+        sb.append(' ').append(value).append('\n');
+        return this;
+    }
+
+    /**
+     * Add the buckets, sum and count of a histogram to the current metric family.
+     *
+     * @param labels Label names and values, alternating.
+     */
+    public PrometheusMetricGenerator histogram(String metricName, String[] labels, Histogram histogram) {
+        double[] bounds = histogram.getBounds();
+        long[] counts = histogram.getCumulativeCounts();
+        for (int i = 0; i < counts.length; i++) {
+            sb.append(metricName).append("_bucket");
+            appendLabels(labels, "le", i < bounds.length ? Double.toString(bounds[i]) : "+Inf");
+            sb.append(' ').append(counts[i]).append('\n');
+        }
+        sb.append(metricName).append("_sum");
+        appendLabels(labels, null, null);
+        sb.append(' ').append(histogram.getSum()).append('\n');
+        sb.append(metricName).append("_count");
+        appendLabels(labels, null, null);
+        sb.append(' ').append(counts[counts.length - 1]).append('\n');
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+
     /**
-     * Generate a single metric for incorporation into the Prometheus metrics endpoint data.
+     * Append a set of labels, plus optionally one extra label at the end.
      */
-    public static String generate(String metricName, String metricDescription, String metricType, Object value) {
-        return "# HELP " + metricName + " " + metricDescription + "\n" +
-                "# TYPE " + metricName + " " + metricType + "\n" +
-                metricName + " " + value.toString() + "\n";
+    private void appendLabels(String[] labels, String extraName, String extraValue) {
+        if (labels.length == 0 && extraName == null) {
+            return;
+        }
+        sb.append('{');
+        boolean first = true;
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            appendLabel(labels[i], labels[i + 1], first);
+            first = false;
+        }
+        if (extraName != null) {
+            appendLabel(extraName, extraValue, first);
+        }
+        sb.append('}');
     }
 
-    private PrometheusMetricGenerator() {
+    private void appendLabel(String name, String value, boolean first) {
+        if (!first) {
+            sb.append(',');
+        }
+        sb.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case '"' -> sb.append("\\\"");
+                case '\n' -> sb.append("\\n");
+                default -> sb.append(c);
+            }
+        }
+        sb.append('"');
     }
 }
@@ -0,0 +1,78 @@
+package com.ianrenton.planesailing.utils;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent requests for the same expensive result. The first caller
+ * for a given key performs the computation, and any other callers with the same
+ * key that arrive while it is in progress wait for it and share its result,
+ * rather than repeating the work themselves. Results are not cached once the
+ * computation has finished.
+ *
+ * @param <K> Key type, identifying which requests are identical.
+ * @param <V> Result type.
+ */
+public class SingleFlight<K, V> {
+
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder computed = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Get the result for the given key, either by computing it or by waiting for
+     * a computation for the same key that is already in progress.
+     *
+     * @param key      Key identifying the request.
+     * @param supplier Function to compute the result.
+     * @return The result.
+     */
+    public V get(K key, Supplier<V> supplier) {
+        CompletableFuture<V> ours = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, ours);
+        if (existing != null) {
+            coalesced.increment();
+            try {
+                return existing.join();
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof RuntimeException re) {
+                    throw re;
+                } else if (ex.getCause() instanceof Error e) {
+                    throw e;
+                }
+                throw ex;
+            }
+        }
+
+        computed.increment();
+        try {
+            V result = supplier.get();
+            ours.complete(result);
+            return result;
+        } catch (Throwable t) {
+            // Make sure anyone waiting on us gets the failure too, rather than hanging
+            ours.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, ours);
+        }
+    }
+
+    /**
+     * Get the number of times the result was computed since start.
+     */
+    public long getComputedCount() {
+        return computed.sum();
+    }
+
+    /**
+     * Get the number of requests that shared another request's result since start.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+}
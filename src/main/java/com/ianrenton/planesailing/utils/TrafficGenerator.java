@@ -0,0 +1,1096 @@
+package com.ianrenton.planesailing.utils;
+
+import com.ianrenton.planesailing.comms.ProtobufReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Util to generate synthetic traffic for load testing Plane/Sailing Server
+ * without any radios. Simulates any number of aircraft, ships, APRS stations
+ * and Meshtastic nodes moving around a point, and serves their data in the
+ * formats the server receives:
+ * <ul>
+ * <li>Aircraft as BEAST binary (like dump1090 port 30005) and SBS (like
+ * dump1090 port 30003), on TCP ports that the server connects to. BEAST
+ * messages are ADS-B extended squitters with valid CRCs and CPR-encoded
+ * positions, so they go through the same decoding as real ones.</li>
+ * <li>Ships as AIS NMEA (AIVDM) sentences, sent by UDP to the port the server
+ * listens on.</li>
+ * <li>APRS stations as AX.25 position reports in KISS frames, on a TCP port
+ * that the server connects to (like Direwolf port 8001).</li>
+ * <li>Meshtastic nodes as framed FromRadio protobufs, on a TCP port that the
+ * server connects to (like a node's own TCP API on port 4403). As a real node
+ * does, it answers a request for the node database with the NodeInfo of every
+ * node, then passes on position, node info and telemetry packets as they are
+ * heard.</li>
+ * </ul>
+ * Each aircraft sends a position and a velocity every interval and its
+ * identification every tenth interval, each ship sends a position report every
+ * interval and its static data every tenth interval, each APRS station
+ * sends a position report every interval, and each Meshtastic node sends a
+ * position every interval and its node info and telemetry every tenth
+ * interval. Start times are spread out so that
+ * messages arrive steadily. The number of messages sent per second is printed
+ * regularly; if it falls short of what was asked for, the generator or the
+ * server can't keep up.
+ * <p>
+ * Options are given as "--name value", e.g.
+ * "--aircraft 10000 --ships 50000 --aprs 0". Run with "--help" to list them.
+ * Setting a port to 0 turns that output off. Point the server's receivers at
+ * the ports used, and set its base station position near the centre point so
+ * that single ADS-B positions can be decoded. Only use one of BEAST and SBS at
+ * once, or every aircraft will be received twice.
+ */
+public class TrafficGenerator {
+
+    private static final Map<String, String> DEFAULT_OPTIONS = new LinkedHashMap<>();
+
+    static {
+        DEFAULT_OPTIONS.put("aircraft", "1000");
+        DEFAULT_OPTIONS.put("ships", "1000");
+        DEFAULT_OPTIONS.put("aprs", "100");
+        DEFAULT_OPTIONS.put("meshtastic", "20");
+        DEFAULT_OPTIONS.put("lat", "51.478");
+        DEFAULT_OPTIONS.put("lon", "0.0");
+        DEFAULT_OPTIONS.put("aircraft-radius-km", "300");
+        DEFAULT_OPTIONS.put("ship-radius-km", "100");
+        DEFAULT_OPTIONS.put("aprs-radius-km", "50");
+        DEFAULT_OPTIONS.put("meshtastic-radius-km", "30");
+        DEFAULT_OPTIONS.put("aircraft-interval-ms", "500");
+        DEFAULT_OPTIONS.put("ship-interval-ms", "10000");
+        DEFAULT_OPTIONS.put("aprs-interval-ms", "60000");
+        DEFAULT_OPTIONS.put("meshtastic-interval-ms", "60000");
+        DEFAULT_OPTIONS.put("beast-port", "30005");
+        DEFAULT_OPTIONS.put("sbs-port", "30003");
+        DEFAULT_OPTIONS.put("kiss-port", "8001");
+        DEFAULT_OPTIONS.put("meshtastic-port", "4403");
+        DEFAULT_OPTIONS.put("ais-host", "127.0.0.1");
+        DEFAULT_OPTIONS.put("ais-port", "10111");
+        DEFAULT_OPTIONS.put("seed", "1");
+    }
+
+    // How often to move everything and send whatever messages are due
+    private static final long TICK_MILLIS = 50;
+    // How often to print statistics
+    private static final long STATS_INTERVAL_MILLIS = 10000;
+    // Every this many intervals, aircraft send identification and ships send static data
+    private static final int STATIC_DATA_EVERY = 10;
+
+    // Meshtastic hardware models to pick from: T-Beam, RAK4631 and Heltec V3
+    private static final int[] MESHTASTIC_HW_MODELS = {4, 9, 43};
+    private static final String[] AIRLINES = {"BAW", "EZY", "RYR", "VIR", "DLH", "AFR", "KLM", "UAE", "TOM", "SHT"};
+    private static final String MODE_S_CHARS = "#ABCDEFGHIJKLMNOPQRSTUVWXYZ##### ###############0123456789######";
+    private static final DateTimeFormatter SBS_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd,HH:mm:ss.SSS").withZone(ZoneOffset.UTC);
+
+    private final Random random;
+    private final double centreLat;
+    private final double centreLon;
+    private final List<SimAircraft> aircraft = new ArrayList<>();
+    private final List<SimShip> ships = new ArrayList<>();
+    private final List<SimStation> stations = new ArrayList<>();
+    private final List<SimNode> nodes = new ArrayList<>();
+    private final double aircraftRadiusKm;
+    private final double shipRadiusKm;
+    private final double aprsRadiusKm;
+    private final double meshtasticRadiusKm;
+    private final long aircraftIntervalMillis;
+    private final long shipIntervalMillis;
+    private final long aprsIntervalMillis;
+    private final long meshtasticIntervalMillis;
+    private final TCPOutput beastOutput;
+    private final TCPOutput sbsOutput;
+    private final TCPOutput kissOutput;
+    private final MeshtasticOutput meshtasticOutput;
+    private final UDPOutput aisOutput;
+    private final long startNanos = System.nanoTime();
+    private int aisSequenceId;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(DEFAULT_OPTIONS);
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i].startsWith("--") ? args[i].substring(2) : null;
+            if (name == null || !DEFAULT_OPTIONS.containsKey(name) || i + 1 >= args.length) {
+                if (!args[i].equals("--help")) {
+                    System.out.println("Unknown or incomplete option " + args[i]);
+                }
+                System.out.println("Options, with their defaults:");
+                DEFAULT_OPTIONS.forEach((k, v) -> System.out.println("  --" + k + " " + v));
+                return;
+            }
+            options.put(name, args[++i]);
+        }
+
+        new TrafficGenerator(options).run();
+    }
+
+    private TrafficGenerator(Map<String, String> options) throws IOException {
+        random = new Random(Long.parseLong(options.get("seed")));
+        centreLat = Double.parseDouble(options.get("lat"));
+        centreLon = Double.parseDouble(options.get("lon"));
+        aircraftRadiusKm = Double.parseDouble(options.get("aircraft-radius-km"));
+        shipRadiusKm = Double.parseDouble(options.get("ship-radius-km"));
+        aprsRadiusKm = Double.parseDouble(options.get("aprs-radius-km"));
+        meshtasticRadiusKm = Double.parseDouble(options.get("meshtastic-radius-km"));
+        aircraftIntervalMillis = Long.parseLong(options.get("aircraft-interval-ms"));
+        shipIntervalMillis = Long.parseLong(options.get("ship-interval-ms"));
+        aprsIntervalMillis = Long.parseLong(options.get("aprs-interval-ms"));
+        meshtasticIntervalMillis = Long.parseLong(options.get("meshtastic-interval-ms"));
+
+        long now = System.currentTimeMillis();
+        Set<Integer> icaos = new HashSet<>();
+        for (int i = 0; i < Integer.parseInt(options.get("aircraft")); i++) {
+            int icao;
+            do {
+                icao = 0x400000 + random.nextInt(0x800000);
+            } while (!icaos.add(icao));
+            aircraft.add(new SimAircraft(icao, now));
+        }
+        for (int i = 0; i < Integer.parseInt(options.get("ships")); i++) {
+            ships.add(new SimShip(232000000 + i, now));
+        }
+        for (int i = 0; i < Integer.parseInt(options.get("aprs")); i++) {
+            stations.add(new SimStation(i, now));
+        }
+        Set<Integer> nodeNums = new HashSet<>();
+        for (int i = 0; i < Integer.parseInt(options.get("meshtastic")); i++) {
+            int num;
+            do {
+                num = 0x10000000 + random.nextInt(0x60000000);
+            } while (!nodeNums.add(num));
+            nodes.add(new SimNode(num, i, now));
+        }
+
+        int beastPort = Integer.parseInt(options.get("beast-port"));
+        int sbsPort = Integer.parseInt(options.get("sbs-port"));
+        int kissPort = Integer.parseInt(options.get("kiss-port"));
+        int meshtasticPort = Integer.parseInt(options.get("meshtastic-port"));
+        int aisPort = Integer.parseInt(options.get("ais-port"));
+        beastOutput = beastPort > 0 ? new TCPOutput("BEAST", beastPort).start() : null;
+        sbsOutput = sbsPort > 0 ? new TCPOutput("SBS", sbsPort).start() : null;
+        kissOutput = kissPort > 0 ? new TCPOutput("KISS", kissPort).start() : null;
+        meshtasticOutput = meshtasticPort > 0 ? (MeshtasticOutput) new MeshtasticOutput(meshtasticPort).start() : null;
+        aisOutput = aisPort > 0 ? new UDPOutput(new InetSocketAddress(InetAddress.getByName(options.get("ais-host")), aisPort)) : null;
+
+        System.out.printf("Simulating %d aircraft, %d ships, %d APRS stations and %d Meshtastic nodes around %.4f, %.4f%n",
+                aircraft.size(), ships.size(), stations.size(), nodes.size(), centreLat, centreLon);
+        System.out.printf("Expecting about %.0f aircraft, %.0f ship, %.0f APRS and %.0f Meshtastic messages per second%n",
+                aircraft.size() * (2 + 1.0 / STATIC_DATA_EVERY) * 1000 / aircraftIntervalMillis,
+                ships.size() * (1 + 1.0 / STATIC_DATA_EVERY) * 1000 / shipIntervalMillis,
+                stations.size() * 1000.0 / aprsIntervalMillis,
+                nodes.size() * (1 + 2.0 / STATIC_DATA_EVERY) * 1000 / meshtasticIntervalMillis);
+    }
+
+    /**
+     * Main loop. Moves everything, sends any messages that are due, then waits
+     * for the next tick.
+     */
+    private void run() throws InterruptedException {
+        long lastTick = System.currentTimeMillis();
+        long lastStats = lastTick;
+        while (true) {
+            long now = System.currentTimeMillis();
+            double dt = (now - lastTick) / 1000.0;
+            lastTick = now;
+
+            boolean sendAircraft = isActive(beastOutput) || isActive(sbsOutput);
+            String sbsTime = SBS_TIME_FORMAT.format(Instant.ofEpochMilli(now));
+            for (SimAircraft a : aircraft) {
+                a.move(dt, aircraftRadiusKm);
+                if (now >= a.nextDue) {
+                    a.nextDue = nextDue(a.nextDue, now, aircraftIntervalMillis);
+                    if (sendAircraft) {
+                        a.send(sbsTime);
+                    }
+                }
+            }
+            for (SimShip s : ships) {
+                s.move(dt, shipRadiusKm);
+                if (now >= s.nextDue) {
+                    s.nextDue = nextDue(s.nextDue, now, shipIntervalMillis);
+                    if (aisOutput != null) {
+                        s.send(now);
+                    }
+                }
+            }
+            for (SimStation s : stations) {
+                s.move(dt, aprsRadiusKm);
+                if (now >= s.nextDue) {
+                    s.nextDue = nextDue(s.nextDue, now, aprsIntervalMillis);
+                    if (isActive(kissOutput)) {
+                        s.send();
+                    }
+                }
+            }
+            for (SimNode n : nodes) {
+                n.move(dt, meshtasticRadiusKm);
+                if (now >= n.nextDue) {
+                    n.nextDue = nextDue(n.nextDue, now, meshtasticIntervalMillis);
+                    n.lastHeard = now;
+                    if (isActive(meshtasticOutput)) {
+                        n.send(now);
+                    }
+                }
+            }
+            if (meshtasticOutput != null) {
+                meshtasticOutput.sendNodeDatabases(nodes);
+            }
+            for (TCPOutput o : new TCPOutput[]{beastOutput, sbsOutput, kissOutput, meshtasticOutput}) {
+                if (o != null) {
+                    o.flush();
+                }
+            }
+
+            if (now - lastStats >= STATS_INTERVAL_MILLIS) {
+                double secs = (now - lastStats) / 1000.0;
+                lastStats = now;
+                StringBuilder sb = new StringBuilder("Messages per second:");
+                for (TCPOutput o : new TCPOutput[]{beastOutput, sbsOutput, kissOutput, meshtasticOutput}) {
+                    if (o != null) {
+                        sb.append(String.format(" %s %.0f (%d clients),", o.name, o.takeMessageCount() / secs, o.clients.size()));
+                    }
+                }
+                if (aisOutput != null) {
+                    sb.append(String.format(" AIS %.0f", aisOutput.takeMessageCount() / secs));
+                }
+                System.out.println(sb);
+            }
+
+            long sleep = lastTick + TICK_MILLIS - System.currentTimeMillis();
+            if (sleep > 0) {
+                Thread.sleep(sleep);
+            }
+        }
+    }
+
+    private static boolean isActive(TCPOutput o) {
+        return o != null && !o.clients.isEmpty();
+    }
+
+    /**
+     * Get the next time something should send a message. If the generator has
+     * fallen behind, start again from now rather than sending a burst to catch
+     * up.
+     */
+    private static long nextDue(long due, long now, long interval) {
+        due += interval;
+        return due < now ? now + interval : due;
+    }
+
+    /**
+     * Something that moves around within an area with a roughly constant
+     * speed, turning now and then, and turning back towards the centre if it
+     * leaves the area.
+     */
+    private abstract class Mover {
+        double lat;
+        double lon;
+        double heading;
+        double speedKnots;
+        double turnRate;
+        final double maxTurnRate;
+        long nextDue;
+
+        Mover(double radiusKm, double speedKnots, double maxTurnRate, long now, long interval) {
+            double r = radiusKm * Math.sqrt(random.nextDouble());
+            double theta = random.nextDouble() * 2 * Math.PI;
+            lat = centreLat + r * Math.cos(theta) / 111.2;
+            lon = centreLon + r * Math.sin(theta) / (111.2 * Math.cos(Math.toRadians(centreLat)));
+            heading = random.nextDouble() * 360;
+            this.speedKnots = speedKnots;
+            this.maxTurnRate = maxTurnRate;
+            nextDue = now + (long) (random.nextDouble() * interval);
+        }
+
+        void move(double dt, double radiusKm) {
+            double dy = (lat - centreLat) * 111.2;
+            double dx = (lon - centreLon) * 111.2 * Math.cos(Math.toRadians(centreLat));
+            if (dx * dx + dy * dy > radiusKm * radiusKm) {
+                double diff = (Math.toDegrees(Math.atan2(-dx, -dy)) - heading + 540) % 360 - 180;
+                turnRate = Math.abs(diff) < 5 ? 0 : Math.signum(diff) * maxTurnRate;
+            } else if (random.nextDouble() < dt / 60) {
+                // Change what we're doing about once a minute
+                turnRate = random.nextBoolean() ? 0 : (random.nextDouble() * 2 - 1) * maxTurnRate;
+            }
+            heading = (heading + turnRate * dt + 360) % 360;
+            double nm = speedKnots * dt / 3600;
+            lat += nm * Math.cos(Math.toRadians(heading)) / 60;
+            lon += nm * Math.sin(Math.toRadians(heading)) / (60 * Math.cos(Math.toRadians(lat)));
+        }
+    }
+
+    /**
+     * Simulated aircraft, sending ADS-B messages.
+     */
+    private class SimAircraft extends Mover {
+        final int icao;
+        final String icaoHex;
+        final String callsign;
+        double altitude;
+        double targetAltitude;
+        double verticalRate;
+        boolean oddPosition;
+        int count;
+
+        SimAircraft(int icao, long now) {
+            super(aircraftRadiusKm, 150 + random.nextDouble() * 350, 3, now, aircraftIntervalMillis);
+            this.icao = icao;
+            icaoHex = String.format("%06X", icao);
+            callsign = AIRLINES[random.nextInt(AIRLINES.length)] + (1 + random.nextInt(9999));
+            altitude = 1000 + random.nextInt(390) * 100;
+            targetAltitude = altitude;
+        }
+
+        @Override
+        void move(double dt, double radiusKm) {
+            super.move(dt, radiusKm);
+            if (Math.abs(targetAltitude - altitude) < 100) {
+                verticalRate = 0;
+                if (random.nextDouble() < dt / 300) {
+                    targetAltitude = 1000 + random.nextInt(390) * 100;
+                }
+            } else {
+                verticalRate = Math.signum(targetAltitude - altitude) * 1500;
+                altitude += verticalRate * dt / 60;
+            }
+        }
+
+        void send(String sbsTime) {
+            boolean sendIdentification = count++ % STATIC_DATA_EVERY == 0;
+            if (isActive(beastOutput)) {
+                beastOutput.add(beastFrame(positionMessage()));
+                beastOutput.add(beastFrame(velocityMessage()));
+                if (sendIdentification) {
+                    beastOutput.add(beastFrame(identificationMessage()));
+                }
+            }
+            if (isActive(sbsOutput)) {
+                String prefix = ",1,1," + icaoHex + ",1," + sbsTime + "," + sbsTime + ",";
+                sbsOutput.add(String.format(Locale.ROOT, "MSG,3%s,%.0f,,,%.5f,%.5f,,,0,0,0,0\r\n",
+                        prefix, altitude, lat, lon).getBytes(StandardCharsets.US_ASCII));
+                sbsOutput.add(String.format(Locale.ROOT, "MSG,4%s,,%.0f,%.1f,,,%.0f,,0,0,0,0\r\n",
+                        prefix, speedKnots, heading, verticalRate).getBytes(StandardCharsets.US_ASCII));
+                if (sendIdentification) {
+                    sbsOutput.add(("MSG,1" + prefix + callsign + ",,,,,,,,0,0,0,0\r\n").getBytes(StandardCharsets.US_ASCII));
+                }
+            }
+            oddPosition = !oddPosition;
+        }
+
+        /**
+         * Airborne position with barometric altitude, type code 11, alternating
+         * between even and odd CPR encoding.
+         */
+        private byte[] positionMessage() {
+            int n = (int) Math.round((altitude + 1000) / 25);
+            int alt = ((n & 0x7F0) << 1) | 0x10 | (n & 0x0F);
+            int[] cpr = cprEncode(lat, lon, oddPosition);
+            return extendedSquitter(icao, new BitWriter(56)
+                    .put(11, 5).put(0, 2).put(0, 1).put(alt, 12).put(0, 1)
+                    .put(oddPosition ? 1 : 0, 1).put(cpr[0], 17).put(cpr[1], 17));
+        }
+
+        /**
+         * Airborne velocity over ground, type code 19 subtype 1.
+         */
+        private byte[] velocityMessage() {
+            double east = speedKnots * Math.sin(Math.toRadians(heading));
+            double north = speedKnots * Math.cos(Math.toRadians(heading));
+            return extendedSquitter(icao, new BitWriter(56)
+                    .put(19, 5).put(1, 3).put(0, 1).put(0, 1).put(0, 3)
+                    .put(east < 0 ? 1 : 0, 1).put(Math.min(1023, Math.round(Math.abs(east)) + 1), 10)
+                    .put(north < 0 ? 1 : 0, 1).put(Math.min(1023, Math.round(Math.abs(north)) + 1), 10)
+                    .put(1, 1).put(verticalRate < 0 ? 1 : 0, 1)
+                    .put(Math.min(511, Math.round(Math.abs(verticalRate) / 64) + 1), 9)
+                    .put(0, 2).put(0, 1).put(0, 7));
+        }
+
+        /**
+         * Identification and category, type code 4 (category set A).
+         */
+        private byte[] identificationMessage() {
+            BitWriter me = new BitWriter(56).put(4, 5).put(3, 3);
+            for (int i = 0; i < 8; i++) {
+                me.put(MODE_S_CHARS.indexOf(i < callsign.length() ? callsign.charAt(i) : ' '), 6);
+            }
+            return extendedSquitter(icao, me);
+        }
+    }
+
+    /**
+     * Simulated ship, sending AIS messages.
+     */
+    private class SimShip extends Mover {
+        final int mmsi;
+        final String name;
+        final String callsign;
+        final int shipType;
+        int count;
+
+        SimShip(int mmsi, long now) {
+            super(shipRadiusKm, random.nextDouble() * 25, 1, now, shipIntervalMillis);
+            this.mmsi = mmsi;
+            name = "SIM VESSEL " + mmsi % 100000;
+            callsign = "S" + mmsi % 100000;
+            shipType = 60 + random.nextInt(30);
+        }
+
+        void send(long now) {
+            aisOutput.send(aisSentences(positionReport(now), 168));
+            if (count++ % STATIC_DATA_EVERY == 0) {
+                aisOutput.send(aisSentences(staticData(), 424));
+            }
+        }
+
+        /**
+         * Class A position report, message type 1.
+         */
+        private BitWriter positionReport(long now) {
+            return new BitWriter(168)
+                    .put(1, 6).put(0, 2).put(mmsi, 30).put(speedKnots > 0.5 ? 0 : 1, 4).put(0x80, 8)
+                    .put(Math.min(1022, Math.round(speedKnots * 10)), 10).put(0, 1)
+                    .put(Math.round(lon * 600000), 28).put(Math.round(lat * 600000), 27)
+                    .put(Math.round(heading * 10) % 3600, 12).put(Math.round(heading) % 360, 9)
+                    .put((now / 1000) % 60, 6).put(0, 2).put(0, 3).put(0, 1).put(0, 19);
+        }
+
+        /**
+         * Static and voyage related data, message type 5.
+         */
+        private BitWriter staticData() {
+            return new BitWriter(424)
+                    .put(5, 6).put(0, 2).put(mmsi, 30).put(0, 2).put(0, 30)
+                    .putAISText(callsign, 7).putAISText(name, 20).put(shipType, 8)
+                    .put(100, 9).put(20, 9).put(10, 6).put(10, 6).put(1, 4)
+                    .put(0, 4).put(0, 5).put(24, 5).put(60, 6).put(50, 8)
+                    .putAISText("SOUTHAMPTON", 20).put(0, 1).put(0, 1);
+        }
+    }
+
+    /**
+     * Simulated APRS station, sending position reports.
+     */
+    private class SimStation extends Mover {
+        final byte[] address;
+
+        SimStation(int id, long now) {
+            super(aprsRadiusKm, random.nextDouble() * 60, 5, now, aprsIntervalMillis);
+            String callsign = "SIM" + String.format("%3s", Integer.toString(id % 46656, 36)).replace(' ', '0').toUpperCase();
+            ByteArrayOutputStream a = new ByteArrayOutputStream();
+            putAX25Address(a, "APRS", 0, false);
+            putAX25Address(a, callsign, id / 46656 % 16, false);
+            putAX25Address(a, "WIDE1", 1, true);
+            address = a.toByteArray();
+        }
+
+        void send() {
+            String info = String.format(Locale.ROOT, "!%02d%05.2f%s/%03d%05.2f%s>%03d/%03dPlane/Sailing traffic generator",
+                    (int) Math.abs(lat), Math.abs(lat) % 1 * 60, lat >= 0 ? "N" : "S",
+                    (int) Math.abs(lon), Math.abs(lon) % 1 * 60, lon >= 0 ? "E" : "W",
+                    Math.round(heading + 359) % 360 + 1, Math.round(speedKnots));
+            ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            packet.writeBytes(address);
+            packet.write(0x03);
+            packet.write(0xF0);
+            packet.writeBytes(info.getBytes(StandardCharsets.US_ASCII));
+
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            frame.write(0xC0);
+            frame.write(0x00);
+            for (byte b : packet.toByteArray()) {
+                if (b == (byte) 0xC0) {
+                    frame.write(0xDB);
+                    frame.write(0xDC);
+                } else if (b == (byte) 0xDB) {
+                    frame.write(0xDB);
+                    frame.write(0xDD);
+                } else {
+                    frame.write(b);
+                }
+            }
+            frame.write(0xC0);
+            kissOutput.add(frame.toByteArray());
+        }
+    }
+
+    /**
+     * Simulated Meshtastic node, sending packets that a node connected to the
+     * server hears over the mesh.
+     */
+    private class SimNode extends Mover {
+        final int num;
+        final String longName;
+        final String shortName;
+        final int hwModel;
+        double altitude;
+        double batteryLevel;
+        long lastHeard;
+        int count;
+
+        SimNode(int num, int id, long now) {
+            super(meshtasticRadiusKm, random.nextDouble() * 30, 10, now, meshtasticIntervalMillis);
+            this.num = num;
+            shortName = String.format("%04x", num & 0xFFFF);
+            longName = "Sim Node " + id;
+            hwModel = MESHTASTIC_HW_MODELS[random.nextInt(MESHTASTIC_HW_MODELS.length)];
+            altitude = random.nextInt(200);
+            batteryLevel = 20 + random.nextInt(81);
+            // Heard at some point in the last interval, as far as the node database is concerned
+            lastHeard = now - (long) (random.nextDouble() * meshtasticIntervalMillis);
+        }
+
+        void send(long now) {
+            meshtasticOutput.add(meshtasticFrame(new ProtobufWriter()
+                    .message(2, packet(3, position(now), now))));
+            if (count++ % STATIC_DATA_EVERY == 0) {
+                meshtasticOutput.add(meshtasticFrame(new ProtobufWriter()
+                        .message(2, packet(4, user(), now))));
+                meshtasticOutput.add(meshtasticFrame(new ProtobufWriter()
+                        .message(2, packet(67, new ProtobufWriter()
+                                .fixed32(1, (int) (now / 1000))
+                                .message(2, deviceMetrics()), now))));
+            }
+        }
+
+        /**
+         * FromRadio containing this node's entry in the node database.
+         */
+        byte[] nodeInfo() {
+            return meshtasticFrame(new ProtobufWriter().message(4, new ProtobufWriter()
+                    .varint(1, Integer.toUnsignedLong(num))
+                    .message(2, user())
+                    .message(3, position(lastHeard))
+                    .fixed32(4, Float.floatToIntBits((float) snr()))
+                    .fixed32(5, (int) (lastHeard / 1000))
+                    .message(6, deviceMetrics())));
+        }
+
+        /**
+         * MeshPacket from this node, containing a payload for the given port.
+         */
+        private ProtobufWriter packet(int portnum, ProtobufWriter payload, long now) {
+            return new ProtobufWriter()
+                    .fixed32(1, num)
+                    .fixed32(2, 0xFFFFFFFF)
+                    .message(4, new ProtobufWriter().varint(1, portnum).message(2, payload))
+                    .fixed32(6, random.nextInt())
+                    .fixed32(7, (int) (now / 1000))
+                    .fixed32(8, Float.floatToIntBits((float) snr()));
+        }
+
+        private ProtobufWriter user() {
+            return new ProtobufWriter()
+                    .string(1, String.format("!%08x", num))
+                    .string(2, longName)
+                    .string(3, shortName)
+                    .varint(5, hwModel);
+        }
+
+        private ProtobufWriter position(long time) {
+            return new ProtobufWriter()
+                    .fixed32(1, (int) Math.round(lat * 1e7))
+                    .fixed32(2, (int) Math.round(lon * 1e7))
+                    .varint(3, Math.round(altitude))
+                    .fixed32(4, (int) (time / 1000));
+        }
+
+        private ProtobufWriter deviceMetrics() {
+            return new ProtobufWriter()
+                    .varint(1, Math.round(batteryLevel))
+                    .fixed32(2, Float.floatToIntBits((float) (3.3 + batteryLevel / 100)))
+                    .fixed32(3, Float.floatToIntBits((float) (random.nextDouble() * 20)))
+                    .fixed32(4, Float.floatToIntBits((float) (random.nextDouble() * 5)));
+        }
+
+        private double snr() {
+            return Math.round(random.nextDouble() * 300 - 200) / 10.0;
+        }
+    }
+
+    /**
+     * Write an AX.25 address field: a callsign of up to six characters and an
+     * SSID, marking whether it is the last address in the packet.
+     */
+    private static void putAX25Address(ByteArrayOutputStream out, String callsign, int ssid, boolean last) {
+        for (int i = 0; i < 6; i++) {
+            out.write((i < callsign.length() ? callsign.charAt(i) : ' ') << 1);
+        }
+        out.write(0x60 | (ssid << 1) | (last ? 1 : 0));
+    }
+
+    /**
+     * Build a DF17 extended squitter message with a valid CRC.
+     *
+     * @param icao The aircraft's ICAO 24-bit address.
+     * @param me   The 56-bit message field.
+     */
+    private static byte[] extendedSquitter(int icao, BitWriter me) {
+        byte[] msg = new byte[14];
+        msg[0] = (byte) (17 << 3 | 5);
+        msg[1] = (byte) (icao >> 16);
+        msg[2] = (byte) (icao >> 8);
+        msg[3] = (byte) icao;
+        System.arraycopy(me.data, 0, msg, 4, 7);
+        int crc = modeSCRC(msg, 11);
+        msg[11] = (byte) (crc >> 16);
+        msg[12] = (byte) (crc >> 8);
+        msg[13] = (byte) crc;
+        return msg;
+    }
+
+    /**
+     * Calculate the Mode S CRC of the first bytes of a message.
+     */
+    private static int modeSCRC(byte[] msg, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= (msg[i] & 0xFF) << 16;
+            for (int bit = 0; bit < 8; bit++) {
+                crc <<= 1;
+                if ((crc & 0x1000000) != 0) {
+                    crc ^= 0x1FFF409;
+                }
+            }
+        }
+        return crc & 0xFFFFFF;
+    }
+
+    /**
+     * CPR-encode an airborne position.
+     *
+     * @return The 17-bit encoded latitude and longitude.
+     */
+    private static int[] cprEncode(double lat, double lon, boolean odd) {
+        int i = odd ? 1 : 0;
+        double dLat = 360.0 / (60 - i);
+        double yz = Math.floor(131072 * mod(lat, dLat) / dLat + 0.5);
+        double rLat = dLat * (yz / 131072 + Math.floor(lat / dLat));
+        int nl = cprNL(rLat) - i;
+        double dLon = nl > 0 ? 360.0 / nl : 360;
+        double xz = Math.floor(131072 * mod(lon, dLon) / dLon + 0.5);
+        return new int[]{(int) yz & 0x1FFFF, (int) xz & 0x1FFFF};
+    }
+
+    /**
+     * Number of CPR longitude zones at a latitude.
+     */
+    private static int cprNL(double lat) {
+        double abs = Math.abs(lat);
+        if (abs < 1e-9) {
+            return 59;
+        } else if (abs >= 87) {
+            return abs > 87 ? 1 : 2;
+        }
+        double a = 1 - Math.cos(Math.PI / 30);
+        double b = Math.pow(Math.cos(Math.toRadians(abs)), 2);
+        return (int) Math.floor(2 * Math.PI / Math.acos(1 - a / b));
+    }
+
+    private static double mod(double x, double y) {
+        return x - y * Math.floor(x / y);
+    }
+
+    /**
+     * Wrap a long Mode S message in a BEAST binary frame, with a 12 MHz
+     * timestamp and a random signal level.
+     */
+    private byte[] beastFrame(byte[] msg) {
+        long timestamp = (System.nanoTime() - startNanos) * 12 / 1000;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(48);
+        out.write(0x1A);
+        out.write('3');
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            writeEscaped(out, (int) (timestamp >> shift));
+        }
+        writeEscaped(out, 0x40 + random.nextInt(0x80));
+        for (byte b : msg) {
+            writeEscaped(out, b);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeEscaped(ByteArrayOutputStream out, int b) {
+        out.write(b);
+        if ((b & 0xFF) == 0x1A) {
+            out.write(b);
+        }
+    }
+
+    /**
+     * Armour an AIS message into AIVDM sentences, splitting it across as many
+     * as needed.
+     */
+    private List<byte[]> aisSentences(BitWriter msg, int bits) {
+        int fill = (6 - bits % 6) % 6;
+        StringBuilder payload = new StringBuilder();
+        for (int pos = 0; pos < bits; pos += 6) {
+            int v = msg.get(pos, 6);
+            payload.append((char) (v < 40 ? v + 48 : v + 56));
+        }
+        int parts = (payload.length() + 59) / 60;
+        String sequenceId = "";
+        if (parts > 1) {
+            sequenceId = Integer.toString(aisSequenceId);
+            aisSequenceId = (aisSequenceId + 1) % 10;
+        }
+        List<byte[]> sentences = new ArrayList<>(parts);
+        for (int part = 1; part <= parts; part++) {
+            String body = "AIVDM," + parts + "," + part + "," + sequenceId + ",A,"
+                    + payload.substring((part - 1) * 60, Math.min(payload.length(), part * 60))
+                    + "," + (part == parts ? fill : 0);
+            int checksum = 0;
+            for (int i = 0; i < body.length(); i++) {
+                checksum ^= body.charAt(i);
+            }
+            sentences.add(String.format("!%s*%02X\r\n", body, checksum).getBytes(StandardCharsets.US_ASCII));
+        }
+        return sentences;
+    }
+
+    /**
+     * Wrap a FromRadio protobuf in a Meshtastic API frame.
+     */
+    private static byte[] meshtasticFrame(ProtobufWriter fromRadio) {
+        byte[] payload = fromRadio.toByteArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length + 4);
+        out.write(0x94);
+        out.write(0xC3);
+        out.write(payload.length >> 8);
+        out.write(payload.length);
+        out.writeBytes(payload);
+        return out.toByteArray();
+    }
+
+    /**
+     * Builds a protobuf message in the wire format, one field at a time.
+     */
+    private static class ProtobufWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        ProtobufWriter varint(int field, long value) {
+            writeVarint(field << 3);
+            writeVarint(value);
+            return this;
+        }
+
+        ProtobufWriter fixed32(int field, int value) {
+            writeVarint(field << 3 | 5);
+            for (int i = 0; i < 32; i += 8) {
+                out.write(value >> i);
+            }
+            return this;
+        }
+
+        ProtobufWriter string(int field, String value) {
+            return bytes(field, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        ProtobufWriter message(int field, ProtobufWriter value) {
+            return bytes(field, value.toByteArray());
+        }
+
+        ProtobufWriter bytes(int field, byte[] value) {
+            writeVarint(field << 3 | 2);
+            writeVarint(value.length);
+            out.writeBytes(value);
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+
+    /**
+     * Builds a message out of fields of any number of bits, most significant
+     * bit first.
+     */
+    private static class BitWriter {
+        private final byte[] data;
+        private int pos;
+
+        BitWriter(int bits) {
+            // Room for AIS messages to be padded to a whole number of characters
+            data = new byte[(bits + 5) / 8 + 1];
+        }
+
+        BitWriter put(long value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                if (((value >>> i) & 1) != 0) {
+                    data[pos >> 3] |= (byte) (0x80 >>> (pos & 7));
+                }
+                pos++;
+            }
+            return this;
+        }
+
+        /**
+         * Put text in AIS 6-bit characters, padded with "@".
+         */
+        BitWriter putAISText(String text, int chars) {
+            for (int i = 0; i < chars; i++) {
+                char c = i < text.length() ? text.charAt(i) : '@';
+                put(c >= 64 ? c - 64 : c, 6);
+            }
+            return this;
+        }
+
+        int get(int start, int bits) {
+            int value = 0;
+            for (int p = start; p < start + bits; p++) {
+                value = (value << 1) | ((data[p >> 3] >>> (7 - (p & 7))) & 1);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * TCP server that sends data to every client connected to it. Data is
+     * collected during each tick and sent in one go at the end of it. A client
+     * that can't keep up slows down the whole generator, as it would with a
+     * real receiver's buffers filling up.
+     */
+    private static class TCPOutput {
+        final String name;
+        final List<Socket> clients = new CopyOnWriteArrayList<>();
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(65536);
+        private final ServerSocket server;
+        private long messages;
+
+        TCPOutput(String name, int port) throws IOException {
+            this.name = name;
+            server = new ServerSocket(port);
+            System.out.println("Serving " + name + " on TCP port " + port);
+        }
+
+        /**
+         * Start accepting clients.
+         */
+        TCPOutput start() {
+            Thread t = new Thread(() -> {
+                while (true) {
+                    try {
+                        Socket s = server.accept();
+                        s.setSendBufferSize(1 << 20);
+                        System.out.println(name + " client connected from " + s.getRemoteSocketAddress());
+                        accepted(s);
+                    } catch (IOException ex) {
+                        System.out.println("Could not accept " + name + " client: " + ex.getMessage());
+                    }
+                }
+            }, name + " server");
+            t.setDaemon(true);
+            t.start();
+            return this;
+        }
+
+        /**
+         * Handle a newly connected client. By default it is sent data from the
+         * next flush onwards.
+         */
+        void accepted(Socket s) throws IOException {
+            clients.add(s);
+        }
+
+        /**
+         * Drop a client that has disconnected or failed.
+         */
+        void disconnected(Socket s) {
+            System.out.println(name + " client " + s.getRemoteSocketAddress() + " disconnected");
+            clients.remove(s);
+            try {
+                s.close();
+            } catch (IOException ignored) {
+                // Already gone
+            }
+        }
+
+        void add(byte[] data) {
+            buffer.writeBytes(data);
+            messages++;
+        }
+
+        void flush() {
+            if (buffer.size() == 0) {
+                return;
+            }
+            for (Socket s : clients) {
+                try {
+                    OutputStream os = s.getOutputStream();
+                    buffer.writeTo(os);
+                    os.flush();
+                } catch (IOException ex) {
+                    disconnected(s);
+                }
+            }
+            buffer.reset();
+        }
+
+        long takeMessageCount() {
+            long m = messages;
+            messages = 0;
+            return m;
+        }
+    }
+
+    /**
+     * TCP server that stands in for a Meshtastic node's TCP API. A client only
+     * gets live packets once it has asked for the node database and been sent
+     * it, as with a real node. Each client's requests are read on their own
+     * thread, and answered on the main thread when it next flushes, so that
+     * the node database is consistent with the packets that follow it.
+     */
+    private static class MeshtasticOutput extends TCPOutput {
+        private final Queue<ConfigRequest> configRequests = new ConcurrentLinkedQueue<>();
+
+        private record ConfigRequest(Socket socket, long id) {
+        }
+
+        MeshtasticOutput(int port) throws IOException {
+            super("Meshtastic", port);
+        }
+
+        @Override
+        void accepted(Socket s) throws IOException {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            Thread t = new Thread(() -> readRequests(s, in), "Meshtastic client " + s.getRemoteSocketAddress());
+            t.setDaemon(true);
+            t.start();
+        }
+
+        /**
+         * Read ToRadio messages from a client until it disconnects, queueing any
+         * requests for the node database. Anything else, e.g. heartbeats, is
+         * ignored.
+         */
+        private void readRequests(Socket s, DataInputStream in) {
+            try {
+                while (true) {
+                    if (in.readUnsignedByte() != 0x94 || in.readUnsignedByte() != 0xC3) {
+                        continue;
+                    }
+                    byte[] toRadio = new byte[in.readUnsignedShort()];
+                    in.readFully(toRadio);
+                    long wantConfigId = wantConfigId(toRadio);
+                    if (wantConfigId >= 0) {
+                        configRequests.add(new ConfigRequest(s, wantConfigId));
+                    }
+                }
+            } catch (IOException ex) {
+                // Disconnected, which the next flush will notice
+            }
+        }
+
+        /**
+         * Send the node database to every client that has asked for it since
+         * the last call, followed by the config complete message with the ID
+         * the client asked with, and start sending them live packets.
+         */
+        void sendNodeDatabases(List<SimNode> nodes) {
+            ConfigRequest r;
+            while ((r = configRequests.poll()) != null) {
+                try {
+                    ByteArrayOutputStream db = new ByteArrayOutputStream();
+                    for (SimNode n : nodes) {
+                        db.writeBytes(n.nodeInfo());
+                    }
+                    db.writeBytes(meshtasticFrame(new ProtobufWriter().varint(7, r.id())));
+                    OutputStream os = r.socket().getOutputStream();
+                    db.writeTo(os);
+                    os.flush();
+                    System.out.println("Sent node database of " + nodes.size() + " nodes to " + r.socket().getRemoteSocketAddress());
+                    if (!clients.contains(r.socket())) {
+                        clients.add(r.socket());
+                    }
+                } catch (IOException ex) {
+                    disconnected(r.socket());
+                }
+            }
+        }
+
+        /**
+         * Get the want_config_id from a ToRadio message, or -1 if it is some
+         * other message.
+         */
+        private static long wantConfigId(byte[] toRadio) {
+            try {
+                ProtobufReader r = new ProtobufReader(toRadio, 0, toRadio.length);
+                while (r.next()) {
+                    if (r.getFieldNumber() == 3) {
+                        return r.readVarint();
+                    }
+                    r.skip();
+                }
+            } catch (IllegalArgumentException ex) {
+                // Not a valid message
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Sends each AIS sentence as its own UDP datagram, as AIS receivers
+     * usually do.
+     */
+    private static class UDPOutput {
+        private final DatagramSocket socket;
+        private final SocketAddress target;
+        private long messages;
+
+        UDPOutput(SocketAddress target) throws IOException {
+            this.socket = new DatagramSocket();
+            this.target = target;
+            System.out.println("Sending AIS to UDP " + target);
+        }
+
+        void send(List<byte[]> sentences) {
+            for (byte[] s : sentences) {
+                try {
+                    socket.send(new DatagramPacket(s, s.length, target));
+                } catch (IOException ex) {
+                    // Nobody listening yet, carry on
+                }
+            }
+            messages++;
+        }
+
+        long takeMessageCount() {
+            long m = messages;
+            messages = 0;
+            return m;
+        }
+    }
+}